@@ -11,7 +11,6 @@ import com.bc.inventory.utils.SimpleRecord;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
 
 /**
  * A command line interface to the geo inventory.
@@ -72,13 +71,12 @@ public class CLI {
     private static void query(Inventory inventory, String[] args) throws IOException {
         Constrain constraints = parseConstraint(args);
         //long t1 = System.currentTimeMillis();
-        List<String> pathList = inventory.query(constraints);
+        inventory.query(constraints, path -> {
+            System.err.println(path);
+            return true;
+        });
         //long t2 = System.currentTimeMillis();
         //System.err.printf("Time needed: %dms%n", (t2 - t1));
-        //System.err.printf("Num results: %d%n", pathList.size());
-        for (String path : pathList) {
-            System.err.println(path);
-        }
     }
 
     private static Constrain parseConstraint(String[] args) throws IOException {
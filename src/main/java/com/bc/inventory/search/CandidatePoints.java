@@ -0,0 +1,99 @@
+package com.bc.inventory.search;
+
+import java.util.Arrays;
+
+/**
+ * The pairs of candidate product and in-situ point of a matchup query, without boxing.
+ * <p>
+ * Each pair is packed into one long, the product index in the upper half.
+ * After {@link #sort()} the pairs of a product are consecutive and ordered by point.
+ */
+class CandidatePoints {
+
+    private long[] pairs;
+    private int size;
+
+    CandidatePoints() {
+        pairs = new long[64];
+    }
+
+    void add(int productIndex, int pointIndex) {
+        if (size == pairs.length) {
+            pairs = Arrays.copyOf(pairs, 2 * size);
+        }
+        pairs[size++] = ((long) productIndex << 32) | (pointIndex & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Sorts the pairs by product and point and removes duplicates.
+     */
+    void sort() {
+        Arrays.sort(pairs, 0, size);
+        int k = 0;
+        for (int i = 0; i < size; i++) {
+            if (k == 0 || pairs[k - 1] != pairs[i]) {
+                pairs[k++] = pairs[i];
+            }
+        }
+        size = k;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getProductIndex(int i) {
+        return (int) (pairs[i] >>> 32);
+    }
+
+    int getPointIndex(int i) {
+        return (int) pairs[i];
+    }
+
+    /**
+     * @return The point index of each pair, in the order of the pairs.
+     */
+    int[] getPointIndices() {
+        int[] pointIndices = new int[size];
+        for (int i = 0; i < size; i++) {
+            pointIndices[i] = getPointIndex(i);
+        }
+        return pointIndices;
+    }
+
+    /**
+     * @return The distinct product indices in ascending order, only valid after {@link #sort()}.
+     */
+    int[] getProductIndices() {
+        int numProducts = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || getProductIndex(i - 1) != getProductIndex(i)) {
+                numProducts++;
+            }
+        }
+        int[] productIndices = new int[numProducts];
+        int k = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || getProductIndex(i - 1) != getProductIndex(i)) {
+                productIndices[k++] = getProductIndex(i);
+            }
+        }
+        return productIndices;
+    }
+
+    /**
+     * @return For each of the {@link #getProductIndices() distinct products} the position of its first pair,
+     * followed by the number of pairs. Only valid after {@link #sort()}.
+     */
+    int[] getProductStarts() {
+        int[] productStarts = new int[getProductIndices().length + 1];
+        int k = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || getProductIndex(i - 1) != getProductIndex(i)) {
+                productStarts[k++] = i;
+            }
+        }
+        productStarts[k] = size;
+        return productStarts;
+    }
+}
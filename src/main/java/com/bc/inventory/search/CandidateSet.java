@@ -0,0 +1,206 @@
+package com.bc.inventory.search;
+
+import java.util.Arrays;
+
+/**
+ * A set of product indices in the range {@code [0, numProducts)} without boxing.
+ * <p>
+ * Small sets are held as an int array, which is sorted and made unique when needed.
+ * Once the array would use more memory than one bit per product the set switches to a bitmap.
+ */
+class CandidateSet {
+
+    private final int numProducts;
+    private int[] ids;
+    private int size;
+    private boolean normalized;
+    private long[] words;
+
+    CandidateSet(int numProducts) {
+        this.numProducts = numProducts;
+        this.ids = new int[16];
+        this.normalized = true;
+    }
+
+    void add(int productIndex) {
+        if (words != null) {
+            words[productIndex >>> 6] |= 1L << productIndex;
+            return;
+        }
+        if (size == ids.length) {
+            normalize();
+            if (size >= getMaxSparseSize()) {
+                toBitmap();
+                words[productIndex >>> 6] |= 1L << productIndex;
+                return;
+            } else if (size == ids.length) {
+                ids = Arrays.copyOf(ids, Math.min(2 * size, getMaxSparseSize()));
+            }
+        }
+        if (size > 0 && ids[size - 1] >= productIndex) {
+            if (ids[size - 1] == productIndex) {
+                return;
+            }
+            normalized = false;
+        }
+        ids[size++] = productIndex;
+    }
+
+    /**
+     * Adds all products of the other set, the union.
+     */
+    void addAll(CandidateSet other) {
+        if (other.words != null) {
+            toBitmap();
+            for (int i = 0; i < words.length; i++) {
+                words[i] |= other.words[i];
+            }
+        } else if (words != null) {
+            for (int i = 0; i < other.size; i++) {
+                int productIndex = other.ids[i];
+                words[productIndex >>> 6] |= 1L << productIndex;
+            }
+        } else {
+            normalize();
+            other.normalize();
+            int[] merged = new int[size + other.size];
+            int i = 0, j = 0, k = 0;
+            while (i < size && j < other.size) {
+                int a = ids[i];
+                int b = other.ids[j];
+                merged[k++] = a <= b ? a : b;
+                if (a <= b) i++;
+                if (b <= a) j++;
+            }
+            while (i < size) merged[k++] = ids[i++];
+            while (j < other.size) merged[k++] = other.ids[j++];
+            ids = merged;
+            size = k;
+            if (size > getMaxSparseSize()) {
+                toBitmap();
+            }
+        }
+    }
+
+    /**
+     * Keeps only the products that are also in the other set, the intersection.
+     */
+    void retainAll(CandidateSet other) {
+        if (words != null && other.words != null) {
+            for (int i = 0; i < words.length; i++) {
+                words[i] &= other.words[i];
+            }
+        } else if (words != null) {
+            // the result is not larger than the other set
+            long[] myWords = words;
+            words = null;
+            other.normalize();
+            ids = new int[Math.max(16, other.size)];
+            size = 0;
+            normalized = true;
+            for (int i = 0; i < other.size; i++) {
+                int productIndex = other.ids[i];
+                if ((myWords[productIndex >>> 6] & (1L << productIndex)) != 0) {
+                    ids[size++] = productIndex;
+                }
+            }
+        } else {
+            int k = 0;
+            for (int i = 0; i < size; i++) {
+                if (other.contains(ids[i])) {
+                    ids[k++] = ids[i];
+                }
+            }
+            size = k;
+        }
+    }
+
+    boolean contains(int productIndex) {
+        if (words != null) {
+            return (words[productIndex >>> 6] & (1L << productIndex)) != 0;
+        }
+        normalize();
+        return Arrays.binarySearch(ids, 0, size, productIndex) >= 0;
+    }
+
+    int size() {
+        if (words != null) {
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            return cardinality;
+        }
+        normalize();
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    void clear() {
+        if (words != null) {
+            words = null;
+            ids = new int[16];
+        }
+        size = 0;
+        normalized = true;
+    }
+
+    /**
+     * @return The product indices in ascending order.
+     */
+    int[] toArray() {
+        if (words != null) {
+            int[] result = new int[size()];
+            int k = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    result[k++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return result;
+        }
+        normalize();
+        return Arrays.copyOf(ids, size);
+    }
+
+    boolean isBitmap() {
+        return words != null;
+    }
+
+    private int getMaxSparseSize() {
+        // beyond this the int array uses more memory than the bitmap
+        return Math.max(16, numProducts >>> 5);
+    }
+
+    private void normalize() {
+        if (!normalized) {
+            Arrays.sort(ids, 0, size);
+            int k = 0;
+            for (int i = 0; i < size; i++) {
+                if (k == 0 || ids[k - 1] != ids[i]) {
+                    ids[k++] = ids[i];
+                }
+            }
+            size = k;
+            normalized = true;
+        }
+    }
+
+    private void toBitmap() {
+        if (words != null) {
+            return;
+        }
+        words = new long[(numProducts + 63) >>> 6];
+        for (int i = 0; i < size; i++) {
+            int productIndex = ids[i];
+            words[productIndex >>> 6] |= 1L << productIndex;
+        }
+        ids = null;
+        size = 0;
+    }
+}
@@ -0,0 +1,68 @@
+package com.bc.inventory.search;
+
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An index that can look up the products by the cells of their coverage approximation,
+ * used by the queries instead of scanning the products of their time ranges.
+ */
+public interface CellIndexedGeoIndex extends GeoIndex {
+
+    /**
+     * @return {@code true}, if the cell index exists, e.g. it was written to the file.
+     */
+    boolean hasCellIndex() throws IOException;
+
+    /**
+     * @return The sorted indices of all products for which {@link #approximationContainsPoint(int, S2Point)} is true.
+     */
+    int[] getProductsContainingPoint(S2Point point) throws IOException;
+
+    /**
+     * @return The sorted indices of all products for which {@link #approximationIntersectsPolygon(int, S2Polygon)} is true.
+     */
+    int[] getProductsIntersectingPolygon(S2Polygon polygon) throws IOException;
+
+    /**
+     * Same as {@link #getProductsContainingPoint(S2Point)}, but only the products before {@code endProductIndex}.
+     */
+    default int[] getProductsContainingPoint(S2Point point, int endProductIndex) throws IOException {
+        return Arrays.stream(getProductsContainingPoint(point)).filter(p -> p < endProductIndex).toArray();
+    }
+
+    /**
+     * Same as {@link #getProductsIntersectingPolygon(S2Polygon)}, but only the products before {@code endProductIndex}.
+     */
+    default int[] getProductsIntersectingPolygon(S2Polygon polygon, int endProductIndex) throws IOException {
+        return Arrays.stream(getProductsIntersectingPolygon(polygon)).filter(p -> p < endProductIndex).toArray();
+    }
+
+    /**
+     * An estimate of the work of {@link #getProductsContainingPoint(S2Point)}, for planning the query.
+     *
+     * @return An upper bound of the number of products found, counted once for each cell they are found in.
+     */
+    default long estimateProductsContainingPoint(S2Point point) throws IOException {
+        return size();
+    }
+
+    /**
+     * An estimate of the work of {@link #getProductsIntersectingPolygon(S2Polygon)}, for planning the query.
+     *
+     * @return An upper bound of the number of products found, counted once for each cell they are found in.
+     */
+    default long estimateProductsIntersectingPolygon(S2Polygon polygon) throws IOException {
+        return size();
+    }
+
+    /**
+     * @return The number of cells the polygon is approximated with, the approximation tests take longer with more cells.
+     */
+    default int getCoveringSize(S2Polygon polygon) throws IOException {
+        return 1;
+    }
+}
@@ -0,0 +1,16 @@
+package com.bc.inventory.search;
+
+/**
+ * Decides which segments of a {@link SafeUpdateInventory} are merged into one.
+ * Only adjacent segments can be merged, so that the segments stay ordered from the oldest to the newest.
+ */
+@FunctionalInterface
+public interface CompactionPolicy {
+
+    /**
+     * @param numProducts the number of products of each live segment, oldest first
+     * @return The range {@code [from, to)} of the segments to merge, at least two,
+     * or {@code null} if nothing should be merged now.
+     */
+    int[] select(int[] numProducts);
+}
@@ -0,0 +1,19 @@
+package com.bc.inventory.search;
+
+import java.io.IOException;
+
+/**
+ * An index whose products can be read with several cursors in parallel.
+ */
+public interface CursorGeoIndex extends GeoIndex {
+
+    /**
+     * @return {@code true}, if the cursors are supported, e.g. the file can be read at random positions.
+     */
+    boolean supportsCursors() throws IOException;
+
+    /**
+     * @return A new cursor, that reads products independent of this index and of other cursors.
+     */
+    EntryCursor newCursor() throws IOException;
+}
@@ -0,0 +1,54 @@
+package com.bc.inventory.search;
+
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+
+import java.io.IOException;
+
+/**
+ * Reads the polygon and the path of one product at a time.
+ */
+public interface EntryCursor {
+
+    void readEntry(int productIndex) throws IOException;
+
+    S2Polygon getCurrentPolygon() throws IOException;
+
+    /**
+     * @return The bounding rectangle of the current polygon, the same as the bound of {@link #getCurrentPolygon()}.
+     * Implementations can read it without decoding the polygon.
+     */
+    default S2LatLngRect getCurrentRectBound() throws IOException {
+        return getCurrentPolygon().getRectBound();
+    }
+
+    /**
+     * Tests the points {@code points[pointIndices[from]] .. points[pointIndices[to - 1]]},
+     * with the same result as {@link S2Polygon#contains(S2Point)} for each of them.
+     * Implementations can test the points without decoding the polygon.
+     *
+     * @param latLngs the points as {@link S2LatLng}, for checking the bounding rectangle first
+     * @return {@code true}, if the current polygon contains any of the points
+     */
+    default boolean currentPolygonContainsAny(S2Point[] points, S2LatLng[] latLngs,
+                                              int[] pointIndices, int from, int to) throws IOException {
+        S2LatLngRect rectBound = getCurrentRectBound();
+        S2Polygon polygon = null;
+        for (int i = from; i < to; i++) {
+            int pointIndex = pointIndices[i];
+            if (rectBound.contains(latLngs[pointIndex])) {
+                if (polygon == null) {
+                    polygon = getCurrentPolygon();
+                }
+                if (polygon.contains(points[pointIndex])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    String getCurrentPath() throws IOException;
+}
@@ -9,7 +9,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -30,6 +34,11 @@ public class FileStreamFactory implements StreamFactory {
         return new BufferedInputStream(new FileInputStream(new File(path)));
     }
 
+    @Override
+    public FileChannel createFileChannel(String path) throws IOException {
+        return FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    }
+
     @Override
     public OutputStream createOutputStream(String path) throws IOException {
         File file = new File(path);
@@ -40,6 +49,16 @@ public class FileStreamFactory implements StreamFactory {
         return new FileOutputStream(file);
     }
 
+    @Override
+    public String getVersion(String path) throws IOException {
+        if (!exists(path)) {
+            return null;
+        }
+        // the file key (the inode on Unix) changes when a new file is renamed to this name
+        BasicFileAttributes attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        return attributes.size() + ":" + attributes.lastModifiedTime() + ":" + attributes.fileKey();
+    }
+
     @Override
     public boolean exists(String path) {
         return new File(path).exists();
@@ -3,6 +3,8 @@ package com.bc.inventory.search;
 import javax.imageio.stream.ImageInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.List;
 
@@ -15,6 +17,14 @@ public interface GeoDb {
     void open(ImageInputStream iis) throws IOException;
     
     void open(InputStream iis) throws IOException;
+
+    /**
+     * Opens the database from a channel, which allows it to be memory mapped.
+     * This default reads the channel as a stream.
+     */
+    default void open(FileChannel channel) throws IOException {
+        open(Channels.newInputStream(channel));
+    }
     
     void close() throws IOException;
 
@@ -25,4 +35,25 @@ public interface GeoDb {
     GeoDbUpdater getDbUpdater();
 
     List<String> query(Constrain constrain) throws IOException;
+
+    /**
+     * Delivers the paths of the matching products to the sink, the query stops when the sink returns {@code false}.
+     * This default delivers the result of {@link #query(Constrain)}, implementations can deliver
+     * each path as soon as it is found.
+     */
+    default void query(Constrain constrain, ResultSink sink) throws IOException {
+        for (String path : query(constrain)) {
+            if (!sink.accept(path)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Like {@link #query(Constrain, ResultSink)}, the counters and timings of the query are added to the profile.
+     * This default does not count anything.
+     */
+    default void query(Constrain constrain, ResultSink sink, QueryProfile profile) throws IOException {
+        query(constrain, sink);
+    }
 }
@@ -7,6 +7,15 @@ public interface GeoDbUpdater {
     
     void addEntry(GeoDbEntry entry) throws IOException;
 
+    /**
+     * Does the part of {@link #addEntry(GeoDbEntry)} that only depends on the entry itself, e.g. computing its coverage.
+     * Can be called from several threads at once. Adding the returned entry gives the same result as adding the entry.
+     * The default returns the entry unchanged.
+     */
+    default GeoDbEntry prepareEntry(GeoDbEntry entry) throws IOException {
+        return entry;
+    }
+
     void write(OutputStream os) throws IOException;
     
 }
@@ -5,24 +5,66 @@ import com.google.common.geometry.S2Polygon;
 
 import java.io.IOException;
 
-public interface GeoIndex {
+/**
+ * The products of a database and the approximations of their polygons, as used by the {@link QuerySolver}.
+ * Further capabilities are provided by {@link ZonedGeoIndex}, {@link CellIndexedGeoIndex} and {@link CursorGeoIndex}.
+ */
+public interface GeoIndex extends EntryCursor {
 
     int size();
 
-    int getStartTime(int productIndex);
+    int getStartTime(int productIndex) throws IOException;
 
-    int getEndTime(int productIndex);
+    int getEndTime(int productIndex) throws IOException;
 
-    int getIndexForTime(int currentStartTime);
+    int getIndexForTime(int currentStartTime) throws IOException;
 
-    boolean approximationContainsPoint(int productIndex, S2Point point);
+    boolean approximationContainsPoint(int productIndex, S2Point point) throws IOException;
 
-    boolean approximationIntersectsPolygon(int productIndex, S2Polygon polygon);
+    boolean approximationIntersectsPolygon(int productIndex, S2Polygon polygon) throws IOException;
 
-    void readEntry(int productIndex) throws IOException;
+    /**
+     * @return {@code true}, only if the polygon of the product certainly contains the point,
+     * because the point lies in the interior covering of the product. {@code false} means unknown.
+     */
+    default boolean interiorContainsPoint(int productIndex, S2Point point) throws IOException {
+        return false;
+    }
 
-    S2Polygon getCurrentPolygon() throws IOException;
+    /**
+     * @return {@code true}, only if the polygon of the product certainly intersects the polygon,
+     * because their interior coverings intersect. {@code false} means unknown.
+     */
+    default boolean interiorIntersectsPolygon(int productIndex, S2Polygon polygon) throws IOException {
+        return false;
+    }
 
-    String getCurrentPath() throws IOException;
+    /**
+     * Announces the products that will be read with {@link #readEntry(int)}, in this order.
+     * Implementations can use this to read ahead.
+     */
+    default void planEntries(int[] productIndices) throws IOException {
+    }
+
+    /**
+     * The following counters are summed over the index and all its cursors,
+     * a query takes the difference before and after. They are 0, if the index does not count.
+     *
+     * @return The number of data blocks read.
+     */
+    default long getNumBlocksRead() {
+        return 0;
+    }
+
+    default long getNumBytesRead() {
+        return 0;
+    }
+
+    /**
+     * @return The time spent decompressing the paths of the blocks read.
+     */
+    default long getPathDecodeNanos() {
+        return 0;
+    }
 
 }
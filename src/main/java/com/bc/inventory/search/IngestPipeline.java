@@ -0,0 +1,181 @@
+package com.bc.inventory.search;
+
+import com.bc.inventory.search.csv.CsvRecord;
+import com.bc.inventory.search.csv.CsvRecordReader;
+import com.bc.inventory.utils.TimeUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Adds the entries of CSV files to a {@link GeoDbUpdater} using several threads.
+ * <p>
+ * The calling thread reads the lines of a file and hands them in chunks to the workers, which parse them
+ * and {@link GeoDbUpdater#prepareEntry(GeoDbEntry) prepare} the entries. At most two chunks per worker are waiting,
+ * so reading can not run ahead of the workers. While the next file is read, the calling thread commits the
+ * previous one: it sorts the entries by start time and adds them, in the same order as the sequential
+ * {@link SimpleInventory#updateFromCSV(GeoDbUpdater, String[], StreamFactory)}, so the resulting DB is the same.
+ */
+class IngestPipeline {
+
+    static final int CHUNK_SIZE = 64;
+
+    private final int numThreads;
+    private final ThreadLocal<CsvRecordReader.LineParser> lineParser = ThreadLocal.withInitial(CsvRecordReader.LineParser::new);
+
+    IngestPipeline(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @return The number of entries added, including duplicates.
+     */
+    int addAll(GeoDbUpdater dbUpdater, String[] filenames, StreamFactory streamFactory) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+            Thread thread = new Thread(runnable, "geodb-ingest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore waitingChunks = new Semaphore(2 * numThreads);
+        try {
+            int counter = 0;
+            List<Future<List<ParsedEntry>>> previousFile = null;
+            for (String csvFile : filenames) {
+                List<Future<List<ParsedEntry>>> currentFile = readFile(csvFile, streamFactory, dbUpdater, executor, waitingChunks);
+                if (previousFile != null) {
+                    counter += commit(previousFile, dbUpdater);
+                }
+                previousFile = currentFile;
+            }
+            if (previousFile != null) {
+                counter += commit(previousFile, dbUpdater);
+            }
+            return counter;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Future<List<ParsedEntry>>> readFile(String csvFile, StreamFactory streamFactory, GeoDbUpdater dbUpdater,
+                                                     ExecutorService executor, Semaphore waitingChunks) throws IOException {
+        List<Future<List<ParsedEntry>>> chunks = new ArrayList<>();
+        // the same reading as CsvRecordReader: stop at the end, at the first empty line or at an error
+        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(streamFactory.createInputStream(csvFile)))) {
+            List<String> lines = new ArrayList<>(CHUNK_SIZE);
+            while (true) {
+                String line;
+                try {
+                    line = bufferedReader.readLine();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+                if (line == null || line.isEmpty()) {
+                    break;
+                }
+                lines.add(line);
+                if (lines.size() == CHUNK_SIZE) {
+                    chunks.add(submit(lines, dbUpdater, executor, waitingChunks));
+                    lines = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!lines.isEmpty()) {
+                chunks.add(submit(lines, dbUpdater, executor, waitingChunks));
+            }
+        }
+        return chunks;
+    }
+
+    private Future<List<ParsedEntry>> submit(List<String> lines, GeoDbUpdater dbUpdater,
+                                             ExecutorService executor, Semaphore waitingChunks) throws IOException {
+        try {
+            waitingChunks.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading CSV");
+        }
+        return executor.submit(() -> {
+            try {
+                return prepare(lines, dbUpdater);
+            } finally {
+                waitingChunks.release();
+            }
+        });
+    }
+
+    private List<ParsedEntry> prepare(List<String> lines, GeoDbUpdater dbUpdater) throws IOException {
+        CsvRecordReader.LineParser parser = lineParser.get();
+        List<ParsedEntry> entries = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            CsvRecord record;
+            try {
+                record = parser.parseLine(line);
+            } catch (ParseException e) {
+                e.printStackTrace();
+                continue;
+            }
+            int startTime = TimeUtils.startTimeInMin(record.getStartTime());
+            int endTime = TimeUtils.endTimeInMin(record.getEndTime());
+            GeoDbEntry entry = new GeoDbEntry(startTime, endTime, record.getPath(), record.getS2Polygon());
+            entries.add(new ParsedEntry(record.getStartTime(), dbUpdater.prepareEntry(entry)));
+        }
+        return entries;
+    }
+
+    private static int commit(List<Future<List<ParsedEntry>>> chunks, GeoDbUpdater dbUpdater) throws IOException {
+        List<ParsedEntry> entries = new ArrayList<>();
+        for (Future<List<ParsedEntry>> chunk : chunks) {
+            entries.addAll(await(chunk));
+        }
+        // stable, as the sort of CsvGeoDb
+        entries.sort(Comparator.comparingLong(parsedEntry -> parsedEntry.startTime));
+        for (ParsedEntry parsedEntry : entries) {
+            dbUpdater.addEntry(parsedEntry.entry);
+        }
+        return entries.size();
+    }
+
+    private static List<ParsedEntry> await(Future<List<ParsedEntry>> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while parsing CSV");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static class ParsedEntry {
+
+        // the time in ms, the entries of a file are sorted by it
+        private final long startTime;
+        private final GeoDbEntry entry;
+
+        ParsedEntry(long startTime, GeoDbEntry entry) {
+            this.startTime = startTime;
+            this.entry = entry;
+        }
+    }
+}
@@ -9,5 +9,24 @@ public interface Inventory {
 
     List<String> query(Constrain constrain) throws IOException;
 
+    /**
+     * Delivers the paths of the matching products to the sink, the query stops when the sink returns {@code false}.
+     */
+    default void query(Constrain constrain, ResultSink sink) throws IOException {
+        for (String path : query(constrain)) {
+            if (!sink.accept(path)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Like {@link #query(Constrain, ResultSink)}, the counters and timings of the query are added to the profile.
+     * This default does not count anything.
+     */
+    default void query(Constrain constrain, ResultSink sink, QueryProfile profile) throws IOException {
+        query(constrain, sink);
+    }
+
     void dump(String csvFile) throws IOException;
 }
@@ -0,0 +1,117 @@
+package com.bc.inventory.search;
+
+import com.bc.inventory.utils.SimpleRecord;
+import com.bc.inventory.utils.TimeUtils;
+import com.google.common.geometry.S2Point;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Finds the candidate products for in-situ records that have a time window around their time.
+ * <p>
+ * The records are sorted by time and swept in one pass against the products, which are sorted by start time.
+ * Because all windows have the same length, the start and the end of the window only move forward,
+ * so the active products of a record are found without rescanning the index for every record.
+ * Only the products inside the window are tested against the coverage approximation.
+ * <p>
+ * For every record the result is the same as scanning the index with the window as time range.
+ */
+class MatchupSweep {
+
+    private final GeoIndex index;
+    private final QueryProfile profile;
+
+    MatchupSweep(GeoIndex index) {
+        this(index, new QueryProfile());
+    }
+
+    MatchupSweep(GeoIndex index, QueryProfile profile) {
+        this.index = index;
+        this.profile = profile;
+    }
+
+    /**
+     * @param insituRecords the records, records without a time are ignored
+     * @param points        the points of the records
+     * @param timeDelta     the half width of the time window in milliseconds
+     * @param timeRanges    records whose window does not overlap any of the time ranges are ignored,
+     *                      see {@link QuerySolver#normalizeDateRanges(Constrain.DateRange[])}
+     * @param candidates    receives the pairs of candidate product and index of the record that may match it
+     * @param accepted      receives the candidate products that match already by their interior covering
+     */
+    void findCandidates(SimpleRecord[] insituRecords, S2Point[] points, long timeDelta, int[] timeRanges,
+                        CandidatePoints candidates, CandidateSet accepted) throws IOException {
+        int numRecords = 0;
+        int[] windowEnds = new int[insituRecords.length];
+        // window start and record index packed, to sort by window start
+        long[] order = new long[insituRecords.length];
+        for (int i = 0; i < insituRecords.length; i++) {
+            long insituRecordTime = insituRecords[i].getTime();
+            if (insituRecordTime == -1) {
+                continue;
+            }
+            int insituStart = TimeUtils.startTimeInMin(insituRecordTime - timeDelta);
+            int insituEnd = TimeUtils.endTimeInMin(insituRecordTime + timeDelta);
+            if (overlapsTimeRange(insituStart, insituEnd, timeRanges)) {
+                windowEnds[i] = insituEnd;
+                order[numRecords++] = ((long) insituStart << 32) | i;
+            }
+        }
+        Arrays.sort(order, 0, numRecords);
+
+        // products without time come first, they are candidates for every record
+        int numUntimed = 0;
+        while (numUntimed < index.size() && index.getStartTime(numUntimed) == -1) {
+            numUntimed++;
+        }
+        int windowEndIndex = numUntimed;
+        for (int i = 0; i < numRecords; i++) {
+            int insituStart = (int) (order[i] >> 32);
+            int recordIndex = (int) order[i];
+            int insituEnd = windowEnds[recordIndex];
+            for (int productIndex = 0; productIndex < numUntimed; productIndex++) {
+                profile.numTimeMatches++;
+                addIfCandidate(productIndex, points, recordIndex, candidates, accepted);
+            }
+            profile.numConsidered += numUntimed;
+            // the first product to consider only depends on the window start, it moves forward
+            int productIndex = Math.max(numUntimed, index.getIndexForTime(insituStart));
+            // all products starting before the end of the window, it moves forward
+            while (windowEndIndex < index.size() && index.getStartTime(windowEndIndex) < insituEnd) {
+                windowEndIndex++;
+            }
+            if (productIndex < windowEndIndex) {
+                profile.numConsidered += windowEndIndex - productIndex;
+            }
+            for (; productIndex < windowEndIndex; productIndex++) {
+                if (index.getEndTime(productIndex) >= insituStart) {
+                    profile.numTimeMatches++;
+                    addIfCandidate(productIndex, points, recordIndex, candidates, accepted);
+                }
+            }
+        }
+    }
+
+    private void addIfCandidate(int productIndex, S2Point[] points, int recordIndex,
+                                CandidatePoints candidates, CandidateSet accepted) throws IOException {
+        if (index.approximationContainsPoint(productIndex, points[recordIndex])) {
+            candidates.add(productIndex, recordIndex);
+            profile.numCandidates++;
+            if (index.interiorContainsPoint(productIndex, points[recordIndex])) {
+                accepted.add(productIndex);
+            }
+        }
+    }
+
+    private static boolean overlapsTimeRange(int insituStart, int insituEnd, int[] timeRanges) {
+        for (int range = 0; range < timeRanges.length; range += 2) {
+            int start = timeRanges[range];       // can be -1
+            int end = timeRanges[range + 1];     // can be -1
+            if ((end == -1 || end >= insituStart) && (start == -1 || start <= insituEnd)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
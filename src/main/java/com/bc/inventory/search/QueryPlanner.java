@@ -0,0 +1,113 @@
+package com.bc.inventory.search;
+
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+
+import java.io.IOException;
+
+/**
+ * Chooses for each time range of a query whether its candidates are found time-first,
+ * by scanning the products of the range and testing their coverage approximation,
+ * or space-first, by looking the products up in the cell index and checking their time.
+ * <p>
+ * The time selectivity is taken from the sorted start times, the spatial selectivity from the
+ * size of the posting lists of the cells the query hits and the number of cells of the query polygon.
+ * A lookup decodes the posting lists only up to the last product that can match its ranges,
+ * so it is used for the first ranges, the later ranges are scanned.
+ * Both ways give the same candidates, only the work differs.
+ */
+class QueryPlanner {
+
+    // relative costs, in units of decoding one byte of a posting list
+    private static final double TIME_CHECK_COST = 1;
+    private static final double POSTING_BYTE_COST = 1;
+    // the binary searches for a cell of the query, the cells it contains and its ancestors
+    private static final double CELL_LOOKUP_COST = 30;
+    private static final double POINT_TEST_COST = 4;
+    private static final double POLYGON_TEST_COST = 4;
+
+    private final GeoIndex index;
+    // null if the index can not look up the products by cell
+    private final CellIndexedGeoIndex cellIndex;
+
+    QueryPlanner(GeoIndex index) {
+        this.index = index;
+        this.cellIndex = index instanceof CellIndexedGeoIndex ? (CellIndexedGeoIndex) index : null;
+    }
+
+    /**
+     * @param timeRanges the normalized time ranges, see {@link QuerySolver#normalizeDateRanges(Constrain.DateRange[])}
+     * @param numUntimed the number of products without time, they come first
+     * @return The number of time ranges, from the first one, to evaluate space-first, 0 without cell index.
+     */
+    int plan(int[] timeRanges, int numUntimed, S2Point point, S2Polygon polygon) throws IOException {
+        if (index.size() == 0 || (point == null && polygon == null) || cellIndex == null || !cellIndex.hasCellIndex()) {
+            return 0;
+        }
+        int numRanges = timeRanges.length / 2;
+        int[] rangeStarts = new int[numRanges];
+        int[] rangeEnds = new int[numRanges];
+        for (int range = 0; range < numRanges; range++) {
+            rangeStarts[range] = getRangeStart(timeRanges[2 * range], numUntimed);
+            rangeEnds[range] = getRangeEnd(timeRanges[2 * range + 1]);
+        }
+        int numCells = point != null ? 1 : cellIndex.getCoveringSize(polygon);
+        double testCost = point != null ? POINT_TEST_COST : POLYGON_TEST_COST + Math.log(numCells) / Math.log(2);
+        long postingBytes = point != null ? cellIndex.estimateProductsContainingPoint(point)
+                : cellIndex.estimateProductsIntersectingPolygon(polygon);
+
+        // all ranges time-first, the products without time are tested as well
+        int numSpaceFirst = 0;
+        double bestCost = numUntimed * testCost + scanCost(rangeStarts, rangeEnds, 0, numUntimed, testCost);
+        for (int k = 1; k <= numRanges; k++) {
+            int lookupEnd = rangeEnds[k - 1];
+            double lookupCost = numCells * CELL_LOOKUP_COST
+                    + (double) postingBytes * lookupEnd / index.size() * (POSTING_BYTE_COST + TIME_CHECK_COST);
+            double cost = lookupCost + scanCost(rangeStarts, rangeEnds, k, lookupEnd, testCost);
+            if (cost < bestCost) {
+                bestCost = cost;
+                numSpaceFirst = k;
+            }
+        }
+        return numSpaceFirst;
+    }
+
+    static QueryProfile.Strategy getStrategy(int numSpaceFirst, int numRanges) {
+        if (numSpaceFirst == 0) {
+            return QueryProfile.Strategy.TIME_FIRST;
+        }
+        return numSpaceFirst == numRanges ? QueryProfile.Strategy.SPACE_FIRST : QueryProfile.Strategy.COMBINED;
+    }
+
+    /**
+     * @return The first product the scan of a time range looks at.
+     */
+    int getRangeStart(int startTime, int numUntimed) throws IOException {
+        if (startTime == -1) {
+            return numUntimed;
+        }
+        return Math.max(numUntimed, index.getIndexForTime(startTime));
+    }
+
+    /**
+     * @return The end of the products that can match a time range, all later ones start too late.
+     */
+    int getRangeEnd(int endTime) throws IOException {
+        if (endTime == -1) {
+            return index.size();
+        }
+        return Math.min(index.size(), index.getIndexForTime(endTime) + 1);
+    }
+
+    private static double scanCost(int[] rangeStarts, int[] rangeEnds, int fromRange, int scanStart, double testCost) {
+        double cost = 0;
+        int position = scanStart;
+        for (int range = fromRange; range < rangeStarts.length; range++) {
+            int start = Math.max(position, rangeStarts[range]);
+            int end = Math.max(start, rangeEnds[range]);
+            cost += (end - start) * (TIME_CHECK_COST + testCost);
+            position = end;
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,154 @@
+package com.bc.inventory.search;
+
+/**
+ * Counters and timings of the phases of a query, to find out why a query is slow.
+ * <p>
+ * The index phase checks the time and the coverage approximation of the products,
+ * the data phase reads the candidates and tests them against their exact polygon.
+ * For matchups the counts of the index phase are summed over the in-situ records.
+ * A profile is filled by one query at a time, profiles of several DBs can be {@link #add(QueryProfile) added}.
+ */
+public class QueryProfile {
+
+    /**
+     * How the candidates of a point or polygon are found, chosen by the planner from the statistics of the index.
+     */
+    public enum Strategy {
+        /**
+         * Scan the products of each time range, then test their coverage approximation.
+         */
+        TIME_FIRST,
+        /**
+         * Look the products up in the cell index, then check their time.
+         */
+        SPACE_FIRST,
+        /**
+         * The first time ranges space-first, the later ones time-first.
+         */
+        COMBINED
+    }
+
+    final long[] numPlans = new long[Strategy.values().length];
+    long numConsidered;
+    long numTimeMatches;
+    long numCandidates;
+    long numAccepted;
+    long numExactTests;
+    long numMatches;
+    long numBlocksRead;
+    long numBytesRead;
+    long indexNanos;
+    long dataNanos;
+    long exactTestNanos;
+    long pathDecodeNanos;
+
+    /**
+     * @return The number of products looked at in the index phase, including the ones skipped by zone.
+     */
+    public long getNumConsidered() {
+        return numConsidered;
+    }
+
+    /**
+     * @return How often the strategy was chosen, once per query polygon or per in-situ record without time delta.
+     */
+    public long getNumPlans(Strategy strategy) {
+        return numPlans[strategy.ordinal()];
+    }
+
+    void addPlan(Strategy strategy) {
+        numPlans[strategy.ordinal()]++;
+    }
+
+    /**
+     * @return The number of products that passed the time filter.
+     */
+    public long getNumTimeMatches() {
+        return numTimeMatches;
+    }
+
+    /**
+     * @return The number of products that passed the coverage approximation.
+     */
+    public long getNumCandidates() {
+        return numCandidates;
+    }
+
+    /**
+     * @return The number of candidates that matched by their interior covering, without the exact test.
+     */
+    public long getNumAccepted() {
+        return numAccepted;
+    }
+
+    public long getNumExactTests() {
+        return numExactTests;
+    }
+
+    public long getNumMatches() {
+        return numMatches;
+    }
+
+    public long getNumBlocksRead() {
+        return numBlocksRead;
+    }
+
+    public long getNumBytesRead() {
+        return numBytesRead;
+    }
+
+    public long getIndexNanos() {
+        return indexNanos;
+    }
+
+    /**
+     * @return The time of the data phase, including reading the blocks.
+     */
+    public long getDataNanos() {
+        return dataNanos;
+    }
+
+    /**
+     * @return The time spent in the exact tests, including decoding the polygons.
+     */
+    public long getExactTestNanos() {
+        return exactTestNanos;
+    }
+
+    public long getPathDecodeNanos() {
+        return pathDecodeNanos;
+    }
+
+    public void add(QueryProfile other) {
+        for (int i = 0; i < numPlans.length; i++) {
+            numPlans[i] += other.numPlans[i];
+        }
+        numConsidered += other.numConsidered;
+        numTimeMatches += other.numTimeMatches;
+        numCandidates += other.numCandidates;
+        numAccepted += other.numAccepted;
+        numExactTests += other.numExactTests;
+        numMatches += other.numMatches;
+        numBlocksRead += other.numBlocksRead;
+        numBytesRead += other.numBytesRead;
+        indexNanos += other.indexNanos;
+        dataNanos += other.dataNanos;
+        exactTestNanos += other.exactTestNanos;
+        pathDecodeNanos += other.pathDecodeNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder plans = new StringBuilder();
+        for (Strategy strategy : Strategy.values()) {
+            if (getNumPlans(strategy) > 0) {
+                plans.append(strategy).append('=').append(getNumPlans(strategy)).append(' ');
+            }
+        }
+        return plans + String.format("considered=%,d timeMatches=%,d candidates=%,d accepted=%,d exactTests=%,d matches=%,d " +
+                             "blocksRead=%,d bytesRead=%,d index=%,d ms data=%,d ms exactTest=%,d ms pathDecode=%,d ms",
+                             numConsidered, numTimeMatches, numCandidates, numAccepted, numExactTests, numMatches,
+                             numBlocksRead, numBytesRead, indexNanos / 1000000, dataNanos / 1000000,
+                             exactTestNanos / 1000000, pathDecodeNanos / 1000000);
+    }
+}
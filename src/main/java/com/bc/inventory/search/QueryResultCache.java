@@ -0,0 +1,213 @@
+package com.bc.inventory.search;
+
+import com.bc.inventory.utils.SimpleRecord;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of query results of one inventory, bounded by the estimated number of bytes the results use.
+ * When the budget is exceeded the least recently used results are evicted.
+ * <p>
+ * Results are stored for a generation of the inventory, which changes whenever its files change.
+ * When a query sees a new generation, all results of the previous one are dropped.
+ * The key of a result is a canonical form of the {@link Constrain}: two constrains that give the same
+ * result by construction, e.g. the same polygon starting at another vertex or overlapping date ranges
+ * in another order, have the same key. The query name is not part of the key.
+ */
+public class QueryResultCache {
+
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, List<String>> results;
+    private String generation;
+    private long numBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public QueryResultCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public QueryResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.results = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @return The paths of the query, or {@code null} if they are not cached for this generation.
+     */
+    synchronized List<String> get(String generation, String key) {
+        checkGeneration(generation);
+        List<String> paths = results.get(key);
+        if (paths != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return paths;
+    }
+
+    synchronized void put(String generation, String key, List<String> paths) {
+        checkGeneration(generation);
+        long resultBytes = getNumBytes(key, paths);
+        if (resultBytes > maxBytes) {
+            return;
+        }
+        List<String> replaced = results.put(key, paths);
+        if (replaced != null) {
+            numBytes -= getNumBytes(key, replaced);
+        }
+        numBytes += resultBytes;
+        Iterator<Map.Entry<String, List<String>>> iterator = results.entrySet().iterator();
+        while (numBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, List<String>> eldest = iterator.next();
+            numBytes -= getNumBytes(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    private void checkGeneration(String generation) {
+        if (!generation.equals(this.generation)) {
+            clear();
+            this.generation = generation;
+        }
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        numBytes = 0;
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    public synchronized long getNumBytes() {
+        return numBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return The number of results evicted to stay within the budget, results dropped for a new generation are not counted.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return The fraction of the lookups that were hits, 0 before the first lookup.
+     */
+    public synchronized double getHitRate() {
+        long numLookups = hitCount + missCount;
+        return numLookups == 0 ? 0 : (double) hitCount / numLookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("results=%,d bytes=%,d hits=%,d misses=%,d evictions=%,d hitRate=%.2f",
+                             results.size(), numBytes, hitCount, missCount, evictionCount, getHitRate());
+    }
+
+    private static long getNumBytes(String key, List<String> paths) {
+        long numBytes = 40 + 2 * key.length() + 16 + 4 * paths.size();
+        for (String path : paths) {
+            numBytes += 40 + 2 * path.length();
+        }
+        return numBytes;
+    }
+
+    /**
+     * @return The canonical form of the constrain, everything that decides about the result.
+     */
+    static String createKey(Constrain constrain) {
+        StringBuilder key = new StringBuilder();
+        key.append("polygon=");
+        S2Polygon polygon = constrain.getPolygon();
+        if (polygon != null) {
+            for (int i = 0; i < polygon.numLoops(); i++) {
+                appendLoop(polygon.loop(i), key);
+            }
+        }
+        // the query only uses the normalized ranges
+        key.append(" ranges=").append(Arrays.toString(QuerySolver.normalizeDateRanges(constrain.getDateRanges())));
+        key.append(" onlyProductStart=").append(constrain.useOnlyProductStart());
+        key.append(" insitu=").append(digest(constrain.getInsituRecords()));
+        key.append(" delta=").append(constrain.getTimeDelta());
+        key.append(" max=").append(constrain.getMaxNumResults());
+        return key.toString();
+    }
+
+    /**
+     * Appends the vertices starting at the smallest one, the same loop always gives the same string.
+     */
+    private static void appendLoop(S2Loop loop, StringBuilder key) {
+        int first = 0;
+        for (int i = 1; i < loop.numVertices(); i++) {
+            if (loop.vertex(i).compareTo(loop.vertex(first)) < 0) {
+                first = i;
+            }
+        }
+        key.append('(');
+        for (int i = 0; i < loop.numVertices(); i++) {
+            S2Point vertex = loop.vertex(first + i);
+            key.append(vertex.getX()).append(' ').append(vertex.getY()).append(' ').append(vertex.getZ()).append(',');
+        }
+        key.append(')');
+    }
+
+    private static String digest(SimpleRecord[] insituRecords) {
+        if (insituRecords.length == 0) {
+            return "none";
+        }
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer bb = ByteBuffer.allocate(24);
+            for (SimpleRecord record : insituRecords) {
+                bb.clear();
+                bb.putLong(record.getTime());
+                bb.putDouble(record.getLocation().getX());
+                bb.putDouble(record.getLocation().getY());
+                messageDigest.update(bb.array());
+            }
+            StringBuilder hex = new StringBuilder(insituRecords.length + ":");
+            for (byte b : messageDigest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Used by the inventory to describe the files it reads, the versions are given by the {@link StreamFactory}.
+     */
+    static String createGeneration(String[] filenames, String[] versions) {
+        StringBuilder generation = new StringBuilder();
+        for (int i = 0; i < filenames.length; i++) {
+            generation.append(filenames[i]).append('@').append(versions[i]).append('\n');
+        }
+        return generation.toString();
+    }
+}
@@ -2,169 +2,520 @@ package com.bc.inventory.search;
 
 import com.bc.inventory.utils.SimpleRecord;
 import com.bc.inventory.utils.TimeUtils;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Loop;
 import com.google.common.geometry.S2Point;
 import com.google.common.geometry.S2Polygon;
 
 import java.io.IOException;
-import java.util.*;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 /**
  * Evaluates the given Constrain against an Inventory to get to a QueryResult.
  */
 public class QuerySolver {
-    
+
+    private static final int MIN_PRODUCTS_PER_TASK = 64;
+    private static final int TASKS_PER_THREAD = 4;
+
     private final GeoIndex index;
+    // the capabilities of the index, null if it does not have them
+    private final ZonedGeoIndex zonedIndex;
+    private final CellIndexedGeoIndex cellIndex;
+    private final CursorGeoIndex cursorIndex;
+    private final QueryPlanner planner;
+    private ExecutorService executor;
+    private int parallelism;
 
     public QuerySolver(GeoIndex index) {
         this.index = index;
+        this.zonedIndex = index instanceof ZonedGeoIndex ? (ZonedGeoIndex) index : null;
+        this.cellIndex = index instanceof CellIndexedGeoIndex ? (CellIndexedGeoIndex) index : null;
+        this.cursorIndex = index instanceof CursorGeoIndex ? (CursorGeoIndex) index : null;
+        this.planner = new QueryPlanner(index);
+    }
+
+    /**
+     * Sets an executor for testing the candidates on the exact polygons in parallel. The candidates are split
+     * into tasks at zone boundaries, each task reads with its own {@link EntryCursor}.
+     * The results are merged in product order, so they are the same as without executor,
+     * also when they are limited by {@link Constrain#getMaxNumResults()}.
+     *
+     * @param executor    the executor, {@code null} to test on the calling thread
+     * @param parallelism the number of threads of the executor that can be used
+     */
+    public void setExecutor(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = parallelism;
     }
     
     public List<String> query(Constrain constrain) throws IOException {
+        List<String> matches = new ArrayList<>();
+        query(constrain, matches::add);
+        return matches;
+    }
+
+    /**
+     * Delivers the path of each match as soon as its exact test has passed, in product order.
+     * At most {@link Constrain#getMaxNumResults()} paths are delivered, the query stops
+     * when the sink returns {@code false}.
+     */
+    public void query(Constrain constrain, ResultSink sink) throws IOException {
+        query(constrain, sink, new QueryProfile());
+    }
+
+    /**
+     * Like {@link #query(Constrain, ResultSink)}, the counters and timings of the query are added to the profile.
+     */
+    public void query(Constrain constrain, ResultSink sink, QueryProfile profile) throws IOException {
         SimpleRecord[] insituRecords = constrain.getInsituRecords();
         int maxNumResults = constrain.getMaxNumResults();
+        int[] timeRanges = normalizeDateRanges(constrain.getDateRanges());
+        long indexStart = System.nanoTime();
 
         if (insituRecords.length == 0) {
             S2Polygon polygon = constrain.getPolygon();
-            boolean useOnlyProductStart = constrain.useOnlyProductStart();
-            Constrain.DateRange[] dateRanges = constrain.getDateRanges();
-            List<Integer> productIDs = null;
-            Set<Integer> uniqueProductIds = new HashSet<>();
-            for (Constrain.DateRange dateRange : dateRanges) {
-                int start = TimeUtils.startTimeInMin(dateRange.getStart());   // can be -1
-                int end = TimeUtils.endTimeInMin(dateRange.getEnd());         // can be -1
-                List<Integer> someProductIDs = testOnIndex(start, end, useOnlyProductStart, null, polygon);
-                if (dateRanges.length > 1) {
-                    uniqueProductIds.addAll(someProductIDs);
-                } else {
-                    productIDs = someProductIDs;
+            CandidateSet productIDs = new CandidateSet(index.size());
+            CandidateSet accepted = new CandidateSet(index.size());
+            testOnIndex(timeRanges, constrain.useOnlyProductStart(), null, polygon, productIDs, accepted, profile);
+            profile.indexNanos += System.nanoTime() - indexStart;
+            testPolygonOnData(productIDs, accepted, polygon, sink, maxNumResults, profile);
+        } else {
+            S2Point[] points = new S2Point[insituRecords.length];
+            for (int i = 0; i < insituRecords.length; i++) {
+                points[i] = insituRecords[i].getAsPoint();
+            }
+            CandidatePoints candidates = new CandidatePoints();
+            CandidateSet accepted = new CandidateSet(index.size());
+            long delta = constrain.getTimeDelta();
+            if (delta != -1) {
+                // time-matchups, one sweep over all records with a time, always with precise time checks
+                MatchupSweep matchupSweep = new MatchupSweep(index, profile);
+                matchupSweep.findCandidates(insituRecords, points, delta, timeRanges, candidates, accepted);
+            }
+            CandidateSet productIDs = new CandidateSet(index.size());
+            for (int recordIndex = 0; recordIndex < insituRecords.length; recordIndex++) {
+                if (delta != -1 && insituRecords[recordIndex].getTime() != -1) {
+                    continue;
+                }
+                productIDs.clear();
+                testOnIndex(timeRanges, constrain.useOnlyProductStart(), points[recordIndex], null, productIDs, accepted, profile);
+                for (int productID : productIDs.toArray()) {
+                    candidates.add(productID, recordIndex);
                 }
             }
-            if (dateRanges.length > 1) {
-                productIDs = new ArrayList<>(uniqueProductIds);
+            candidates.sort();
+            profile.indexNanos += System.nanoTime() - indexStart;
+            testPointsOnData(candidates, accepted, points, sink, maxNumResults, profile);
+        }
+    }
+
+    /**
+     * Converts the date ranges into time ranges in minutes, sorted by start, with overlapping
+     * and adjacent ranges merged.
+     *
+     * @return start and end of each range, one after the other, -1 for an open start or end
+     */
+    static int[] normalizeDateRanges(Constrain.DateRange[] dateRanges) {
+        // start and position packed, to sort by start, an open start (-1) comes first
+        long[] order = new long[dateRanges.length];
+        for (int i = 0; i < dateRanges.length; i++) {
+            order[i] = ((long) TimeUtils.startTimeInMin(dateRanges[i].getStart()) << 32) | i;
+        }
+        Arrays.sort(order);
+        int[] timeRanges = new int[2 * dateRanges.length];
+        int k = 0;
+        for (long startAndPosition : order) {
+            int start = (int) (startAndPosition >> 32);
+            int end = TimeUtils.endTimeInMin(dateRanges[(int) startAndPosition].getEnd());
+            if (k > 0 && (timeRanges[k - 1] == -1 || start <= timeRanges[k - 1])) {
+                // overlaps or touches the previous range
+                if (timeRanges[k - 1] != -1) {
+                    timeRanges[k - 1] = end == -1 ? -1 : Math.max(timeRanges[k - 1], end);
+                }
+            } else {
+                timeRanges[k++] = start;
+                timeRanges[k++] = end;
             }
-            return testPolygonOnData(productIDs, polygon, maxNumResults);
+        }
+        return Arrays.copyOf(timeRanges, k);
+    }
+
+    /**
+     * Finds the candidates for all time ranges, which must be normalized. The planner chooses how many
+     * of the ranges are evaluated on the cell index, the others are scanned once, forward.
+     * Each product is tested at most once.
+     * Candidates that match already by their interior covering are also added to {@code accepted}.
+     */
+    private void testOnIndex(int[] timeRanges, boolean useOnlyProductStart, S2Point point, S2Polygon polygon,
+                             CandidateSet results, CandidateSet accepted, QueryProfile profile) throws IOException {
+        int numUntimed = 0;
+        while (numUntimed < index.size() && index.getStartTime(numUntimed) == -1) {
+            numUntimed++;
+        }
+        int numSpaceFirst = planner.plan(timeRanges, numUntimed, point, polygon);
+        if (point != null || polygon != null) {
+            profile.addPlan(QueryPlanner.getStrategy(numSpaceFirst, timeRanges.length / 2));
+        }
+        int productIndex = numUntimed;
+        if (numSpaceFirst > 0) {
+            productIndex = planner.getRangeEnd(timeRanges[2 * numSpaceFirst - 1]);
+            testOnCellIndex(timeRanges, useOnlyProductStart, numUntimed, productIndex, point, polygon,
+                            results, accepted, profile);
         } else {
-            Map<Integer, List<S2Point>> candidatesMap = new HashMap<>();
-            for (Constrain.DateRange dateRange : constrain.getDateRanges()) {
-                int start = TimeUtils.startTimeInMin(dateRange.getStart());   // can be -1
-                int end = TimeUtils.endTimeInMin(dateRange.getEnd());         // can be -1
-
-                for (SimpleRecord insituRecord : insituRecords) {
-                    long delta = constrain.getTimeDelta();
-                    boolean useOnlyProductStart = constrain.useOnlyProductStart();
-                    long insituRecordTime = insituRecord.getTime();
-                    int insituStart = start;
-                    int insituEnd = end;
-                    if (delta != -1 && insituRecordTime != -1) {
-                        insituStart = TimeUtils.startTimeInMin(insituRecordTime - delta);
-                        insituEnd = TimeUtils.endTimeInMin(insituRecordTime + delta);
-                        if (end != -1 && end < insituStart) {
-                            continue;
-                        }
-                        if (start != -1 && start > insituEnd) {
-                            continue;
-                        }
-                        useOnlyProductStart = false; // for time-matchups always precise time checks
+            for (int untimed = 0; untimed < numUntimed; untimed++) {
+                profile.numConsidered++;
+                profile.numTimeMatches++;
+                checkGeoApproximation(point, polygon, results, accepted, untimed, profile);
+            }
+        }
+
+        int numZones = zonedIndex != null ? zonedIndex.numZones() : 0;
+        int zoneEnd = productIndex;
+        for (int range = 2 * numSpaceFirst; range < timeRanges.length; range += 2) {
+            int startTime = timeRanges[range];
+            int endTime = timeRanges[range + 1];
+            if (startTime != -1) {
+                // the ranges are disjoint and sorted, the scan only moves forward
+                productIndex = Math.max(productIndex, index.getIndexForTime(startTime));
+            }
+            while (productIndex < index.size()) {
+                if (numZones > 0 && productIndex >= zoneEnd) {
+                    int zone = zonedIndex.getZone(productIndex);
+                    if (endTime != -1 && zonedIndex.getZoneMinStartTime(zone) >= endTime) {
+                        // this range is done, check the zone again for the next range
+                        break;
                     }
-                    S2Point s2Point = insituRecord.getAsPoint();
-                    List<Integer> productIDs = testOnIndex(insituStart, insituEnd, useOnlyProductStart, s2Point, null);
-                    if (!productIDs.isEmpty()) {
-                        for (Integer match : productIDs) {
-                            candidatesMap.computeIfAbsent(match, k -> new ArrayList<>()).add(s2Point);
-                        }
+                    zoneEnd = zone + 1 < numZones ? zonedIndex.getZoneStart(zone + 1) : index.size();
+                    if (!checkZone(zone, startTime, useOnlyProductStart, point, polygon)) {
+                        profile.numConsidered += zoneEnd - productIndex;
+                        productIndex = zoneEnd;
+                        continue;
                     }
                 }
+                if (endTime != -1 && index.getStartTime(productIndex) >= endTime) {
+                    break;
+                }
+                profile.numConsidered++;
+                if (startTime != -1 && (useOnlyProductStart ? index.getStartTime(productIndex) : index.getEndTime(productIndex)) < startTime) {
+                    // this product starts or ends too early, skip
+                    productIndex++;
+                    continue;
+                }
+
+                // time matches, now test geo
+                profile.numTimeMatches++;
+                checkGeoApproximation(point, polygon, results, accepted, productIndex, profile);
+                productIndex++;
             }
-            return testPointsOnData(candidatesMap, maxNumResults);
         }
     }
 
-    private List<Integer> testOnIndex(int startTime, int endTime, boolean useOnlyProductStart, 
-                                      S2Point point, S2Polygon polygon) {
-        List<Integer> results = new ArrayList<>();
-        int productIndex = 0;
-        while(productIndex < index.size() && index.getStartTime(productIndex) == -1) {
-            checkGeoApproximation(point, polygon, results, productIndex);
-            productIndex++;
+    /**
+     * Looks up the products before {@code lookupEnd} in the cell index and checks them against all time ranges,
+     * with the same conditions as the scan. The scan continues at {@code lookupEnd}.
+     */
+    private void testOnCellIndex(int[] timeRanges, boolean useOnlyProductStart, int numUntimed, int lookupEnd,
+                                 S2Point point, S2Polygon polygon,
+                                 CandidateSet results, CandidateSet accepted, QueryProfile profile) throws IOException {
+        int[] rangeStarts = new int[timeRanges.length / 2];
+        for (int range = 0; range < rangeStarts.length; range++) {
+            rangeStarts[range] = planner.getRangeStart(timeRanges[2 * range], numUntimed);
         }
-        if (startTime != -1) {
-            productIndex = index.getIndexForTime(startTime);
-            if (productIndex == -1) {
-                return results;
+        int[] productIndices = point != null ? cellIndex.getProductsContainingPoint(point, lookupEnd)
+                : cellIndex.getProductsIntersectingPolygon(polygon, lookupEnd);
+        profile.numConsidered += productIndices.length;
+        for (int productIndex : productIndices) {
+            if (productIndex >= numUntimed && !matchesTimeRanges(productIndex, timeRanges, rangeStarts, useOnlyProductStart)) {
+                continue;
             }
+            profile.numTimeMatches++;
+            profile.numCandidates++;
+            results.add(productIndex);
+            checkInterior(point, polygon, accepted, productIndex);
         }
+    }
 
-        while (productIndex < index.size()) {
-            if (endTime != -1 && index.getStartTime(productIndex) >= endTime) {
-                break;
-            } else if (startTime != -1 && (useOnlyProductStart ? index.getStartTime(productIndex) : index.getEndTime(productIndex)) < startTime) {
-                // this product starts or ends too early, skip
-                productIndex++;
+    private boolean matchesTimeRanges(int productIndex, int[] timeRanges, int[] rangeStarts,
+                                      boolean useOnlyProductStart) throws IOException {
+        int productStart = index.getStartTime(productIndex);
+        for (int range = 0; range < rangeStarts.length; range++) {
+            int startTime = timeRanges[2 * range];
+            int endTime = timeRanges[2 * range + 1];
+            if (endTime != -1 && productStart >= endTime) {
                 continue;
             }
+            if (startTime == -1 || (productIndex >= rangeStarts[range]
+                    && (useOnlyProductStart ? productStart : index.getEndTime(productIndex)) >= startTime)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            // time matches, now test geo
-            checkGeoApproximation(point, polygon, results, productIndex);
-            productIndex++;
+    /**
+     * @return {@code false}, if no product in the zone can match this or any later time range
+     */
+    private boolean checkZone(int zone, int startTime, boolean useOnlyProductStart,
+                              S2Point point, S2Polygon polygon) throws IOException {
+        if (startTime != -1 && !useOnlyProductStart && zonedIndex.getZoneMaxEndTime(zone) < startTime) {
+            return false;
+        }
+        if (point != null) {
+            return zonedIndex.zoneApproximationContainsPoint(zone, point);
+        } else if (polygon != null) {
+            return zonedIndex.zoneApproximationIntersectsPolygon(zone, polygon);
         }
-        return results;
+        return true;
     }
 
-    private void checkGeoApproximation(S2Point point, S2Polygon polygon, List<Integer> results, int productIndex) {
+    private void checkGeoApproximation(S2Point point, S2Polygon polygon, CandidateSet results,
+                                       CandidateSet accepted, int productIndex, QueryProfile profile) throws IOException {
         if (point != null) {
             if (index.approximationContainsPoint(productIndex, point)) {
                 results.add(productIndex);
+                checkInterior(point, null, accepted, productIndex);
+                profile.numCandidates++;
             }
         } else if (polygon != null) {
             if (index.approximationIntersectsPolygon(productIndex, polygon)) {
                 results.add(productIndex);
+                checkInterior(null, polygon, accepted, productIndex);
+                profile.numCandidates++;
             }
         } else {
             results.add(productIndex);
+            profile.numCandidates++;
         }
     }
 
-    private List<String> testPolygonOnData( List<Integer> uniqueProductList, S2Polygon searchPolygon, int numResults) throws IOException {
-        Integer[] uniqueProductIDs = uniqueProductList.toArray(new Integer[0]);
-        Arrays.sort(uniqueProductIDs, Integer::compare);
+    private void checkInterior(S2Point point, S2Polygon polygon, CandidateSet accepted, int productIndex) throws IOException {
+        if (point != null ? index.interiorContainsPoint(productIndex, point) : index.interiorIntersectsPolygon(productIndex, polygon)) {
+            accepted.add(productIndex);
+        }
+    }
 
-        List<String> matches = new ArrayList<>();
-        for (Integer productID : uniqueProductIDs) {
-            index.readEntry(productID);
-            if (searchPolygon == null || index.getCurrentPolygon().intersects(searchPolygon)) {
-                matches.add(index.getCurrentPath());
-                if (matches.size() == numResults) {
+    private void testPolygonOnData(CandidateSet productIDs, CandidateSet accepted,
+                                   S2Polygon searchPolygon, ResultSink sink, int maxNumResults,
+                                   QueryProfile profile) throws IOException {
+        S2LatLngRect searchRect = searchPolygon != null ? searchPolygon.getRectBound() : null;
+        testOnData(productIDs.toArray(), accepted, () -> {
+            if (searchPolygon == null) {
+                return (candidate, cursor) -> true;
+            }
+            S2Polygon testPolygon = copyOf(searchPolygon);
+            // the bounding rectangles are checked first, without decoding the polygon
+            return (candidate, cursor) -> cursor.getCurrentRectBound().intersects(searchRect)
+                    && cursor.getCurrentPolygon().intersects(testPolygon);
+        }, sink, maxNumResults, profile);
+    }
+
+    /**
+     * S2Loop builds its vertex map and edge index lazily and without synchronization,
+     * so each thread tests on its own copy. The copy constructors of S2Polygon and S2Loop would share them.
+     */
+    private static S2Polygon copyOf(S2Polygon polygon) {
+        List<S2Loop> loops = new ArrayList<>(polygon.numLoops());
+        for (int i = 0; i < polygon.numLoops(); i++) {
+            S2Loop loop = polygon.loop(i);
+            List<S2Point> vertices = new ArrayList<>(loop.numVertices());
+            for (int j = 0; j < loop.numVertices(); j++) {
+                vertices.add(loop.vertex(j));
+            }
+            loops.add(new S2Loop(vertices));
+        }
+        return new S2Polygon(loops);
+    }
+
+    private void testPointsOnData(CandidatePoints candidates, CandidateSet accepted,
+                                  S2Point[] points, ResultSink sink, int maxNumResults,
+                                  QueryProfile profile) throws IOException {
+        int[] productStarts = candidates.getProductStarts();
+        S2LatLng[] latLngs = new S2LatLng[points.length];
+        for (int i = 0; i < points.length; i++) {
+            latLngs[i] = new S2LatLng(points[i]);
+        }
+        int[] pointIndices = candidates.getPointIndices();
+        ExactTest exactTest = (candidate, cursor) ->
+                cursor.currentPolygonContainsAny(points, latLngs, pointIndices,
+                                                 productStarts[candidate], productStarts[candidate + 1]);
+        testOnData(candidates.getProductIndices(), accepted, () -> exactTest, sink, maxNumResults, profile);
+    }
+
+    /**
+     * The candidates in {@code accepted} match without the exact test, only their path is read.
+     *
+     * @param exactTests creates the exact test for each thread
+     */
+    private void testOnData(int[] productIDs, CandidateSet accepted, Supplier<ExactTest> exactTests,
+                            ResultSink sink, int maxNumResults, QueryProfile profile) throws IOException {
+        long dataStart = System.nanoTime();
+        long blocksRead = index.getNumBlocksRead();
+        long bytesRead = index.getNumBytesRead();
+        long pathDecodeNanos = index.getPathDecodeNanos();
+        try {
+            boolean[] isAccepted = accepted.isEmpty() ? null : isAccepted(productIDs, accepted);
+            testOnData(productIDs, isAccepted, exactTests, limit(sink, maxNumResults), maxNumResults, profile);
+        } finally {
+            profile.dataNanos += System.nanoTime() - dataStart;
+            profile.numBlocksRead += index.getNumBlocksRead() - blocksRead;
+            profile.numBytesRead += index.getNumBytesRead() - bytesRead;
+            profile.pathDecodeNanos += index.getPathDecodeNanos() - pathDecodeNanos;
+        }
+    }
+
+    private void testOnData(int[] productIDs, boolean[] isAccepted, Supplier<ExactTest> exactTests, ResultSink limitedSink,
+                            int maxNumResults, QueryProfile profile) throws IOException {
+        if (executor == null || parallelism < 2 || productIDs.length < 2 * MIN_PRODUCTS_PER_TASK || cursorIndex == null || !cursorIndex.supportsCursors()) {
+            index.planEntries(productIDs);
+            testOnData(productIDs, 0, productIDs.length, isAccepted, exactTests.get(), index, limitedSink, () -> false, profile);
+            return;
+        }
+        int[] taskStarts = splitAtZones(productIDs);
+        int numTasks = taskStarts.length - 1;
+        QueryProfile[] taskProfiles = new QueryProfile[numTasks];
+        // set when the results are complete or failed, running tasks stop then
+        AtomicBoolean stopped = new AtomicBoolean();
+        List<Future<List<String>>> futures = new ArrayList<>(numTasks);
+        try {
+            for (int task = 0; task < numTasks; task++) {
+                int taskIndex = task;
+                taskProfiles[task] = new QueryProfile();
+                futures.add(executor.submit(() -> {
+                    List<String> matches = new ArrayList<>();
+                    testOnData(productIDs, taskStarts[taskIndex], taskStarts[taskIndex + 1], isAccepted, exactTests.get(),
+                               cursorIndex.newCursor(), limit(matches::add, maxNumResults), stopped::get,
+                               taskProfiles[taskIndex]);
                     return matches;
+                }));
+            }
+            // the results of a task are delivered when it is done and all tasks before it are delivered
+            for (int task = 0; task < numTasks; task++) {
+                List<String> matches = awaitTask(futures.get(task));
+                profile.add(taskProfiles[task]);
+                for (String match : matches) {
+                    if (!limitedSink.accept(match)) {
+                        return;
+                    }
                 }
             }
+        } finally {
+            stopped.set(true);
+            for (Future<List<String>> future : futures) {
+                future.cancel(false);
+            }
         }
-        return matches;
     }
 
-    private List<String> testPointsOnData(Map<Integer, List<S2Point >> candidatesMap, int maxNumResults) throws IOException {
-        Integer[] uniqueProductIDs = candidatesMap.keySet().toArray(new Integer[0]);
-        Arrays.sort(uniqueProductIDs, Integer::compareTo);
+    /**
+     * @return A sink that stops the query after maxNumResults paths.
+     */
+    private static ResultSink limit(ResultSink sink, int maxNumResults) {
+        int[] numResults = {0};
+        return path -> sink.accept(path) && ++numResults[0] != maxNumResults;
+    }
 
-        List<String> matches = new ArrayList<>();
-        for (Integer productID : uniqueProductIDs) {
-            index.readEntry(productID);
-
-            S2Polygon polygon = index.getCurrentPolygon();
-            List<S2Point> s2Points = candidatesMap.get(productID);
-            boolean pointInPolygon = false;
-            for (S2Point s2Point : s2Points) {
-                if (polygon.contains(s2Point)) {
-                    pointInPolygon = true;
-                    break;
+    private static boolean[] isAccepted(int[] productIDs, CandidateSet accepted) {
+        // looked up here, the set is not thread safe
+        boolean[] isAccepted = new boolean[productIDs.length];
+        for (int candidate = 0; candidate < productIDs.length; candidate++) {
+            isAccepted[candidate] = accepted.contains(productIDs[candidate]);
+        }
+        return isAccepted;
+    }
+
+    /**
+     * @param isAccepted the candidates that match without the exact test, {@code null} if there are none
+     * @param profile    receives the counters of the candidates tested, only used by one thread
+     */
+    private static void testOnData(int[] productIDs, int from, int to, boolean[] isAccepted, ExactTest exactTest,
+                                   EntryCursor cursor, ResultSink sink, BooleanSupplier cancelled,
+                                   QueryProfile profile) throws IOException {
+        for (int candidate = from; candidate < to && !cancelled.getAsBoolean(); candidate++) {
+            cursor.readEntry(productIDs[candidate]);
+            boolean matches;
+            if (isAccepted != null && isAccepted[candidate]) {
+                profile.numAccepted++;
+                matches = true;
+            } else {
+                long testStart = System.nanoTime();
+                matches = exactTest.test(candidate, cursor);
+                profile.exactTestNanos += System.nanoTime() - testStart;
+                profile.numExactTests++;
+            }
+            if (matches) {
+                profile.numMatches++;
+                long pathStart = System.nanoTime();
+                String path = cursor.getCurrentPath();
+                profile.pathDecodeNanos += System.nanoTime() - pathStart;
+                if (!sink.accept(path)) {
+                    return;
                 }
             }
-            if (pointInPolygon) {
-                matches.add(index.getCurrentPath());
-                if (matches.size() == maxNumResults) {
-                    return matches;
+        }
+    }
+
+    /**
+     * @return The start of each task in the candidates and the number of candidates at the end.
+     * Tasks end at zone boundaries, so that a block is read by one task only.
+     */
+    private int[] splitAtZones(int[] productIDs) throws IOException {
+        int numZones = zonedIndex != null ? zonedIndex.numZones() : 0;
+        int targetSize = Math.max(MIN_PRODUCTS_PER_TASK, productIDs.length / (TASKS_PER_THREAD * parallelism));
+        List<Integer> taskStarts = new ArrayList<>();
+        taskStarts.add(0);
+        int taskStart = 0;
+        int lastZone = -1;
+        for (int i = 0; i < productIDs.length; i++) {
+            if (i - taskStart >= targetSize) {
+                int zone = numZones > 0 ? zonedIndex.getZone(productIDs[i]) : -1;
+                if (zone == -1 || (lastZone != -1 && zone != lastZone)) {
+                    taskStarts.add(i);
+                    taskStart = i;
+                    lastZone = -1;
+                    continue;
                 }
+                lastZone = zone;
             }
         }
-        return matches;
+        taskStarts.add(productIDs.length);
+        int[] result = new int[taskStarts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = taskStarts.get(i);
+        }
+        return result;
+    }
+
+    private static List<String> awaitTask(Future<List<String>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while testing candidates");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private interface ExactTest {
+        /**
+         * @param candidate the position of the product in the candidates
+         * @param cursor    the cursor, positioned at the product
+         */
+        boolean test(int candidate, EntryCursor cursor) throws IOException;
     }
 }
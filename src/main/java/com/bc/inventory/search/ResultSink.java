@@ -0,0 +1,15 @@
+package com.bc.inventory.search;
+
+import java.io.IOException;
+
+/**
+ * Receives the paths of the matching products of a query, as soon as each of them is found.
+ */
+@FunctionalInterface
+public interface ResultSink {
+
+    /**
+     * @return {@code false} to stop the query, no more paths are delivered then
+     */
+    boolean accept(String path) throws IOException;
+}
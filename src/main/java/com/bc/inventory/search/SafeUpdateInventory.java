@@ -11,6 +11,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -20,16 +21,33 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
+/**
+ * An inventory of a directory, updated from CSV files, which can be queried while it is updated.
+ * <p>
+ * Without segments, an update writes the complete index to {@code geo_index.new}, which is then renamed to the older
+ * one of {@code geo_index.a} and {@code geo_index.b}. Queries read the newer one, so they always see a complete index.
+ * <p>
+ * With a {@link #setCompactionPolicy(CompactionPolicy) compaction policy}, an update writes only its new products
+ * as an immutable segment {@code geo_segment.NNNNNN}. The live segments are listed in a manifest, which is swapped
+ * the same way between {@code geo_segments.a} and {@code geo_segments.b}. Queries read all live segments.
+ * The policy merges segments into larger ones, after an update or in the background.
+ * Segments that are no longer listed in either of the manifests are deleted.
+ */
 public class SafeUpdateInventory implements Inventory {
 
     private static final DateFormat ATTIC_DATE_FORMAT = TimeUtils.createDateFormat("yyyy-MM-dd_HH-mm-ss_SSS");
+    private static final String SEGMENT_PREFIX = "geo_segment.";
 
     private final StreamFactory streamFactory;
     private final String dbDir;
     private final String indexFilenameA;
     private final String indexFilenameB;
     private final String indexFilenameNew;
+    private final String manifestFilenameA;
+    private final String manifestFilenameB;
+    private final String manifestFilenameNew;
     private final int maxLevel;
     private final boolean useIndex;
     private boolean verbose;
@@ -37,6 +55,14 @@ public class SafeUpdateInventory implements Inventory {
     private String updatePrefix;
     private String atticPrefix;
     private String atticSuffix;
+    private int ingestThreads;
+    private QueryResultCache resultCache;
+    private CompactionPolicy compactionPolicy;
+    private ExecutorService compactionExecutor;
+    // guards reading and writing the manifest, one compaction at a time
+    private final Object manifestLock = new Object();
+    private final Object compactionLock = new Object();
+    private int lastSegmentNumber;
 
     public SafeUpdateInventory(StreamFactory streamFactory, String dbDir) {
         this(streamFactory, dbDir, 4, true);
@@ -48,6 +74,9 @@ public class SafeUpdateInventory implements Inventory {
         this.indexFilenameA = dbDir + "/geo_index.a";
         this.indexFilenameB = dbDir + "/geo_index.b";
         this.indexFilenameNew = dbDir + "/geo_index.new";
+        this.manifestFilenameA = dbDir + "/geo_segments.a";
+        this.manifestFilenameB = dbDir + "/geo_segments.b";
+        this.manifestFilenameNew = dbDir + "/geo_segments.new";
         this.maxLevel = maxLevel;
         this.useIndex = useIndex;
         this.verbose = true;
@@ -56,6 +85,7 @@ public class SafeUpdateInventory implements Inventory {
         this.updatePrefix = "scan.";
         this.atticPrefix = "scan.";
         this.atticSuffix = ".csv";
+        this.ingestThreads = Runtime.getRuntime().availableProcessors();
     }
 
     public void setVerbose(boolean verbose) {
@@ -78,6 +108,45 @@ public class SafeUpdateInventory implements Inventory {
         this.atticSuffix = atticSuffix;
     }
 
+    /**
+     * Sets the number of threads used to parse and prepare the CSV entries of an update, 1 to use none.
+     * The index is the same for any number of threads.
+     */
+    public void setIngestThreads(int ingestThreads) {
+        this.ingestThreads = ingestThreads;
+    }
+
+    /**
+     * Sets a cache for the results of queries, {@code null} to disable caching (the default).
+     * The cached results are dropped when the index files or the update files change.
+     * A cache should only be used by one inventory.
+     */
+    public void setResultCache(QueryResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public QueryResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the policy for merging segments and switches updates to segments, {@code null} (the default) updates
+     * the complete index. The newest index of an inventory without segments becomes its first segment.
+     * An inventory that has segments keeps them, also without a policy, then the {@link SizeTieredCompactionPolicy}
+     * with its defaults is used.
+     */
+    public void setCompactionPolicy(CompactionPolicy compactionPolicy) {
+        this.compactionPolicy = compactionPolicy;
+    }
+
+    /**
+     * Sets an executor for compacting the segments in the background after an update, {@code null} (the default)
+     * compacts before the update returns. Errors of a background compaction are printed, the segments stay as they were.
+     */
+    public void setCompactionExecutor(ExecutorService compactionExecutor) {
+        this.compactionExecutor = compactionExecutor;
+    }
+
     @Override
     public int updateIndex(String... filenames) throws IOException {
         long t1 = System.currentTimeMillis();
@@ -89,11 +158,17 @@ public class SafeUpdateInventory implements Inventory {
         } else {
             printVerbose("updateIndex: update with " + Arrays.toString(filenames));
         }
+        if (compactionPolicy != null || readManifest() != null) {
+            int addedProducts = updateSegments(filenames);
+            long t2 = System.currentTimeMillis();
+            printVerbose(String.format("updateIndex: took %,d ms", t2 - t1));
+            return addedProducts;
+        }
         String[] indexFiles = streamFactory.listNewestFirst(indexFilenameA, indexFilenameB);
         GeoDb compressedDb = openCompressedDB(indexFiles).orElseGet(() -> new CompressedGeoDb(maxLevel, useIndex));
         GeoDbUpdater dBUpdater = compressedDb.getDbUpdater();
         
-        int addedProducts = SimpleInventory.updateFromCSV(dBUpdater, filenames, streamFactory);
+        int addedProducts = SimpleInventory.updateFromCSV(dBUpdater, filenames, streamFactory, ingestThreads);
         if (addedProducts == 0) {
             printVerbose("updateIndex: update file contains no entries, skip writing");
             compressedDb.close();
@@ -101,15 +176,17 @@ public class SafeUpdateInventory implements Inventory {
             return addedProducts;
         }
         printVerbose(String.format("updateIndex: added %s products, new size %s", addedProducts, compressedDb.size()));
-        compressedDb.close();
 
         if (streamFactory.exists(indexFilenameNew)) {
             System.err.println("'new' index does already exist. File will be overwritten: " + indexFilenameNew);
         }
 
+        // the old DB is merged with the added products while writing, it is closed afterwards
         try (OutputStream os = streamFactory.createOutputStream(indexFilenameNew)) {
             printVerbose("updateIndex: writing compressed DB to " + indexFilenameNew);
             dBUpdater.write(os);
+        } finally {
+            compressedDb.close();
         }
 
         // remove older one from ".a" and ".b"
@@ -135,6 +212,195 @@ public class SafeUpdateInventory implements Inventory {
         return addedProducts;
     }
 
+    /**
+     * Writes the products of the update files as a new segment and adds it to the manifest.
+     */
+    private int updateSegments(String[] filenames) throws IOException {
+        CompressedGeoDb segmentDb = new CompressedGeoDb(maxLevel, useIndex);
+        GeoDbUpdater dbUpdater = segmentDb.getDbUpdater();
+        int addedProducts = SimpleInventory.updateFromCSV(dbUpdater, filenames, streamFactory, ingestThreads);
+        if (addedProducts == 0) {
+            printVerbose("updateIndex: update file contains no entries, skip writing");
+            moveScansToAttic(filenames);
+            return addedProducts;
+        }
+        removeLiveProducts(segmentDb);
+        if (segmentDb.size() == 0) {
+            printVerbose("updateIndex: all products are already in the inventory, skip writing");
+            moveScansToAttic(filenames);
+            return addedProducts;
+        }
+        String segmentName = nextSegmentName();
+        try (OutputStream os = streamFactory.createOutputStream(dbDir + "/" + segmentName)) {
+            printVerbose("updateIndex: writing segment " + segmentName);
+            dbUpdater.write(os);
+        }
+        synchronized (manifestLock) {
+            SegmentManifest manifest = readManifest();
+            if (manifest == null) {
+                manifest = createManifest();
+            }
+            writeManifest(manifest.append(segmentName, segmentDb.size()));
+        }
+        moveScansToAttic(filenames);
+
+        if (compactionExecutor != null) {
+            compactionExecutor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("compaction failed: " + e);
+                }
+            });
+        } else {
+            compact();
+        }
+        return addedProducts;
+    }
+
+    /**
+     * Drops the products with a path of a live segment, like an update of the complete index keeps the entry
+     * already in the index. So the results are the same before and after merging the segments.
+     */
+    private void removeLiveProducts(CompressedGeoDb segmentDb) throws IOException {
+        List<CompressedGeoDb> liveDbs = openIndexDBs();
+        try {
+            int numRemoved = segmentDb.removeEntriesOf(liveDbs);
+            printVerbose(String.format("updateIndex: %s products are already in the inventory", numRemoved));
+        } finally {
+            for (GeoDb liveDb : liveDbs) {
+                liveDb.close();
+            }
+        }
+    }
+
+    /**
+     * Merges segments as long as the compaction policy selects some. Queries and updates can go on meanwhile,
+     * the merged segment replaces the segments in the manifest once it is written.
+     *
+     * @return The number of merges.
+     */
+    public int compact() throws IOException {
+        CompactionPolicy policy = compactionPolicy != null ? compactionPolicy : new SizeTieredCompactionPolicy();
+        synchronized (compactionLock) {
+            int numMerges = 0;
+            while (true) {
+                SegmentManifest manifest = readManifest();
+                int[] range = manifest != null ? policy.select(manifest.getNumProducts()) : null;
+                if (range == null) {
+                    return numMerges;
+                }
+                List<String> mergedNames = manifest.getNames().subList(range[0], range[1]);
+                String segmentName = nextSegmentName();
+                printVerbose(String.format("compact: merging %s into %s", mergedNames, segmentName));
+                int numProducts = mergeSegments(mergedNames, dbDir + "/" + segmentName);
+                synchronized (manifestLock) {
+                    SegmentManifest current = readManifest();
+                    // updates only append segments
+                    int from = current.indexOf(mergedNames);
+                    if (from == -1) {
+                        throw new IOException("segments changed while merging: " + mergedNames);
+                    }
+                    writeManifest(current.replace(from, from + mergedNames.size(), segmentName, numProducts));
+                }
+                numMerges++;
+            }
+        }
+    }
+
+    /**
+     * @return The number of products of the merged segment.
+     */
+    private int mergeSegments(List<String> segmentNames, String mergedFilename) throws IOException {
+        List<CompressedGeoDb> segmentDbs = new ArrayList<>();
+        try {
+            for (String segmentName : segmentNames) {
+                segmentDbs.add(openCompressedDB(dbDir + "/" + segmentName));
+            }
+            try (OutputStream os = streamFactory.createOutputStream(mergedFilename)) {
+                CompressedGeoDb.merge(segmentDbs, os);
+            }
+        } finally {
+            for (GeoDb segmentDb : segmentDbs) {
+                segmentDb.close();
+            }
+        }
+        CompressedGeoDb mergedDb = openCompressedDB(mergedFilename);
+        int numProducts = mergedDb.size();
+        mergedDb.close();
+        return numProducts;
+    }
+
+    /**
+     * @return The current manifest, the one of the higher generation, {@code null} if there are no segments.
+     */
+    private SegmentManifest readManifest() throws IOException {
+        SegmentManifest manifestA = SegmentManifest.read(streamFactory, manifestFilenameA);
+        SegmentManifest manifestB = SegmentManifest.read(streamFactory, manifestFilenameB);
+        if (manifestA == null || manifestB == null) {
+            return manifestA != null ? manifestA : manifestB;
+        }
+        return manifestA.getGeneration() >= manifestB.getGeneration() ? manifestA : manifestB;
+    }
+
+    /**
+     * The first manifest of an inventory, holding the newest index as its only segment, if there is one.
+     */
+    private SegmentManifest createManifest() throws IOException {
+        String[] indexFiles = streamFactory.listNewestFirst(indexFilenameA, indexFilenameB);
+        if (indexFiles.length == 0) {
+            return new SegmentManifest(0, Collections.emptyList(), new int[0]);
+        }
+        CompressedGeoDb indexDb = openCompressedDB(indexFiles[0]);
+        int numProducts = indexDb.size();
+        indexDb.close();
+        String name = indexFiles[0].substring(indexFiles[0].lastIndexOf('/') + 1);
+        return new SegmentManifest(0, Collections.singletonList(name), new int[]{numProducts});
+    }
+
+    /**
+     * Writes the manifest to the older of the two manifest files, by way of the 'new' file.
+     * The segments only listed in the overwritten manifest are deleted, the previous manifest stays complete.
+     */
+    private void writeManifest(SegmentManifest manifest) throws IOException {
+        SegmentManifest manifestA = SegmentManifest.read(streamFactory, manifestFilenameA);
+        SegmentManifest manifestB = SegmentManifest.read(streamFactory, manifestFilenameB);
+        boolean writeA = manifestA == null || (manifestB != null && manifestA.getGeneration() < manifestB.getGeneration());
+        SegmentManifest overwritten = writeA ? manifestA : manifestB;
+        SegmentManifest previous = writeA ? manifestB : manifestA;
+        String manifestFilename = writeA ? manifestFilenameA : manifestFilenameB;
+
+        manifest.write(streamFactory, manifestFilenameNew);
+        printVerbose(String.format("segments: renaming  (%s) -> (%s) %s", manifestFilenameNew, manifestFilename, manifest));
+        streamFactory.rename(manifestFilenameNew, manifestFilename);
+
+        if (overwritten != null) {
+            for (String name : overwritten.getNames()) {
+                if (!manifest.getNames().contains(name) && (previous == null || !previous.getNames().contains(name))) {
+                    printVerbose("segments: deleting " + name);
+                    streamFactory.delete(dbDir + "/" + name);
+                }
+            }
+        }
+    }
+
+    private String nextSegmentName() throws IOException {
+        synchronized (manifestLock) {
+            for (String manifestFilename : new String[]{manifestFilenameA, manifestFilenameB}) {
+                SegmentManifest manifest = SegmentManifest.read(streamFactory, manifestFilename);
+                if (manifest != null) {
+                    for (String name : manifest.getNames()) {
+                        if (name.startsWith(SEGMENT_PREFIX)) {
+                            lastSegmentNumber = Math.max(lastSegmentNumber, Integer.parseInt(name.substring(SEGMENT_PREFIX.length())));
+                        }
+                    }
+                }
+            }
+            lastSegmentNumber++;
+            return String.format("%s%06d", SEGMENT_PREFIX, lastSegmentNumber);
+        }
+    }
+
     private void moveScansToAttic(String[] filenames) throws IOException {
         String atticName = atticPrefix + ATTIC_DATE_FORMAT.format(new Date()) + atticSuffix;
         String atticPath = "/attic/" + atticName;
@@ -148,39 +414,141 @@ public class SafeUpdateInventory implements Inventory {
 
     @Override
     public List<String> query(Constrain constrain) throws IOException {
+        List<String> result = new ArrayList<>();
+        query(constrain, result::add);
+        return result;
+    }
+
+    /**
+     * Delivers the paths as soon as they are found. A path found in more than one of the DBs is delivered once,
+     * so the paths delivered are remembered when there is more than one DB.
+     */
+    @Override
+    public void query(Constrain constrain, ResultSink sink) throws IOException {
+        query(constrain, sink, new QueryProfile());
+    }
+
+    /**
+     * The profile receives the sum over all DBs, in verbose mode the profile of each DB is printed.
+     * A result taken from the cache adds nothing to the profile.
+     */
+    @Override
+    public void query(Constrain constrain, ResultSink sink, QueryProfile profile) throws IOException {
         if (constrain == null) {
             throw new NullPointerException("constrain");
         }
         long t1 = System.currentTimeMillis();
         printVerbose("query: constrain " + constrain);
-        List<GeoDb> dbList = new ArrayList<>();
-        openCompressedDB().ifPresent(dbList::add);
+        String generation = resultCache != null ? getGeneration() : null;
+        if (generation == null) {
+            queryDBs(constrain, sink, profile);
+        } else {
+            String key = QueryResultCache.createKey(constrain);
+            List<String> cached = resultCache.get(generation, key);
+            if (cached != null) {
+                printVerbose(String.format("query: #results=%d from cache (%s)", cached.size(), resultCache));
+                for (String path : cached) {
+                    if (!sink.accept(path)) {
+                        break;
+                    }
+                }
+            } else {
+                List<String> paths = new ArrayList<>();
+                boolean[] complete = {true};
+                queryDBs(constrain, path -> {
+                    paths.add(path);
+                    complete[0] = sink.accept(path);
+                    return complete[0];
+                }, profile);
+                // not cached if the sink stopped early or the files changed meanwhile
+                if (complete[0] && generation.equals(getGeneration())) {
+                    resultCache.put(generation, key, Collections.unmodifiableList(paths));
+                }
+            }
+        }
+        long t2 = System.currentTimeMillis();
+        printVerbose(String.format("query: took %,d ms", t2 - t1));
+    }
+
+    private void queryDBs(Constrain constrain, ResultSink sink, QueryProfile profile) throws IOException {
+        List<GeoDb> dbList = new ArrayList<>(openIndexDBs());
         Collections.addAll(dbList, openUpdateDBs());
         
         if (dbList.isEmpty() && failOnMissingDB) {
             throw new IOException(String.format("Inventory does not exist: '%s'", dbDir));
         }
 
-        Set<String> resultSet = new HashSet<>();
+        DistinctSink distinctSink = new DistinctSink(sink, dbList.size() > 1, constrain.getMaxNumResults());
         try {
-            for (int dbIndex = 0; dbIndex < dbList.size(); dbIndex++) {
+            for (int dbIndex = 0; dbIndex < dbList.size() && !distinctSink.stopped; dbIndex++) {
                 GeoDb geoDb = dbList.get(dbIndex);
                 String dbClassName = geoDb.getClass().getSimpleName();
-                List<String> result = geoDb.query(constrain);
-                int numResults = result.size();
+                distinctSink.numDbResults = 0;
+                QueryProfile dbProfile = new QueryProfile();
+                geoDb.query(constrain, distinctSink, dbProfile);
+                profile.add(dbProfile);
+                int numResults = distinctSink.numDbResults;
                 if (numResults > 0) {
                     printVerbose(String.format("query: (db %s : %s) #results=%d", dbIndex, dbClassName, numResults));
-                    resultSet.addAll(result);
                 }
+                printVerbose(String.format("query: (db %s : %s) profile %s", dbIndex, dbClassName, dbProfile));
             }
         } finally {
             for (GeoDb geoDb : dbList) {
                 geoDb.close();
             }
         }
-        long t2 = System.currentTimeMillis();
-        printVerbose(String.format("query: took %,d ms", t2 - t1));
-        return new ArrayList<>(resultSet);
+    }
+
+    /**
+     * @return The names and versions of the index and update files, {@code null} if a version is unknown.
+     */
+    private String getGeneration() throws IOException {
+        // segments are never changed, the manifests list them
+        String[] indexFiles = streamFactory.listNewestFirst(indexFilenameA, indexFilenameB, manifestFilenameA, manifestFilenameB);
+        String[] updateFiles = listIncrementalFiles();
+        Arrays.sort(updateFiles);
+        String[] filenames = new String[indexFiles.length + updateFiles.length];
+        System.arraycopy(indexFiles, 0, filenames, 0, indexFiles.length);
+        System.arraycopy(updateFiles, 0, filenames, indexFiles.length, updateFiles.length);
+        String[] versions = new String[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            versions[i] = streamFactory.getVersion(filenames[i]);
+            if (versions[i] == null) {
+                return null;
+            }
+        }
+        return QueryResultCache.createGeneration(filenames, versions);
+    }
+
+    /**
+     * Passes each path on once, and at most maxNumResults paths over all DBs.
+     */
+    private static class DistinctSink implements ResultSink {
+
+        private final ResultSink sink;
+        private final Set<String> delivered;
+        private final int maxNumResults;
+        private int numResults;
+        private int numDbResults;
+        private boolean stopped;
+
+        DistinctSink(ResultSink sink, boolean severalDbs, int maxNumResults) {
+            this.sink = sink;
+            this.delivered = severalDbs ? new HashSet<>() : null;
+            this.maxNumResults = maxNumResults;
+        }
+
+        @Override
+        public boolean accept(String path) throws IOException {
+            numDbResults++;
+            if (delivered != null && !delivered.add(path)) {
+                return true;
+            }
+            numResults++;
+            stopped = !sink.accept(path) || numResults == maxNumResults;
+            return !stopped;
+        }
     }
 
     @Override
@@ -194,9 +562,7 @@ public class SafeUpdateInventory implements Inventory {
             closeOS = true;
         }
         try (Writer csvWriter = new BufferedWriter(new OutputStreamWriter(os))) {
-            Optional<GeoDb> compressedDB = openCompressedDB();
-            if (compressedDB.isPresent()) {
-                GeoDb geoDb = compressedDB.get();
+            for (GeoDb geoDb : openIndexDBs()) {
                 SimpleInventory.dumpEntries(geoDb.entries(), csvWriter);
                 geoDb.close();
             }
@@ -212,25 +578,54 @@ public class SafeUpdateInventory implements Inventory {
         }
     }
 
-    private Optional<GeoDb> openCompressedDB() throws IOException {
-        return openCompressedDB(streamFactory.listNewestFirst(indexFilenameA, indexFilenameB));
+    /**
+     * @return The live segments oldest first, or the newest index if there are no segments.
+     */
+    private List<CompressedGeoDb> openIndexDBs() throws IOException {
+        List<CompressedGeoDb> dbList = new ArrayList<>();
+        SegmentManifest manifest = readManifest();
+        if (manifest == null) {
+            openCompressedDB(streamFactory.listNewestFirst(indexFilenameA, indexFilenameB)).ifPresent(dbList::add);
+            return dbList;
+        }
+        printVerbose("openIndexDBs: segments " + manifest);
+        try {
+            for (String name : manifest.getNames()) {
+                dbList.add(openCompressedDB(dbDir + "/" + name));
+            }
+        } catch (IOException | RuntimeException e) {
+            for (GeoDb geoDb : dbList) {
+                geoDb.close();
+            }
+            throw e;
+        }
+        return dbList;
     }
 
-    private Optional<GeoDb> openCompressedDB(String[] indexFiles) throws IOException {
+    private Optional<CompressedGeoDb> openCompressedDB(String[] indexFiles) throws IOException {
         printVerbose(indexFilenameA);
         printVerbose(indexFilenameB);
         printVerbose("openCompressedDB from: " + Arrays.toString(indexFiles));
         if (indexFiles.length > 0) {
             // read the newest DB
-            InputStream is = streamFactory.createInputStream(indexFiles[0]);
-            GeoDb compressedGeoDb = new CompressedGeoDb(maxLevel, useIndex);
-            compressedGeoDb.open(is);
+            CompressedGeoDb compressedGeoDb = openCompressedDB(indexFiles[0]);
             printVerbose("openCompressedDB size: " + compressedGeoDb.size());
             return Optional.of(compressedGeoDb);
         }
         return Optional.empty();
     }
 
+    private CompressedGeoDb openCompressedDB(String filename) throws IOException {
+        CompressedGeoDb compressedGeoDb = new CompressedGeoDb(maxLevel, useIndex);
+        FileChannel channel = streamFactory.createFileChannel(filename);
+        if (channel != null) {
+            compressedGeoDb.open(channel);
+        } else {
+            compressedGeoDb.open(streamFactory.createInputStream(filename));
+        }
+        return compressedGeoDb;
+    }
+
     private GeoDb[] openUpdateDBs() throws IOException {
         String[] updateFiles = listIncrementalFiles();
         GeoDb[] updateDBs = new GeoDb[updateFiles.length];
@@ -0,0 +1,136 @@
+package com.bc.inventory.search;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The live segments of a {@link SafeUpdateInventory}, oldest first, with the number of products of each segment.
+ * The manifest is a text file:
+ * <pre>
+ *   GEOSEGMENTS001
+ *   generation
+ *   name TAB numProducts      one line per segment, names relative to the inventory directory
+ * </pre>
+ * Like the index without segments, a manifest is never overwritten in place. The generation is increased
+ * with each change and tells which of the two manifest files is the current one.
+ */
+class SegmentManifest {
+
+    static final String FILE_MARKER = "GEOSEGMENTS001";
+
+    private final long generation;
+    private final List<String> names;
+    private final int[] numProducts;
+
+    SegmentManifest(long generation, List<String> names, int[] numProducts) {
+        this.generation = generation;
+        this.names = Collections.unmodifiableList(new ArrayList<>(names));
+        this.numProducts = numProducts.clone();
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    List<String> getNames() {
+        return names;
+    }
+
+    int[] getNumProducts() {
+        return numProducts.clone();
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    /**
+     * @return The next generation, with the segment added as the newest.
+     */
+    SegmentManifest append(String name, int segmentProducts) {
+        return replace(names.size(), names.size(), name, segmentProducts);
+    }
+
+    /**
+     * @return The next generation, with the segments from {@code from} to {@code to} replaced by the given one.
+     */
+    SegmentManifest replace(int from, int to, String name, int segmentProducts) {
+        List<String> newNames = new ArrayList<>(names.subList(0, from));
+        newNames.add(name);
+        newNames.addAll(names.subList(to, names.size()));
+        int[] newNumProducts = new int[newNames.size()];
+        System.arraycopy(numProducts, 0, newNumProducts, 0, from);
+        newNumProducts[from] = segmentProducts;
+        System.arraycopy(numProducts, to, newNumProducts, from + 1, numProducts.length - to);
+        return new SegmentManifest(generation + 1, newNames, newNumProducts);
+    }
+
+    /**
+     * @return The position of the adjacent segments in this manifest, -1 if they are not all there in this order.
+     */
+    int indexOf(List<String> segmentNames) {
+        return Collections.indexOfSubList(names, segmentNames);
+    }
+
+    /**
+     * @return The manifest, {@code null} if the file does not exist.
+     */
+    static SegmentManifest read(StreamFactory streamFactory, String path) throws IOException {
+        if (!streamFactory.exists(path)) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(streamFactory.createInputStream(path),
+                                                                              StandardCharsets.UTF_8))) {
+            if (!FILE_MARKER.equals(reader.readLine())) {
+                throw new IOException("not a segment manifest: " + path);
+            }
+            String generationLine = reader.readLine();
+            if (generationLine == null) {
+                throw new IOException("segment manifest without generation: " + path);
+            }
+            long generation = Long.parseLong(generationLine);
+            List<String> names = new ArrayList<>();
+            List<Integer> numProducts = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 2) {
+                    throw new IOException("invalid segment line '" + line + "' in " + path);
+                }
+                names.add(fields[0]);
+                numProducts.add(Integer.parseInt(fields[1]));
+            }
+            return new SegmentManifest(generation, names, numProducts.stream().mapToInt(Integer::intValue).toArray());
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid segment manifest: " + path, e);
+        }
+    }
+
+    void write(StreamFactory streamFactory, String path) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(streamFactory.createOutputStream(path),
+                                                                       StandardCharsets.UTF_8))) {
+            writer.write(FILE_MARKER + "\n");
+            writer.write(generation + "\n");
+            for (int i = 0; i < names.size(); i++) {
+                writer.write(names.get(i) + "\t" + numProducts[i] + "\n");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("generation " + generation + " [");
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(i > 0 ? ", " : "").append(names.get(i)).append(" (").append(numProducts[i]).append(')');
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -12,7 +12,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -24,6 +26,7 @@ public class SimpleInventory implements Inventory {
     private final String indexFilename;
     private final int maxLevel;
     private final boolean useIndex;
+    private int ingestThreads = Runtime.getRuntime().availableProcessors();
 
     public SimpleInventory(StreamFactory streamFactory, String indexPath) {
         this(streamFactory, indexPath, 4, true);
@@ -36,6 +39,13 @@ public class SimpleInventory implements Inventory {
         this.useIndex = useIndex;
     }
 
+    /**
+     * Sets the number of threads used to parse and prepare the CSV entries of an update, 1 to use none.
+     */
+    public void setIngestThreads(int ingestThreads) {
+        this.ingestThreads = ingestThreads;
+    }
+
     @Override
     public int updateIndex(String... filenames) throws IOException {
         GeoDb compressedGeoDb = new CompressedGeoDb(maxLevel, useIndex);
@@ -44,7 +54,7 @@ public class SimpleInventory implements Inventory {
         }
 
         GeoDbUpdater dbUpdater = compressedGeoDb.getDbUpdater();
-        int addedProducts = updateFromCSV(dbUpdater, filenames, streamFactory);
+        int addedProducts = updateFromCSV(dbUpdater, filenames, streamFactory, ingestThreads);
         compressedGeoDb.close();
 
         OutputStream os = streamFactory.createOutputStream(indexFilename);
@@ -54,13 +64,30 @@ public class SimpleInventory implements Inventory {
 
     @Override
     public List<String> query(Constrain constrain) throws IOException {
+        List<String> result = new ArrayList<>();
+        query(constrain, result::add);
+        return result;
+    }
+
+    @Override
+    public void query(Constrain constrain, ResultSink sink) throws IOException {
+        query(constrain, sink, new QueryProfile());
+    }
+
+    @Override
+    public void query(Constrain constrain, ResultSink sink, QueryProfile profile) throws IOException {
         CompressedGeoDb compressedGeoDb = new CompressedGeoDb(maxLevel, useIndex);
         if (!streamFactory.exists(indexFilename)) {
             throw new IllegalArgumentException("geo index does not exits:" + indexFilename);
         }
-        compressedGeoDb.open(streamFactory.createInputStream(indexFilename));
+        FileChannel channel = streamFactory.createFileChannel(indexFilename);
+        if (channel != null) {
+            compressedGeoDb.open(channel);
+        } else {
+            compressedGeoDb.open(streamFactory.createInputStream(indexFilename));
+        }
         try {
-            return compressedGeoDb.query(constrain);
+            compressedGeoDb.query(constrain, sink, profile);
         } finally {
             compressedGeoDb.close();
         }
@@ -104,6 +131,17 @@ public class SimpleInventory implements Inventory {
         return DATE_FORMAT.format(TimeUtils.minuteTimeAsDate(time));
     }
 
+    /**
+     * Like {@link #updateFromCSV(GeoDbUpdater, String[], StreamFactory)}, with the parsing and preparing
+     * of the entries done by the given number of threads. The result is the same.
+     */
+    static int updateFromCSV(GeoDbUpdater dbUpdater, String[] filenames, StreamFactory streamFactory, int numThreads) throws IOException {
+        if (numThreads <= 1) {
+            return updateFromCSV(dbUpdater, filenames, streamFactory);
+        }
+        return new IngestPipeline(numThreads).addAll(dbUpdater, filenames, streamFactory);
+    }
+
     static int updateFromCSV(GeoDbUpdater dbUpdater, String[] filenames, StreamFactory streamFactory) throws IOException {
         int counter = 0;
         for (String csvFile : filenames) {
@@ -0,0 +1,59 @@
+package com.bc.inventory.search;
+
+/**
+ * Merges adjacent segments of about the same size. The segments are put into tiers by their number of products:
+ * tier 0 holds the segments of up to {@code minProducts} products, each further tier {@code fanout} times as many.
+ * When at least {@code fanout} adjacent segments are in the same tier they are merged, the lowest tier first.
+ * <p>
+ * The merged segment usually moves up one tier, so each product is merged about
+ * log<sub>fanout</sub>(numProducts / minProducts) times and an update costs time proportional to its new products,
+ * amortized. There are less than {@code fanout} segments per tier after compacting.
+ */
+public class SizeTieredCompactionPolicy implements CompactionPolicy {
+
+    public static final int DEFAULT_FANOUT = 4;
+    public static final int DEFAULT_MIN_PRODUCTS = 10000;
+
+    private final int fanout;
+    private final int minProducts;
+
+    public SizeTieredCompactionPolicy() {
+        this(DEFAULT_FANOUT, DEFAULT_MIN_PRODUCTS);
+    }
+
+    public SizeTieredCompactionPolicy(int fanout, int minProducts) {
+        if (fanout < 2) {
+            throw new IllegalArgumentException("fanout must be at least 2: " + fanout);
+        }
+        this.fanout = fanout;
+        this.minProducts = minProducts;
+    }
+
+    @Override
+    public int[] select(int[] numProducts) {
+        int[] selected = null;
+        int selectedTier = Integer.MAX_VALUE;
+        int runStart = 0;
+        for (int i = 1; i <= numProducts.length; i++) {
+            int tier = getTier(numProducts[runStart]);
+            if (i == numProducts.length || getTier(numProducts[i]) != tier) {
+                if (i - runStart >= fanout && tier < selectedTier) {
+                    selected = new int[]{runStart, i};
+                    selectedTier = tier;
+                }
+                runStart = i;
+            }
+        }
+        return selected;
+    }
+
+    int getTier(int numProducts) {
+        int tier = 0;
+        long limit = minProducts;
+        while (numProducts > limit) {
+            tier++;
+            limit *= fanout;
+        }
+        return tier;
+    }
+}
@@ -4,6 +4,7 @@ import javax.imageio.stream.ImageInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Creates stream for the different Inventory implementations.
@@ -14,8 +15,25 @@ public interface StreamFactory {
     
     InputStream createInputStream(String path) throws IOException;
 
+    /**
+     * Creates a channel for reading the given path, which allows the file to be memory mapped.
+     *
+     * @return a readable channel or {@code null} if the storage does not support file channels.
+     */
+    default FileChannel createFileChannel(String path) throws IOException {
+        return null;
+    }
+
     OutputStream createOutputStream(String path) throws IOException;
 
+    /**
+     * @return A token that changes whenever the file is written or replaced, e.g. from its size and modification time,
+     * or {@code null} if the storage can not tell. Used to detect that cached query results are outdated.
+     */
+    default String getVersion(String path) throws IOException {
+        return null;
+    }
+
     boolean exists(String path) throws IOException;
 
     String[] listNewestFirst(String...filenames) throws IOException;
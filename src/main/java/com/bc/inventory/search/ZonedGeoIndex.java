@@ -0,0 +1,34 @@
+package com.bc.inventory.search;
+
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+
+import java.io.IOException;
+
+/**
+ * An index whose products are grouped into zones. Zones are consecutive ranges of products with a summary
+ * of their time and coverage, products in a zone that does not match the query can be skipped altogether.
+ */
+public interface ZonedGeoIndex extends GeoIndex {
+
+    /**
+     * @return The number of zones, 0 if the index has no zones, e.g. a file written without zone maps.
+     */
+    int numZones() throws IOException;
+
+    int getZone(int productIndex) throws IOException;
+
+    int getZoneStart(int zone) throws IOException;
+
+    int getZoneMinStartTime(int zone) throws IOException;
+
+    int getZoneMaxEndTime(int zone) throws IOException;
+
+    default boolean zoneApproximationContainsPoint(int zone, S2Point point) throws IOException {
+        return true;
+    }
+
+    default boolean zoneApproximationIntersectsPolygon(int zone, S2Polygon polygon) throws IOException {
+        return true;
+    }
+}
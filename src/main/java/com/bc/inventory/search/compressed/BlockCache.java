@@ -0,0 +1,80 @@
+package com.bc.inventory.search.compressed;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of decoded blocks of one file, bounded by the estimated number of bytes the blocks use.
+ * When the budget is exceeded the least recently used blocks are evicted.
+ */
+class BlockCache {
+
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, DbFile.Block> blocks;
+    private long numBytes;
+    private long hitCount;
+    private long missCount;
+
+    BlockCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    synchronized DbFile.Block get(int blockId) {
+        DbFile.Block block = blocks.get(blockId);
+        if (block != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return block;
+    }
+
+    /**
+     * Like {@link #get(int)}, but without counting and without changing the access order.
+     */
+    synchronized boolean contains(int blockId) {
+        return blocks.containsKey(blockId);
+    }
+
+    synchronized void put(int blockId, DbFile.Block block) {
+        if (block.getNumBytes() > maxBytes) {
+            return;
+        }
+        DbFile.Block replaced = blocks.put(blockId, block);
+        if (replaced != null) {
+            numBytes -= replaced.getNumBytes();
+        }
+        numBytes += block.getNumBytes();
+        Iterator<Map.Entry<Integer, DbFile.Block>> iterator = blocks.entrySet().iterator();
+        while (numBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Integer, DbFile.Block> eldest = iterator.next();
+            numBytes -= eldest.getValue().getNumBytes();
+            iterator.remove();
+        }
+    }
+
+    synchronized void clear() {
+        blocks.clear();
+        numBytes = 0;
+    }
+
+    synchronized int size() {
+        return blocks.size();
+    }
+
+    synchronized long getNumBytes() {
+        return numBytes;
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+}
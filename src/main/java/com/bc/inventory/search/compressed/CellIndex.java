@@ -0,0 +1,253 @@
+package com.bc.inventory.search.compressed;
+
+import com.bc.inventory.utils.S2Integer;
+import com.bc.inventory.utils.VarInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An inverted index from the S2 integer cells used in the coverages to the entries whose coverage holds the cell.
+ * <pre>
+ *   int numCells
+ *   numCells x (varint difference to the previous cell, varint length of the posting list in bytes)
+ *   posting lists: ascending entry ids, the first one as is, then the differences, varint encoded
+ * </pre>
+ * The cells and the offsets of the posting lists are decoded when the index is opened,
+ * the posting lists only when they are needed.
+ */
+class CellIndex {
+
+    private final int[] cells;
+    private final int[] offsets;
+    private final ByteBuffer postings;
+
+    CellIndex(ByteBuffer bb) {
+        ByteBuffer header = bb.duplicate();
+        int numCells = header.getInt();
+        cells = new int[numCells];
+        offsets = new int[numCells + 1];
+        int cell = 0;
+        for (int i = 0; i < numCells; i++) {
+            cell += VarInt.readUnsigned(header);
+            cells[i] = cell;
+            offsets[i + 1] = offsets[i] + VarInt.readUnsigned(header);
+        }
+        postings = header.slice();
+    }
+
+    int numCells() {
+        return cells.length;
+    }
+
+    /**
+     * @param intCellIds a normalized cell union
+     * @return The sorted ids of all entries whose coverage intersects the given cells.
+     */
+    int[] findIntersecting(int[] intCellIds) {
+        return findIntersecting(intCellIds, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #findIntersecting(int[])}, but only the entries before {@code endEntryId}.
+     * The posting lists are only decoded up to this entry.
+     */
+    int[] findIntersecting(int[] intCellIds, int endEntryId) {
+        BitSet entries = new BitSet();
+        for (int s2CellIdInt : intCellIds) {
+            // the cell itself and all cells it contains
+            int pos = lowerBound(S2Integer.rangeMin(s2CellIdInt));
+            int rangeMax = S2Integer.rangeMax(s2CellIdInt);
+            while (pos < cells.length && cells[pos] <= rangeMax) {
+                addPostings(pos++, endEntryId, entries);
+            }
+            addAncestors(s2CellIdInt, endEntryId, entries);
+        }
+        return entries.stream().toArray();
+    }
+
+    /**
+     * @return The sorted ids of all entries whose coverage contains the given cell.
+     */
+    int[] findContaining(int s2CellIdInt) {
+        return findContaining(s2CellIdInt, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #findContaining(int)}, but only the entries before {@code endEntryId}.
+     */
+    int[] findContaining(int s2CellIdInt, int endEntryId) {
+        BitSet entries = new BitSet();
+        int pos = Arrays.binarySearch(cells, s2CellIdInt);
+        if (pos >= 0) {
+            addPostings(pos, endEntryId, entries);
+        }
+        addAncestors(s2CellIdInt, endEntryId, entries);
+        return entries.stream().toArray();
+    }
+
+    /**
+     * The size of the posting lists that {@link #findIntersecting(int[])} decodes, without decoding them.
+     * It is an upper bound of the number of entries found, an entry takes at least one byte.
+     */
+    long getPostingBytesIntersecting(int[] intCellIds) {
+        long numBytes = 0;
+        for (int s2CellIdInt : intCellIds) {
+            int pos = lowerBound(S2Integer.rangeMin(s2CellIdInt));
+            int end = upperBound(S2Integer.rangeMax(s2CellIdInt));
+            numBytes += offsets[end] - offsets[pos];
+            numBytes += getAncestorPostingBytes(s2CellIdInt);
+        }
+        return numBytes;
+    }
+
+    /**
+     * The size of the posting lists that {@link #findContaining(int)} decodes.
+     */
+    long getPostingBytesContaining(int s2CellIdInt) {
+        long numBytes = getAncestorPostingBytes(s2CellIdInt);
+        int pos = Arrays.binarySearch(cells, s2CellIdInt);
+        if (pos >= 0) {
+            numBytes += offsets[pos + 1] - offsets[pos];
+        }
+        return numBytes;
+    }
+
+    private long getAncestorPostingBytes(int s2CellIdInt) {
+        long numBytes = 0;
+        int level = S2Integer.asS2CellId(s2CellIdInt).level();
+        for (int parentLevel = 0; parentLevel < level; parentLevel++) {
+            int parent = S2Integer.asInt(S2Integer.asS2CellId(s2CellIdInt).parent(parentLevel));
+            int pos = Arrays.binarySearch(cells, parent);
+            if (pos >= 0) {
+                numBytes += offsets[pos + 1] - offsets[pos];
+            }
+        }
+        return numBytes;
+    }
+
+    private void addAncestors(int s2CellIdInt, int endEntryId, BitSet entries) {
+        int level = S2Integer.asS2CellId(s2CellIdInt).level();
+        for (int parentLevel = 0; parentLevel < level; parentLevel++) {
+            int parent = S2Integer.asInt(S2Integer.asS2CellId(s2CellIdInt).parent(parentLevel));
+            int pos = Arrays.binarySearch(cells, parent);
+            if (pos >= 0) {
+                addPostings(pos, endEntryId, entries);
+            }
+        }
+    }
+
+    private int lowerBound(int key) {
+        int pos = Arrays.binarySearch(cells, key);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+
+    private int upperBound(int key) {
+        int pos = Arrays.binarySearch(cells, key);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    private void addPostings(int cellIndex, int endEntryId, BitSet entries) {
+        ByteBuffer bb = postings.duplicate();
+        bb.position(offsets[cellIndex]);
+        int end = offsets[cellIndex + 1];
+        int entryId = 0;
+        while (bb.position() < end) {
+            entryId += VarInt.readUnsigned(bb);
+            if (entryId >= endEntryId) {
+                // the list is ascending
+                return;
+            }
+            entries.set(entryId);
+        }
+    }
+
+    static byte[] encode(List<DbFile.Entry> entries, List<S2Integer.Coverage> coverages) throws IOException {
+        int[] coverageIds = new int[entries.size()];
+        for (int entryId = 0; entryId < coverageIds.length; entryId++) {
+            coverageIds[entryId] = entries.get(entryId).coverageIndex;
+        }
+        return encode(coverageIds, coverageIds.length, coverages);
+    }
+
+    /**
+     * @param coverageIds the index of the coverage of each entry, -1 for none
+     */
+    static byte[] encode(int[] coverageIds, int numEntries, List<S2Integer.Coverage> coverages) throws IOException {
+        int numCoverageIds = 0;
+        for (S2Integer.Coverage coverage : coverages) {
+            numCoverageIds += coverage.intIds.length;
+        }
+        int[] allCells = new int[numCoverageIds];
+        int pos = 0;
+        for (S2Integer.Coverage coverage : coverages) {
+            System.arraycopy(coverage.intIds, 0, allCells, pos, coverage.intIds.length);
+            pos += coverage.intIds.length;
+        }
+        int[] cells = Arrays.stream(allCells).sorted().distinct().toArray();
+
+        // the positions of the cells of each coverage in the cell array
+        int[][] cellIndices = new int[coverages.size()][];
+        for (int i = 0; i < cellIndices.length; i++) {
+            int[] intIds = coverages.get(i).intIds;
+            cellIndices[i] = new int[intIds.length];
+            for (int j = 0; j < intIds.length; j++) {
+                cellIndices[i][j] = Arrays.binarySearch(cells, intIds[j]);
+            }
+        }
+
+        int[] listStarts = new int[cells.length + 1];
+        for (int entryId = 0; entryId < numEntries; entryId++) {
+            if (coverageIds[entryId] >= 0) {
+                for (int cellIndex : cellIndices[coverageIds[entryId]]) {
+                    listStarts[cellIndex + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < cells.length; i++) {
+            listStarts[i + 1] += listStarts[i];
+        }
+        int[] postingList = new int[listStarts[cells.length]];
+        int[] fill = Arrays.copyOf(listStarts, cells.length);
+        for (int entryId = 0; entryId < numEntries; entryId++) {
+            int coverageIndex = coverageIds[entryId];
+            if (coverageIndex >= 0) {
+                for (int cellIndex : cellIndices[coverageIndex]) {
+                    postingList[fill[cellIndex]++] = entryId;
+                }
+            }
+        }
+
+        int[] listLengths = new int[cells.length];
+        ByteArrayOutputStream lists = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(lists)) {
+            for (int i = 0; i < cells.length; i++) {
+                int listStart = out.size();
+                int lastEntryId = 0;
+                for (int j = listStarts[i]; j < listStarts[i + 1]; j++) {
+                    VarInt.writeUnsigned(out, postingList[j] - lastEntryId);
+                    lastEntryId = postingList[j];
+                }
+                listLengths[i] = out.size() - listStart;
+            }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(4 + 3 * cells.length + lists.size());
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeInt(cells.length);
+            int lastCell = 0;
+            for (int i = 0; i < cells.length; i++) {
+                VarInt.writeUnsigned(out, cells[i] - lastCell);
+                VarInt.writeUnsigned(out, listLengths[i]);
+                lastCell = cells[i];
+            }
+            lists.writeTo(out);
+        }
+        return baos.toByteArray();
+    }
+}
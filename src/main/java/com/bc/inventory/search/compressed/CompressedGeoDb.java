@@ -1,17 +1,26 @@
 package com.bc.inventory.search.compressed;
 
+import com.bc.inventory.search.CellIndexedGeoIndex;
 import com.bc.inventory.search.Constrain;
+import com.bc.inventory.search.CursorGeoIndex;
+import com.bc.inventory.search.EntryCursor;
 import com.bc.inventory.search.GeoDb;
 import com.bc.inventory.search.GeoDbEntry;
 import com.bc.inventory.search.GeoDbUpdater;
 import com.bc.inventory.search.GeoIndex;
+import com.bc.inventory.search.QueryProfile;
 import com.bc.inventory.search.QuerySolver;
+import com.bc.inventory.search.ResultSink;
+import com.bc.inventory.search.ZonedGeoIndex;
 import com.bc.inventory.utils.S2Integer;
-import com.bc.inventory.utils.S2Utils;
 import com.bc.inventory.utils.Search;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import com.google.common.geometry.S2CellId;
 import com.google.common.geometry.S2CellUnion;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2LatLngRect;
 import com.google.common.geometry.S2Point;
 import com.google.common.geometry.S2Polygon;
 
@@ -19,26 +28,55 @@ import javax.imageio.stream.ImageInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class CompressedGeoDb implements GeoDb {
 
     private static final int DEFAULT_MAX_LEVEL = 4;
+    private static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+    private static final int DEFAULT_INTERIOR_LEVEL = 10;
+    private static final int INTERIOR_MAX_CELLS = 16;
+    // the interior of a query polygon is computed once per query, so it is as fine as an integer cell id holds,
+    // small or narrow polygons still get interior cells. The product interiors are stored for every product and use
+    // the coarser interiorLevel, which may also differ between the files. Cell unions of any levels can be intersected.
+    private static final int QUERY_INTERIOR_LEVEL = 13;
+    private static final int QUERY_INTERIOR_MAX_CELLS = 500;
     
     private final int maxLevel;
     private final boolean useIndex;
+    private final PolygonCodec polygonCodec;
+    private final BlockCache blockCache;
+    private int readAheadBlocks;
+    private boolean writeCellIndex;
+    private int interiorLevel;
+    private ExecutorService readAheadExecutor;
+    private boolean readAheadEnabled;
+    private ExecutorService queryExecutor;
+    private int queryParallelism;
 
     private DbFile.Reader reader;
     private QuerySolver querySolver;
 
-    private boolean readCompletely;
+    private boolean updatePrepared;
+    // the entries of the file, only read completely if the reader has no random access
+    private List<DbFile.Entry> fileEntries;
+    // the added entries and their paths, entries with a path of the file are dropped when writing
     private final List<DbFile.Entry> entries;
     private final List<S2Integer.Coverage> coverageList;
     private final Map<S2Integer.Coverage, Integer> coverageMap;
@@ -50,33 +88,130 @@ public class CompressedGeoDb implements GeoDb {
     }
     
     public CompressedGeoDb(int maxLevel, boolean useIndex) {
+        this(maxLevel, useIndex, BlockCache.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param blockCacheBytes the number of bytes decoded blocks may occupy,
+     *                        they are shared between all queries until the database is closed
+     */
+    public CompressedGeoDb(int maxLevel, boolean useIndex, long blockCacheBytes) {
         this.maxLevel = maxLevel;
         this.useIndex = useIndex;
+        this.polygonCodec = PolygonCodec.DEFAULT;
+        this.blockCache = new BlockCache(blockCacheBytes);
+        this.readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+        this.writeCellIndex = true;
+        this.interiorLevel = DEFAULT_INTERIOR_LEVEL;
         this.entries = new ArrayList<>();
         this.coverageList = new ArrayList<>();
         this.coverageMap = new HashMap<>();
         this.pathSet = new HashSet<>();
     }
 
+    /**
+     * Sets the number of blocks that are read and decoded in the background, while the candidates
+     * of a query are tested on their polygons. 0 disables reading ahead. Must be called before opening.
+     */
+    public void setReadAheadBlocks(int readAheadBlocks) {
+        this.readAheadBlocks = readAheadBlocks;
+    }
+
+    /**
+     * Sets the executor that reads the blocks ahead, {@code null} (the default) uses a pool of
+     * daemon threads shared by all databases, created with the first query that reads ahead.
+     * Must be called before the first query.
+     */
+    public void setReadAheadExecutor(ExecutorService readAheadExecutor) {
+        this.readAheadExecutor = readAheadExecutor;
+    }
+
+    /**
+     * Sets whether an index from the coverage cells to the products is written, only used with index.
+     * Queries use it instead of scanning the products of their time ranges, when the planner estimates it cheaper.
+     */
+    public void setWriteCellIndex(boolean writeCellIndex) {
+        this.writeCellIndex = writeCellIndex;
+    }
+
+    /**
+     * Sets the finest level of the interior covering stored for each product, only used with index.
+     * A query point or polygon that hits the interior of a product matches without the exact test.
+     * 0 disables the interior coverings.
+     */
+    public void setInteriorLevel(int interiorLevel) {
+        this.interiorLevel = interiorLevel;
+    }
+
+    /**
+     * Sets an executor for testing the candidates of a query on the exact polygons in parallel,
+     * split into about {@code 4 * parallelism} tasks at block boundaries. The results are the same as without.
+     * Only used, if the index is read with random access.
+     */
+    public void setQueryExecutor(ExecutorService queryExecutor, int parallelism) {
+        this.queryExecutor = queryExecutor;
+        this.queryParallelism = parallelism;
+        if (querySolver != null) {
+            querySolver.setExecutor(queryExecutor, parallelism);
+        }
+    }
+
     @Override
     public void open(ImageInputStream iis) throws IOException {
-        reader = new DbFile.ImageInputStreamReader(iis, useIndex);
-        reader.readIndex();
-        index = new Index();
-        querySolver = new QuerySolver(index);
+        open(new DbFile.ImageInputStreamReader(iis, useIndex));
     }
     
     @Override
     public void open(InputStream is) throws IOException {
-        reader = new DbFile.InputStreamReader(is, useIndex);
-        reader.readIndex();
+        open(new DbFile.InputStreamReader(is, useIndex));
+    }
+
+    /**
+     * Opens the index memory mapped, the channel is closed with the database or when opening fails.
+     */
+    @Override
+    public void open(FileChannel channel) throws IOException {
+        DbFile.MappedReader mappedReader;
+        try {
+            mappedReader = new DbFile.MappedReader(channel, useIndex);
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
+        open(mappedReader);
+    }
+
+    private void open(DbFile.Reader reader) throws IOException {
+        blockCache.clear();
+        this.reader = reader;
+        reader.setBlockCache(blockCache);
+        readAheadEnabled = false;
+        try {
+            reader.readIndex();
+        } catch (IOException | RuntimeException e) {
+            // the reader owns the stream or channel, which the caller can not close anymore
+            this.reader = null;
+            try {
+                reader.close();
+            } catch (Exception closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
         index = new Index();
         querySolver = new QuerySolver(index);
+        querySolver.setExecutor(queryExecutor, queryParallelism);
     }
 
     @Override
     public void close() throws IOException {
+        blockCache.clear();
         if (reader != null) {
+            reader.cancelReadAhead();
             try {
                 reader.close();
             } catch (Exception e) {
@@ -93,16 +228,32 @@ public class CompressedGeoDb implements GeoDb {
         }
     }
 
+    /**
+     * @return The number of block lookups served from the block cache.
+     */
+    public long getBlockCacheHits() {
+        return blockCache.getHitCount();
+    }
+
+    /**
+     * @return The number of block lookups for which the block had to be read and decoded.
+     */
+    public long getBlockCacheMisses() {
+        return blockCache.getMissCount();
+    }
+
+    /**
+     * @return The entries of the file merged with the added ones, sorted by start time,
+     * in the order they are written by the updater.
+     */
     @Override
     public Iterator<GeoDbEntry> entries() throws IOException {
-        if (!readCompletely) {
-            readAllEntries();
-        }
-        return Iterators.transform(entries.iterator(),
+        prepareUpdate();
+        return Iterators.transform(mergeEntries(),
                                    entry -> new GeoDbEntry(entry.startTime,
                                                            entry.endTime,
                                                            entry.path,
-                                                           S2Utils.asPolygon(entry.polygonBytes)));
+                                                           polygonCodec.decode(ByteBuffer.wrap(entry.polygonBytes))));
     }
 
     @Override
@@ -118,8 +269,32 @@ public class CompressedGeoDb implements GeoDb {
         return querySolver.query(constrain);
     }
 
-    private void readAllEntries() throws IOException {
-        readCompletely = true;
+    @Override
+    public void query(Constrain constrain, ResultSink sink) throws IOException {
+        if (querySolver == null) {
+            throw new IllegalStateException("CompressedGeoDb not opened for querying");
+        }
+        querySolver.query(constrain, sink);
+    }
+
+    @Override
+    public void query(Constrain constrain, ResultSink sink, QueryProfile profile) throws IOException {
+        if (querySolver == null) {
+            throw new IllegalStateException("CompressedGeoDb not opened for querying");
+        }
+        querySolver.query(constrain, sink, profile);
+    }
+
+    /**
+     * Loads the coverage dictionary of the file, the coverages of added entries are appended to it.
+     * The entries of the file are read again when writing, only if the reader can not seek back
+     * they are read completely now.
+     */
+    private void prepareUpdate() throws IOException {
+        if (updatePrepared) {
+            return;
+        }
+        updatePrepared = true;
         if (reader == null) {
             return; // new geoDB
         }
@@ -130,47 +305,284 @@ public class CompressedGeoDb implements GeoDb {
             coverageMap.put(coverage, coverageIndex);
         }
 
-        int[] startTimes = reader.getStartTimes();
-        int[] endTimes = reader.getEndTimes();
-        for (int productIndex = 0; productIndex < startTimes.length; productIndex++) {
-            int startTime = startTimes[productIndex];
-            int endTime = endTimes[productIndex];
-            int coverageIndex = -1;
-            if (useIndex) {
-                coverageIndex = reader.getBitmapIndex(productIndex);
+        if (!reader.supportsRandomAccess()) {
+            fileEntries = new ArrayList<>(reader.numEntries());
+            for (int productIndex = 0; productIndex < reader.numEntries(); productIndex++) {
+                fileEntries.add(readFileEntry(productIndex));
             }
-            index.readEntry(productIndex);
-            byte[] polygonBytes = reader.getCurrentPolygonBytes();
-            String path = index.getCurrentPath();
-            entries.add(new DbFile.Entry(startTime, endTime, path, polygonBytes, coverageIndex));
-            pathSet.add(path);
         }
     }
 
+    private DbFile.Entry readFileEntry(int productIndex) throws IOException {
+        int startTime = reader.getStartTime(productIndex);
+        int endTime = reader.getEndTime(productIndex);
+        int coverageIndex = -1;
+        if (useIndex) {
+            coverageIndex = reader.getBitmapIndex(productIndex);
+        }
+        reader.readEntry(productIndex);
+        byte[] polygonBytes;
+        if (reader.getPolygonCodec() == polygonCodec) {
+            polygonBytes = reader.getCurrentPolygonBytes();
+        } else {
+            polygonBytes = polygonCodec.encode(reader.getCurrentPolygon());
+        }
+        String path = reader.getCurrentPath();
+        int[] interior = new int[0];
+        if (useIndex && reader.getInteriors() != null) {
+            interior = reader.getInteriors().get(productIndex);
+        } else if (useIndex && interiorLevel > 0) {
+            interior = createInterior(reader.getCurrentPolygon());
+        }
+        return new DbFile.Entry(startTime, endTime, path, polygonBytes, coverageIndex, interior);
+    }
+
+    /**
+     * @return The entries of the file, read one after the other.
+     */
+    private Iterator<DbFile.Entry> readFileEntries() {
+        if (fileEntries != null) {
+            return fileEntries.iterator();
+        }
+        if (reader == null) {
+            return Collections.emptyIterator();
+        }
+        return new AbstractIterator<DbFile.Entry>() {
+            private int productIndex;
+
+            @Override
+            protected DbFile.Entry computeNext() {
+                if (productIndex == reader.numEntries()) {
+                    return endOfData();
+                }
+                try {
+                    return readFileEntry(productIndex++);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The added entries sorted by start time, without the ones with a path that is already in the file.
+     */
+    private List<DbFile.Entry> getNewEntries() throws IOException {
+        Set<String> filePaths = new HashSet<>();
+        if (fileEntries != null) {
+            for (DbFile.Entry entry : fileEntries) {
+                if (pathSet.contains(entry.path)) {
+                    filePaths.add(entry.path);
+                }
+            }
+        } else if (!entries.isEmpty()) {
+            for (int productIndex = 0; productIndex < numFileEntries(); productIndex++) {
+                String path = readFilePath(productIndex);
+                if (pathSet.contains(path)) {
+                    filePaths.add(path);
+                }
+            }
+        }
+        List<DbFile.Entry> newEntries = new ArrayList<>(entries.size());
+        for (DbFile.Entry entry : entries) {
+            if (!filePaths.contains(entry.path)) {
+                newEntries.add(entry);
+            }
+        }
+        newEntries.sort(Comparator.comparingInt(r -> r.startTime));
+        return newEntries;
+    }
+
+    /**
+     * Drops the added entries with a path of one of the opened DBs, the same way as the ones with a path
+     * of the file are dropped when writing. Only the paths of the DBs are read.
+     *
+     * @return The number of dropped entries.
+     */
+    public int removeEntriesOf(List<CompressedGeoDb> dbs) throws IOException {
+        Set<String> dbPaths = new HashSet<>();
+        for (CompressedGeoDb db : dbs) {
+            if (db.reader == null) {
+                throw new IllegalStateException("CompressedGeoDb not opened");
+            }
+            for (int productIndex = 0; productIndex < db.numFileEntries(); productIndex++) {
+                String path = db.readFilePath(productIndex);
+                if (pathSet.contains(path)) {
+                    dbPaths.add(path);
+                }
+            }
+        }
+        // the paths stay in the path set, adding them again is ignored as well
+        entries.removeIf(entry -> dbPaths.contains(entry.path));
+        return dbPaths.size();
+    }
+
+    private int numFileEntries() {
+        return reader != null ? reader.numEntries() : 0;
+    }
+
+    /**
+     * Only the path is decoded, reading the paths in order reads one block after the other.
+     */
+    private String readFilePath(int productIndex) throws IOException {
+        if (fileEntries != null) {
+            return fileEntries.get(productIndex).path;
+        }
+        reader.readEntry(productIndex);
+        return reader.getCurrentPath();
+    }
+
+    /**
+     * Merges the entries of the file, which are sorted by start time, with the new entries.
+     * On equal start times the entries of the file come first, the same order as sorting all entries
+     * with a stable sort. Only the current block of the file is held in memory.
+     */
+    private Iterator<DbFile.Entry> mergeEntries() throws IOException {
+        return mergeSorted(Arrays.asList(readFileEntries(), getNewEntries().iterator()));
+    }
+
+    /**
+     * Merges entries sorted by start time, on equal start times the entries of the earlier source come first.
+     */
+    private static Iterator<DbFile.Entry> mergeSorted(List<Iterator<DbFile.Entry>> sources) {
+        List<PeekingIterator<DbFile.Entry>> peekingSources = new ArrayList<>(sources.size());
+        for (Iterator<DbFile.Entry> source : sources) {
+            peekingSources.add(Iterators.peekingIterator(source));
+        }
+        Comparator<Integer> order = Comparator.comparingInt((Integer source) -> peekingSources.get(source).peek().startTime)
+                .thenComparingInt(source -> source);
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, sources.size()), order);
+        for (int source = 0; source < peekingSources.size(); source++) {
+            if (peekingSources.get(source).hasNext()) {
+                queue.add(source);
+            }
+        }
+        return new AbstractIterator<DbFile.Entry>() {
+            @Override
+            protected DbFile.Entry computeNext() {
+                Integer source = queue.poll();
+                if (source == null) {
+                    return endOfData();
+                }
+                DbFile.Entry entry = peekingSources.get(source).next();
+                if (peekingSources.get(source).hasNext()) {
+                    queue.add(source);
+                }
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Writes the entries of the opened DBs into one file, with the settings of the first DB.
+     * The DBs are given oldest first. The result is the same as adding the entries of one DB after the other:
+     * an entry with a path of an older DB is dropped, and on equal start times the entries of the older DB come first.
+     * The coverages, interiors and polygon bytes are taken over, the coverage ids are mapped into one dictionary.
+     * Besides the current block of each DB only the paths of all DBs are held in memory, for finding the duplicates.
+     */
+    public static void merge(List<CompressedGeoDb> dbs, OutputStream os) throws IOException {
+        if (dbs.isEmpty()) {
+            throw new IllegalArgumentException("no DB to merge");
+        }
+        List<S2Integer.Coverage> coverageList = new ArrayList<>();
+        Map<S2Integer.Coverage, Integer> coverageMap = new HashMap<>();
+        List<Iterator<DbFile.Entry>> sources = new ArrayList<>(dbs.size());
+        Set<String> paths = new HashSet<>();
+        for (CompressedGeoDb db : dbs) {
+            if (db.reader == null) {
+                throw new IllegalStateException("CompressedGeoDb not opened for merging");
+            }
+            db.prepareUpdate();
+            int[] coverageIds = new int[db.reader.numBitmaps()];
+            for (int coverageIndex = 0; coverageIndex < coverageIds.length; coverageIndex++) {
+                S2Integer.Coverage coverage = new S2Integer.Coverage(db.reader.getBitmap(coverageIndex));
+                Integer id = coverageMap.get(coverage);
+                if (id == null) {
+                    coverageList.add(coverage);
+                    id = coverageList.size() - 1;
+                    coverageMap.put(coverage, id);
+                }
+                coverageIds[coverageIndex] = id;
+            }
+            BitSet duplicates = new BitSet();
+            for (int productIndex = 0; productIndex < db.numFileEntries(); productIndex++) {
+                if (!paths.add(db.readFilePath(productIndex))) {
+                    duplicates.set(productIndex);
+                }
+            }
+            Iterator<DbFile.Entry> fileEntries = db.readFileEntries();
+            sources.add(new AbstractIterator<DbFile.Entry>() {
+                private int productIndex;
+
+                @Override
+                protected DbFile.Entry computeNext() {
+                    while (fileEntries.hasNext()) {
+                        DbFile.Entry entry = fileEntries.next();
+                        if (!duplicates.get(productIndex++)) {
+                            int coverageIndex = entry.coverageIndex >= 0 ? coverageIds[entry.coverageIndex] : -1;
+                            return new DbFile.Entry(entry.startTime, entry.endTime, entry.path, entry.polygonBytes,
+                                                    coverageIndex, entry.interior);
+                        }
+                    }
+                    return endOfData();
+                }
+            });
+        }
+        paths.clear();
+
+        CompressedGeoDb first = dbs.get(0);
+        try (DbFile.Writer writer = new DbFile.Writer(os, DbFile.DEFAULT_BLOCK_SIZE, first.useIndex, first.polygonCodec)) {
+            writer.setWriteCellIndex(first.writeCellIndex);
+            writer.write(mergeSorted(sources), coverageList);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private int[] createInterior(S2Polygon polygon) {
+        return S2Integer.createInteriorS2IntIds(polygon, interiorLevel, INTERIOR_MAX_CELLS);
+    }
+
     private class Updater implements GeoDbUpdater {
         
         @Override
         public void addEntry(GeoDbEntry entry) throws IOException {
-            if (!readCompletely) {
-                readAllEntries();
-            }
+            prepareUpdate();
+            PreparedEntry prepared = prepareEntry(entry);
             int coverageId = -1;
             if (useIndex) {
-                S2CellUnion s2CellUnion = S2Integer.createCellUnion(entry.getPolygon(), maxLevel);
-                int[] intIds = S2Integer.cellUnion2Ints(s2CellUnion);
-                S2Integer.Coverage s2IntCoverage = new S2Integer.Coverage(intIds);
-                coverageId = getUniqeCoverageId(s2IntCoverage);
+                coverageId = getUniqeCoverageId(new S2Integer.Coverage(prepared.coverage));
             }
-            byte[] polygonBytes = S2Utils.asBytes(entry.getPolygon());
 
             String path = entry.getPath();
-            if (!pathSet.contains(path)) {
-                DbFile.Entry dbEntry = new DbFile.Entry(entry.getStartTime(), entry.getEndTime(), path, polygonBytes, coverageId);
+            if (pathSet.add(path)) {
+                DbFile.Entry dbEntry = new DbFile.Entry(entry.getStartTime(), entry.getEndTime(), path,
+                                                        prepared.polygonBytes, coverageId, prepared.interior);
                 entries.add(dbEntry);
-                pathSet.add(path);
             }
         }
 
+        /**
+         * Computes the coverage, the interior and the polygon bytes, only the ids of the coverages are left for adding.
+         */
+        @Override
+        public PreparedEntry prepareEntry(GeoDbEntry entry) throws IOException {
+            if (entry instanceof PreparedEntry && ((PreparedEntry) entry).db == CompressedGeoDb.this) {
+                return (PreparedEntry) entry;
+            }
+            int[] coverage = null;
+            int[] interior = new int[0];
+            if (useIndex) {
+                S2CellUnion s2CellUnion = S2Integer.createCellUnion(entry.getPolygon(), maxLevel);
+                coverage = S2Integer.cellUnion2Ints(s2CellUnion);
+                if (interiorLevel > 0) {
+                    interior = createInterior(entry.getPolygon());
+                }
+            }
+            byte[] polygonBytes = polygonCodec.encode(entry.getPolygon());
+            return new PreparedEntry(entry, CompressedGeoDb.this, coverage, interior, polygonBytes);
+        }
+
         private int getUniqeCoverageId(S2Integer.Coverage s2IntCoverage) {
             Integer index = coverageMap.get(s2IntCoverage);
             if (index == null) {
@@ -181,77 +593,288 @@ public class CompressedGeoDb implements GeoDb {
             return index;
         }
 
+        /**
+         * Merges the file with the added entries block by block, the database must still be open.
+         */
         @Override
         public void write(OutputStream os) throws IOException {
-            entries.sort(Comparator.comparingInt(r -> r.startTime));
-            try (DbFile.Writer writer = new DbFile.Writer(os, useIndex)) {
-                writer.write(entries, coverageList);
+            prepareUpdate();
+            try (DbFile.Writer writer = new DbFile.Writer(os, DbFile.DEFAULT_BLOCK_SIZE, useIndex, polygonCodec)) {
+                writer.setWriteCellIndex(writeCellIndex);
+                if (reader == null) {
+                    writer.write(getNewEntries(), coverageList);
+                } else {
+                    writer.write(mergeEntries(), coverageList);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             }
         }
     }
 
-    private class Index implements GeoIndex {
+    /**
+     * Holds the shared read-ahead pool, created when the class is first used.
+     */
+    private static class SharedReadAhead {
+
+        private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(DEFAULT_READ_AHEAD_BLOCKS, runnable -> {
+            Thread thread = new Thread(runnable, "geodb-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class PreparedEntry extends GeoDbEntry {
+
+        private final CompressedGeoDb db;
+        private final int[] coverage;
+        private final int[] interior;
+        private final byte[] polygonBytes;
+
+        PreparedEntry(GeoDbEntry entry, CompressedGeoDb db, int[] coverage, int[] interior, byte[] polygonBytes) {
+            super(entry.getStartTime(), entry.getEndTime(), entry.getPath(), entry.getPolygon());
+            this.db = db;
+            this.coverage = coverage;
+            this.interior = interior;
+            this.polygonBytes = polygonBytes;
+        }
+    }
+
+    private class Index implements ZonedGeoIndex, CellIndexedGeoIndex, CursorGeoIndex {
 
         private S2Point lastPoint;
         private int lastPointAsInt;
         private S2Polygon lastPolygon;
         private int[] lastPolygonAsCoverage;
+        private S2Polygon lastInteriorPolygon;
+        private int[] lastPolygonAsInterior;
 
         @Override
         public int size() {
             if (reader != null) {
-                return reader.getStartTimes().length;
+                return reader.numEntries();
             } else {
                 return 0;
             }
         }
 
         @Override
-        public int getStartTime(int productIndex) {
-            return reader.getStartTimes()[productIndex];
+        public int getStartTime(int productIndex) throws IOException {
+            return reader.getStartTime(productIndex);
         }
 
         @Override
-        public int getEndTime(int productIndex) {
-            return reader.getEndTimes()[productIndex];
+        public int getEndTime(int productIndex) throws IOException {
+            return reader.getEndTime(productIndex);
         }
 
         @Override
-        public int getIndexForTime(int startTime) {
+        public int getIndexForTime(int startTime) throws IOException {
             return Search.indexedBinarySearch(reader.getStartTimes(), startTime);
         }
 
         @Override
-        public boolean approximationContainsPoint(int productIndex, S2Point point) {
+        public boolean approximationContainsPoint(int productIndex, S2Point point) throws IOException {
             if (useIndex) {
-                if (point != lastPoint) {
-                    S2CellId lastPointAsS2CellId = S2CellId.fromPoint(point);
-                    lastPointAsInt = S2Integer.asInt(lastPointAsS2CellId);
-                    lastPoint = point;
-                }
                 int bitmapIndex = reader.getBitmapIndex(productIndex);
-                int[] coverage = reader.getBitmap(bitmapIndex);
-                return S2Integer.containsCellId(coverage, lastPointAsInt);
+                return reader.getCoverages().containsCellId(bitmapIndex, getPointAsInt(point));
             } else {
                 return true;
             }
         }
 
         @Override
-        public boolean approximationIntersectsPolygon(int productIndex, S2Polygon polygon) {
+        public boolean approximationIntersectsPolygon(int productIndex, S2Polygon polygon) throws IOException {
             if (useIndex) {
-                if (polygon != lastPolygon) {
-                    lastPolygonAsCoverage = S2Integer.createS2IntIds(polygon, maxLevel);
-                    lastPolygon = polygon;
-                }
                 int bitmapIndex = reader.getBitmapIndex(productIndex);
-                int[] coverage = reader.getBitmap(bitmapIndex);
-                return S2Integer.intersectsCellUnionFast(lastPolygonAsCoverage, coverage);
+                return reader.getCoverages().intersectsCellUnion(bitmapIndex, getPolygonAsCoverage(polygon));
             } else {
                 return true;
             }
         }
 
+        @Override
+        public boolean interiorContainsPoint(int productIndex, S2Point point) throws IOException {
+            CoverageDictionary interiors = useIndex ? reader.getInteriors() : null;
+            return interiors != null && interiors.containsCellId(productIndex, getPointAsInt(point));
+        }
+
+        @Override
+        public boolean interiorIntersectsPolygon(int productIndex, S2Polygon polygon) throws IOException {
+            CoverageDictionary interiors = useIndex ? reader.getInteriors() : null;
+            return interiors != null && interiors.intersectsCellUnion(productIndex, getPolygonAsInterior(polygon));
+        }
+
+        private int[] getPolygonAsInterior(S2Polygon polygon) {
+            if (polygon != lastInteriorPolygon) {
+                lastPolygonAsInterior = S2Integer.createInteriorS2IntIds(polygon, QUERY_INTERIOR_LEVEL, QUERY_INTERIOR_MAX_CELLS);
+                lastInteriorPolygon = polygon;
+            }
+            return lastPolygonAsInterior;
+        }
+
+        private int getPointAsInt(S2Point point) {
+            if (point != lastPoint) {
+                S2CellId lastPointAsS2CellId = S2CellId.fromPoint(point);
+                lastPointAsInt = S2Integer.asInt(lastPointAsS2CellId);
+                lastPoint = point;
+            }
+            return lastPointAsInt;
+        }
+
+        private int[] getPolygonAsCoverage(S2Polygon polygon) {
+            if (polygon != lastPolygon) {
+                lastPolygonAsCoverage = S2Integer.createS2IntIds(polygon, maxLevel);
+                lastPolygon = polygon;
+            }
+            return lastPolygonAsCoverage;
+        }
+
+        @Override
+        public int numZones() throws IOException {
+            return reader.numZones();
+        }
+
+        @Override
+        public int getZone(int productIndex) throws IOException {
+            return reader.getZone(productIndex);
+        }
+
+        @Override
+        public int getZoneStart(int zone) throws IOException {
+            return reader.getZoneStart(zone);
+        }
+
+        @Override
+        public int getZoneMinStartTime(int zone) throws IOException {
+            return reader.getZoneMinStartTime(zone);
+        }
+
+        @Override
+        public int getZoneMaxEndTime(int zone) throws IOException {
+            return reader.getZoneMaxEndTime(zone);
+        }
+
+        @Override
+        public boolean zoneApproximationContainsPoint(int zone, S2Point point) throws IOException {
+            if (useIndex) {
+                return reader.getZoneCoverages().containsCellId(zone, getPointAsInt(point));
+            } else {
+                return true;
+            }
+        }
+
+        @Override
+        public boolean zoneApproximationIntersectsPolygon(int zone, S2Polygon polygon) throws IOException {
+            if (useIndex) {
+                return reader.getZoneCoverages().intersectsCellUnion(zone, getPolygonAsCoverage(polygon));
+            } else {
+                return true;
+            }
+        }
+
+        @Override
+        public boolean hasCellIndex() throws IOException {
+            return useIndex && reader.getCellIndex() != null;
+        }
+
+        @Override
+        public int[] getProductsContainingPoint(S2Point point) throws IOException {
+            return reader.getCellIndex().findContaining(getPointAsInt(point));
+        }
+
+        @Override
+        public int[] getProductsIntersectingPolygon(S2Polygon polygon) throws IOException {
+            return reader.getCellIndex().findIntersecting(getPolygonAsCoverage(polygon));
+        }
+
+        @Override
+        public int[] getProductsContainingPoint(S2Point point, int endProductIndex) throws IOException {
+            return reader.getCellIndex().findContaining(getPointAsInt(point), endProductIndex);
+        }
+
+        @Override
+        public int[] getProductsIntersectingPolygon(S2Polygon polygon, int endProductIndex) throws IOException {
+            return reader.getCellIndex().findIntersecting(getPolygonAsCoverage(polygon), endProductIndex);
+        }
+
+        @Override
+        public long estimateProductsContainingPoint(S2Point point) throws IOException {
+            return reader.getCellIndex().getPostingBytesContaining(getPointAsInt(point));
+        }
+
+        @Override
+        public long estimateProductsIntersectingPolygon(S2Polygon polygon) throws IOException {
+            return reader.getCellIndex().getPostingBytesIntersecting(getPolygonAsCoverage(polygon));
+        }
+
+        @Override
+        public int getCoveringSize(S2Polygon polygon) throws IOException {
+            return useIndex ? getPolygonAsCoverage(polygon).length : 1;
+        }
+
+        @Override
+        public void planEntries(int[] productIndices) throws IOException {
+            if (!readAheadEnabled && readAheadBlocks > 0 && reader.supportsRandomAccess()) {
+                ExecutorService executor = readAheadExecutor != null ? readAheadExecutor : SharedReadAhead.EXECUTOR;
+                reader.setReadAhead(executor, readAheadBlocks);
+                readAheadEnabled = true;
+            }
+            reader.planEntries(productIndices);
+        }
+
+        @Override
+        public boolean supportsCursors() throws IOException {
+            return reader.supportsRandomAccess();
+        }
+
+        @Override
+        public long getNumBlocksRead() {
+            return reader.getNumBlocksRead();
+        }
+
+        @Override
+        public long getNumBytesRead() {
+            return reader.getNumBytesRead();
+        }
+
+        @Override
+        public long getPathDecodeNanos() {
+            return reader.getPathDecodeNanos();
+        }
+
+        @Override
+        public EntryCursor newCursor() throws IOException {
+            DbFile.Reader.Cursor cursor = reader.newCursor();
+            return new EntryCursor() {
+                @Override
+                public void readEntry(int productIndex) throws IOException {
+                    cursor.readEntry(productIndex);
+                }
+
+                @Override
+                public S2Polygon getCurrentPolygon() throws IOException {
+                    return cursor.getCurrentPolygon();
+                }
+
+                @Override
+                public S2LatLngRect getCurrentRectBound() throws IOException {
+                    return cursor.getCurrentRectBound();
+                }
+
+                @Override
+                public boolean currentPolygonContainsAny(S2Point[] points, S2LatLng[] latLngs,
+                                                         int[] pointIndices, int from, int to) throws IOException {
+                    return cursor.currentPolygonContainsAny(points, latLngs, pointIndices, from, to);
+                }
+
+                @Override
+                public String getCurrentPath() throws IOException {
+                    return cursor.getCurrentPath();
+                }
+            };
+        }
+
         @Override
         public void readEntry(int productIndex) throws IOException {
             reader.readEntry(productIndex);
@@ -262,6 +885,17 @@ public class CompressedGeoDb implements GeoDb {
             return reader.getCurrentPolygon();
         }
 
+        @Override
+        public S2LatLngRect getCurrentRectBound() throws IOException {
+            return reader.getCurrentRectBound();
+        }
+
+        @Override
+        public boolean currentPolygonContainsAny(S2Point[] points, S2LatLng[] latLngs,
+                                                 int[] pointIndices, int from, int to) throws IOException {
+            return reader.currentPolygonContainsAny(points, latLngs, pointIndices, from, to);
+        }
+
         @Override
         public String getCurrentPath() throws IOException {
             return reader.getCurrentPath();
@@ -0,0 +1,76 @@
+package com.bc.inventory.search.compressed;
+
+import com.bc.inventory.utils.S2Integer;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The cell ids of many coverages in one flat array, with an array of offsets into it
+ * (compressed sparse row layout). Coverage {@code i} consists of the sorted cells
+ * from {@code getStart(i)} (inclusive) to {@code getEnd(i)} (exclusive).
+ */
+class CoverageDictionary {
+
+    static final CoverageDictionary EMPTY = new CoverageDictionary(new int[0], new int[1]);
+
+    private final int[] cells;
+    private final int[] offsets;
+
+    CoverageDictionary(int[] cells, int[] offsets) {
+        this.cells = cells;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Reads the dictionary with a single bulk read from the cell buffer.
+     *
+     * @param sizes the number of cells of each coverage
+     * @param cellBuffer the cells of all coverages, the position is advanced behind them
+     */
+    static CoverageDictionary read(IntBuffer sizes, IntBuffer cellBuffer) {
+        int numCoverages = sizes.remaining();
+        int[] offsets = new int[numCoverages + 1];
+        for (int i = 0; i < numCoverages; i++) {
+            offsets[i + 1] = offsets[i] + sizes.get(sizes.position() + i);
+        }
+        int[] cells = new int[offsets[numCoverages]];
+        cellBuffer.get(cells);
+        return new CoverageDictionary(cells, offsets);
+    }
+
+    int size() {
+        return offsets.length - 1;
+    }
+
+    int getStart(int coverageIndex) {
+        return offsets[coverageIndex];
+    }
+
+    int getEnd(int coverageIndex) {
+        return offsets[coverageIndex + 1];
+    }
+
+    /**
+     * @return The flat array of all cells, shared, not a copy.
+     */
+    int[] getCells() {
+        return cells;
+    }
+
+    /**
+     * @return A copy of the cells of the given coverage.
+     */
+    int[] get(int coverageIndex) {
+        return Arrays.copyOfRange(cells, offsets[coverageIndex], offsets[coverageIndex + 1]);
+    }
+
+    boolean containsCellId(int coverageIndex, int s2CellIdInt) {
+        return S2Integer.containsCellId(cells, offsets[coverageIndex], offsets[coverageIndex + 1], s2CellIdInt);
+    }
+
+    boolean intersectsCellUnion(int coverageIndex, int[] intCellIds) {
+        return S2Integer.intersectsCellUnionFast(intCellIds, 0, intCellIds.length,
+                                                 cells, offsets[coverageIndex], offsets[coverageIndex + 1]);
+    }
+}
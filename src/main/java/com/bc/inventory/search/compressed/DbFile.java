@@ -1,7 +1,11 @@
 package com.bc.inventory.search.compressed;
 
-import com.bc.inventory.utils.S2Utils;
 import com.bc.inventory.utils.S2Integer;
+import com.bc.inventory.utils.VarInt;
+import com.google.common.base.Utf8;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Point;
 import com.google.common.geometry.S2Polygon;
 
 import javax.imageio.stream.ImageInputStream;
@@ -12,293 +16,1173 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.zip.DeflaterOutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.InflaterInputStream;
 
 /**
  * Access methods to the file holding the entire geo-inventory database.
  * The file has a binary structure:
+ * <pre>
+ *   "GEODB002"
+ *   int numEntries
+ *   int numSections
+ *   numSections x (int sectionId, int offset, int length)   table of contents, offsets from start of file
+ *   sections...
+ * </pre>
+ * The sections are (in the order they are written):
+ * <ul>
+ * <li>{@link #SECTION_TIMES}: the start times as differences to the start time of the previous entry,
+ * followed by the end times as durations, both zig-zag/varint encoded, see {@link VarInt}</li>
+ * <li>{@link #SECTION_COVERAGE_IDS}: int[numEntries], index into the coverage dictionary (only with index)</li>
+ * <li>{@link #SECTION_COVERAGES}: int numCoverages, int[numCoverages] sizes, all coverage cell ids (only with index)</li>
+ * <li>{@link #SECTION_CELL_INDEX}: the entries of each cell used in the coverages, see {@link CellIndex}
+ * (only with index, optional)</li>
+ * <li>{@link #SECTION_INTERIORS}: int numEntries, int[numEntries] sizes, the cell ids of the interior covering
+ * of each entry (only with index, optional)</li>
+ * <li>{@link #SECTION_ZONES}: a summary of each block: int numBlocks, int[numBlocks] min start times,
+ * int[numBlocks] max end times, int[numBlocks] sizes of the coverage unions, all cell ids of the unions
+ * (without index all unions are empty)</li>
+ * <li>{@link #SECTION_BLOCK_STARTS}: int[numBlocks] id of the first entry of each block</li>
+ * <li>{@link #SECTION_BLOCK_FORMAT}: int polygon codec id, see {@link PolygonCodec}, int path format</li>
+ * <li>{@link #SECTION_BLOCKS}: int max entries per block, int numBlocks, int[numBlocks] block sizes in bytes, blocks</li>
+ * </ul>
+ * Blocks are cut when they reach a target number of bytes or the maximum number of entries.
+ * Without {@link #SECTION_BLOCK_STARTS} all blocks but the last hold the maximum number of entries.
+ * Each block holds:
+ * <pre>
+ *   int pathsSize
+ *   byte[pathsSize] paths
+ *   int[numEntriesInBlock] polygon sizes
+ *   polygons
+ * </pre>
+ * The paths are stored in the format {@link #PATH_FORMAT_FRONT_CODED}, which allows decoding a single path.
+ * Files without the path format in {@link #SECTION_BLOCK_FORMAT} use {@link #PATH_FORMAT_DEFLATE}.
+ * Sections are only read when they are needed, a query on time only never touches the coverages.
+ * Readers also accept the plain int[numEntries] sections {@link #SECTION_START_TIMES} and {@link #SECTION_END_TIMES}
+ * instead of {@link #SECTION_TIMES}.
+ * Files in the former {@link #FILE_MARKER_V1} format, which lacks the table of contents, can still be read.
  */
 class DbFile {
 
-    static final String FILE_MARKER = "GEODB001";
+    static final String FILE_MARKER = "GEODB002";
+    static final String FILE_MARKER_V1 = "GEODB001";
     static final int DEFAULT_BLOCK_SIZE = 1000;
+    static final int DEFAULT_BLOCK_BYTES = 64 * 1024;
+
+    static final int SECTION_START_TIMES = 1;
+    static final int SECTION_END_TIMES = 2;
+    static final int SECTION_COVERAGE_IDS = 3;
+    static final int SECTION_COVERAGES = 4;
+    static final int SECTION_BLOCKS = 5;
+    static final int SECTION_TIMES = 6;
+    static final int SECTION_BLOCK_FORMAT = 7;
+    static final int SECTION_ZONES = 8;
+    static final int SECTION_BLOCK_STARTS = 9;
+    static final int SECTION_CELL_INDEX = 10;
+    static final int SECTION_INTERIORS = 11;
+    private static final int MAX_SECTION_ID = 11;
+
+    /**
+     * All paths of a block, separated by tabs, DEFLATE compressed.
+     */
+    static final int PATH_FORMAT_DEFLATE = 1;
+    /**
+     * The paths of a block as {@link FrontCodedStrings}.
+     */
+    static final int PATH_FORMAT_FRONT_CODED = 2;
 
     static class Writer implements AutoCloseable {
 
         private final DataOutputStream dos;
         private final int blockSize;
+        private final int blockBytes;
         private final boolean useIndex;
+        private final PolygonCodec polygonCodec;
+        private boolean writeCellIndex = true;
 
         Writer(OutputStream os, boolean useIndex) {
             this(os, DEFAULT_BLOCK_SIZE,useIndex);
         }
 
         Writer(OutputStream os, int blockSize, boolean useIndex) {
+            this(os, blockSize, useIndex, PolygonCodec.DEFAULT);
+        }
+
+        Writer(OutputStream os, int blockSize, boolean useIndex, PolygonCodec polygonCodec) {
+            this(os, blockSize, DEFAULT_BLOCK_BYTES, useIndex, polygonCodec);
+        }
+
+        /**
+         * @param blockSize    the maximum number of entries in a block
+         * @param blockBytes   the number of bytes after which a block is cut
+         * @param polygonCodec the codec the polygon bytes of the entries have been encoded with
+         */
+        Writer(OutputStream os, int blockSize, int blockBytes, boolean useIndex, PolygonCodec polygonCodec) {
             dos = new DataOutputStream(new BufferedOutputStream(os));
             this.blockSize = blockSize;
+            this.blockBytes = blockBytes;
             this.useIndex = useIndex;
+            this.polygonCodec = polygonCodec;
+        }
+
+        /**
+         * @param writeCellIndex whether to write the {@link CellIndex}, only used with index
+         */
+        void setWriteCellIndex(boolean writeCellIndex) {
+            this.writeCellIndex = writeCellIndex;
         }
 
         void write(List<DbFile.Entry> indexRecords, List<S2Integer.Coverage> bitmaps) throws IOException {
+            try (Spool blocks = Spool.inMemory(); Spool interiors = Spool.inMemory()) {
+                write(indexRecords.iterator(), bitmaps, blocks, interiors);
+            }
+        }
+
+        /**
+         * Writes the entries in the order of the iterator, which must be sorted by start time.
+         * Each block is encoded as soon as it is complete and spooled to a temporary file together with
+         * the interior cells, until the sizes of all sections are known. Only the times, the coverage ids
+         * and the interior sizes of the entries and a summary of each block are kept in memory.
+         */
+        void write(Iterator<DbFile.Entry> entries, List<S2Integer.Coverage> bitmaps) throws IOException {
+            try (Spool blocks = Spool.inTempFile(); Spool interiors = Spool.inTempFile()) {
+                write(entries, bitmaps, blocks, interiors);
+            }
+        }
+
+        private void write(Iterator<DbFile.Entry> entries, List<S2Integer.Coverage> bitmaps,
+                           Spool blockSpool, Spool interiorSpool) throws IOException {
+            IntArray startTimes = new IntArray();
+            IntArray endTimes = new IntArray();
+            IntArray coverageIds = new IntArray();
+            IntArray interiorSizes = new IntArray();
+            IntArray blockStarts = new IntArray();
+            IntArray blockSizes = new IntArray();
+            IntArray zoneMinStartTimes = new IntArray();
+            IntArray zoneMaxEndTimes = new IntArray();
+            List<int[]> zoneCoverages = new ArrayList<>();
+            List<DbFile.Entry> block = new ArrayList<>();
+            int bytesInBlock = 0;
+            long bytesBlocks = 0;
+            boolean hasInteriors = false;
+            while (entries.hasNext()) {
+                DbFile.Entry entry = entries.next();
+                // a block ends before the entry that would make it larger than blockBytes, or at blockSize entries
+                int entryBytes = getEntryBytes(entry);
+                if (block.isEmpty() || block.size() == blockSize || bytesInBlock + entryBytes > blockBytes) {
+                    if (!block.isEmpty()) {
+                        bytesBlocks += writeBlock(block, bitmaps, blockSpool, blockSizes,
+                                                  zoneMinStartTimes, zoneMaxEndTimes, zoneCoverages);
+                        block.clear();
+                    }
+                    blockStarts.add(startTimes.size());
+                    bytesInBlock = 0;
+                }
+                block.add(entry);
+                bytesInBlock += entryBytes;
+
+                startTimes.add(entry.startTime);
+                endTimes.add(entry.endTime);
+                coverageIds.add(entry.coverageIndex);
+                interiorSizes.add(entry.interior.length);
+                for (int intId : entry.interior) {
+                    interiorSpool.out.writeInt(intId);
+                }
+                hasInteriors |= entry.interior.length > 0;
+            }
+            if (!block.isEmpty()) {
+                bytesBlocks += writeBlock(block, bitmaps, blockSpool, blockSizes,
+                                          zoneMinStartTimes, zoneMaxEndTimes, zoneCoverages);
+            }
+
+            int numEntries = startTimes.size();
+            int numBlocks = blockStarts.size();
+            byte[] encodedTimes = encodeTimes(startTimes.toArray(), endTimes.toArray(), numEntries);
+            int numZoneCoverageIds = 0;
+            for (int[] zoneCoverage : zoneCoverages) {
+                numZoneCoverageIds += zoneCoverage.length;
+            }
+            int zonesLength = 4 + 3 * 4 * numBlocks + 4 * numZoneCoverageIds;
+
+            byte[] cellIndex = null;
+            int[] sectionIds = new int[MAX_SECTION_ID];
+            int[] sectionLengths = new int[MAX_SECTION_ID];
+            int numSections = 0;
+            sectionIds[numSections] = SECTION_TIMES;
+            sectionLengths[numSections++] = encodedTimes.length;
+            if (useIndex) {
+                sectionIds[numSections] = SECTION_COVERAGE_IDS;
+                sectionLengths[numSections++] = 4 * numEntries;
+                sectionIds[numSections] = SECTION_COVERAGES;
+                sectionLengths[numSections++] = getCoveragesLength(bitmaps);
+                if (writeCellIndex) {
+                    cellIndex = CellIndex.encode(coverageIds.toArray(), numEntries, bitmaps);
+                    sectionIds[numSections] = SECTION_CELL_INDEX;
+                    sectionLengths[numSections++] = cellIndex.length;
+                }
+                if (hasInteriors) {
+                    sectionIds[numSections] = SECTION_INTERIORS;
+                    sectionLengths[numSections++] = toSectionLength(4 + 4L * numEntries + interiorSpool.size());
+                }
+            }
+            sectionIds[numSections] = SECTION_ZONES;
+            sectionLengths[numSections++] = zonesLength;
+            sectionIds[numSections] = SECTION_BLOCK_STARTS;
+            sectionLengths[numSections++] = 4 * numBlocks;
+            sectionIds[numSections] = SECTION_BLOCK_FORMAT;
+            sectionLengths[numSections++] = 8;
+            sectionIds[numSections] = SECTION_BLOCKS;
+            sectionLengths[numSections++] = toSectionLength(8 + 4L * numBlocks + bytesBlocks);
+            sectionIds = Arrays.copyOf(sectionIds, numSections);
+            sectionLengths = Arrays.copyOf(sectionLengths, numSections);
+
             writeHeader();
-            writeIndex(indexRecords, bitmaps);
-            int numBlocks = getNumBlocks(indexRecords.size(), blockSize);
-            int[] blockSizes = new int[numBlocks];
-            for (int i = 0; i < blockSizes.length; i++) {
-                blockSizes[i] = calculateBlockSize(i, indexRecords);
+            writeTableOfContents(numEntries, sectionIds, sectionLengths);
+            for (int sectionId : sectionIds) {
+                switch (sectionId) {
+                    case SECTION_TIMES:
+                        dos.write(encodedTimes);
+                        break;
+                    case SECTION_COVERAGE_IDS:
+                        coverageIds.writeTo(dos);
+                        break;
+                    case SECTION_COVERAGES:
+                        writeCoverages(bitmaps);
+                        break;
+                    case SECTION_CELL_INDEX:
+                        dos.write(cellIndex);
+                        break;
+                    case SECTION_INTERIORS:
+                        dos.writeInt(numEntries);
+                        interiorSizes.writeTo(dos);
+                        interiorSpool.copyTo(dos);
+                        break;
+                    case SECTION_ZONES:
+                        dos.writeInt(numBlocks);
+                        zoneMinStartTimes.writeTo(dos);
+                        zoneMaxEndTimes.writeTo(dos);
+                        for (int[] zoneCoverage : zoneCoverages) {
+                            dos.writeInt(zoneCoverage.length);
+                        }
+                        for (int[] zoneCoverage : zoneCoverages) {
+                            for (int intId : zoneCoverage) {
+                                dos.writeInt(intId);
+                            }
+                        }
+                        break;
+                    case SECTION_BLOCK_STARTS:
+                        blockStarts.writeTo(dos);
+                        break;
+                    case SECTION_BLOCK_FORMAT:
+                        dos.writeInt(polygonCodec.getId());
+                        dos.writeInt(PATH_FORMAT_FRONT_CODED);
+                        break;
+                    case SECTION_BLOCKS:
+                        dos.writeInt(blockSize);
+                        dos.writeInt(numBlocks);
+                        blockSizes.writeTo(dos);
+                        blockSpool.copyTo(dos);
+                        break;
+                }
             }
-            writeBlockSizes(blockSizes);
-            for (int i = 0; i < numBlocks; i++) {
-                writeBlock(i, indexRecords);
+        }
+
+        private static int toSectionLength(long length) throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("section too large for the file format: " + length + " bytes");
             }
+            return (int) length;
         }
 
         void writeHeader() throws IOException {
             dos.write(FILE_MARKER.getBytes());
         }
 
-        void writeIndex(List<DbFile.Entry> indexRecords, List<S2Integer.Coverage> bitmaps) throws IOException {
-            dos.writeInt(indexRecords.size());
-            if(useIndex) {
-                dos.writeInt(bitmaps.size());
-            }
-            for (DbFile.Entry record : indexRecords) {
-                dos.writeInt(record.startTime);
+        private void writeTableOfContents(int numEntries, int[] sectionIds, int[] sectionLengths) throws IOException {
+            dos.writeInt(numEntries);
+            dos.writeInt(sectionIds.length);
+            int offset = getHeaderSize(sectionIds.length);
+            for (int i = 0; i < sectionIds.length; i++) {
+                dos.writeInt(sectionIds[i]);
+                dos.writeInt(offset);
+                dos.writeInt(sectionLengths[i]);
+                offset += sectionLengths[i];
             }
-            for (DbFile.Entry record : indexRecords) {
-                dos.writeInt(record.endTime);
+        }
+
+        static byte[] encodeTimes(List<DbFile.Entry> indexRecords) throws IOException {
+            int[] startTimes = new int[indexRecords.size()];
+            int[] endTimes = new int[indexRecords.size()];
+            for (int i = 0; i < startTimes.length; i++) {
+                startTimes[i] = indexRecords.get(i).startTime;
+                endTimes[i] = indexRecords.get(i).endTime;
             }
-            if(useIndex) {
-                for (DbFile.Entry record : indexRecords) {
-                    dos.writeInt(record.coverageIndex);
+            return encodeTimes(startTimes, endTimes, startTimes.length);
+        }
+
+        private static byte[] encodeTimes(int[] startTimes, int[] endTimes, int numEntries) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(numEntries * 3);
+            try (DataOutputStream out = new DataOutputStream(baos)) {
+                int lastStartTime = 0;
+                for (int i = 0; i < numEntries; i++) {
+                    VarInt.writeSigned(out, startTimes[i] - lastStartTime);
+                    lastStartTime = startTimes[i];
                 }
-                for (S2Integer.Coverage s2Cover : bitmaps) {
-                    dos.writeInt(s2Cover.intIds.length);
+                for (int i = 0; i < numEntries; i++) {
+                    VarInt.writeSigned(out, endTimes[i] - startTimes[i]);
                 }
-                for (S2Integer.Coverage s2Cover : bitmaps) {
-                    for (int intId : s2Cover.intIds) {
-                        dos.writeInt(intId);
-                    }
+            }
+            return baos.toByteArray();
+        }
+
+        private static int getCoveragesLength(List<S2Integer.Coverage> bitmaps) {
+            int numCoverageIds = 0;
+            for (S2Integer.Coverage s2Cover : bitmaps) {
+                numCoverageIds += s2Cover.intIds.length;
+            }
+            return 4 + 4 * bitmaps.size() + 4 * numCoverageIds;
+        }
+
+        private void writeCoverages(List<S2Integer.Coverage> bitmaps) throws IOException {
+            dos.writeInt(bitmaps.size());
+            for (S2Integer.Coverage s2Cover : bitmaps) {
+                dos.writeInt(s2Cover.intIds.length);
+            }
+            for (S2Integer.Coverage s2Cover : bitmaps) {
+                for (int intId : s2Cover.intIds) {
+                    dos.writeInt(intId);
                 }
             }
         }
 
-        void writeBlockSizes(int[] blockSizes) throws IOException {
-            for (int blockSize : blockSizes) {
-                dos.writeInt(blockSize);
+        private static int getEntryBytes(DbFile.Entry entry) {
+            // paths are front coded, their UTF-8 length is only an upper bound
+            return 4 + entry.polygonBytes.length + Utf8.encodedLength(entry.path);
+        }
+
+        /**
+         * Encodes the block to the spool and adds its size and its zone summary.
+         *
+         * @return The size of the block in bytes.
+         */
+        private int writeBlock(List<DbFile.Entry> block, List<S2Integer.Coverage> bitmaps, Spool blockSpool,
+                               IntArray blockSizes, IntArray zoneMinStartTimes, IntArray zoneMaxEndTimes,
+                               List<int[]> zoneCoverages) throws IOException {
+            byte[] encodedPaths = encodePaths(block, 0, block.size());
+            int size = 4 + encodedPaths.length + 4 * block.size();
+            DataOutputStream out = blockSpool.out;
+            out.writeInt(encodedPaths.length);
+            out.write(encodedPaths);
+            for (DbFile.Entry entry : block) {
+                out.writeInt(entry.polygonBytes.length);
+            }
+            for (DbFile.Entry entry : block) {
+                out.write(entry.polygonBytes);
+                size += entry.polygonBytes.length;
+            }
+            blockSizes.add(size);
+
+            int minStartTime = Integer.MAX_VALUE;
+            int maxEndTime = Integer.MIN_VALUE;
+            Set<Integer> coverageIndices = new HashSet<>();
+            for (DbFile.Entry entry : block) {
+                minStartTime = Math.min(minStartTime, entry.startTime);
+                maxEndTime = Math.max(maxEndTime, entry.endTime);
+                coverageIndices.add(entry.coverageIndex);
+            }
+            zoneMinStartTimes.add(minStartTime);
+            zoneMaxEndTimes.add(maxEndTime);
+            if (useIndex) {
+                List<int[]> coverages = new ArrayList<>(coverageIndices.size());
+                for (int coverageIndex : coverageIndices) {
+                    coverages.add(bitmaps.get(coverageIndex).intIds);
+                }
+                zoneCoverages.add(S2Integer.union(coverages));
+            } else {
+                zoneCoverages.add(new int[0]);
             }
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            dos.close();
         }
+    }
+
+    /**
+     * A growing array of ints, for the per entry values of the writer.
+     */
+    private static class IntArray {
 
-        private void writeBlock(int blockNumber, List<DbFile.Entry> entries) throws IOException {
-            int startIndex = blockNumber * blockSize;
-            int endIndex = Math.min(startIndex + blockSize, entries.size());
+        private int[] values = new int[1024];
+        private int size;
 
-            byte[] compressPaths = compressPaths(entries, startIndex, endIndex);
-            dos.writeInt(compressPaths.length);
-            dos.write(compressPaths);
-            for (int i = startIndex; i < endIndex; i++) {
-                dos.writeInt(entries.get(i).polygonBytes.length);
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
             }
-            for (int i = startIndex; i < endIndex; i++) {
-                dos.write(entries.get(i).polygonBytes);
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        void writeTo(DataOutputStream dos) throws IOException {
+            for (int i = 0; i < size; i++) {
+                dos.writeInt(values[i]);
             }
         }
+    }
+
+    /**
+     * Holds a part of the file that is written before its length is known, in memory or in a temporary file.
+     */
+    private static class Spool implements AutoCloseable {
+
+        final DataOutputStream out;
+        private final ByteArrayOutputStream baos;
+        private final Path file;
+
+        private Spool(ByteArrayOutputStream baos, Path file, OutputStream os) {
+            this.baos = baos;
+            this.file = file;
+            this.out = new DataOutputStream(os);
+        }
 
-        private int calculateBlockSize(int blockNumber, List<DbFile.Entry> entries) throws IOException {
-            int startIndex = blockNumber * blockSize;
-            int endIndex = Math.min(startIndex + blockSize, entries.size());
+        static Spool inMemory() {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            return new Spool(baos, null, baos);
+        }
 
-            int bytesCompressedPath = 4 + compressPaths(entries, startIndex, endIndex).length;
-            int bytesPolygonSizes = (endIndex - startIndex) * 4;
-            int bytesPolygons = calculateSizePolygons(entries, startIndex, endIndex);
-            return bytesCompressedPath + bytesPolygonSizes + bytesPolygons;
+        static Spool inTempFile() throws IOException {
+            Path file = Files.createTempFile("geodb", ".spool");
+            return new Spool(null, file, new BufferedOutputStream(Files.newOutputStream(file)));
         }
 
-        static int calculateSizePolygons(List<DbFile.Entry> entries, int startIndex, int endIndex) {
-            int bytesPolygons = 0;
-            for (int i = startIndex; i < endIndex; i++) {
-                bytesPolygons += entries.get(i).polygonBytes.length;
+        /**
+         * @return The number of bytes written, {@link Integer#MAX_VALUE} if there are more.
+         */
+        long size() {
+            return out.size();
+        }
+
+        void copyTo(OutputStream os) throws IOException {
+            out.flush();
+            if (baos != null) {
+                baos.writeTo(os);
+            } else {
+                Files.copy(file, os);
             }
-            return bytesPolygons;
         }
 
         @Override
         public void close() throws IOException {
-            dos.close();
+            out.close();
+            if (file != null) {
+                Files.delete(file);
+            }
         }
     }
 
     static abstract class Reader implements AutoCloseable {
 
-        private final int blockSize;
         private final boolean useIndex;
+        private int blockSize;
         private int numEntries;
-        private int[] startTimes;
-        private int[] endTimes;
-        private int[] bitmapIds;
-        private int[] bitmapSizes;
-        private int currentEntryId = -1;
-        private int currentBlockId = -1;
+        private int[] sectionOffsets;
+        private int[] sectionLengths;
+        private IntBuffer startTimes;
+        private IntBuffer endTimes;
+        private IntBuffer bitmapIds;
         private int[] blockSizes;
-        private int[] blockOffsets;
-        private String[] blockPath;
-        private int[] blockPolgonSizes;
-        private int[] blockPolgonOffsets;
-        private ByteBuffer blockBB;
-        private int currentEntryInBlock;
-        private int[][] coverages;
+        // set last when the block table is read, the other fields of the table are visible once it is set
+        private volatile int[] blockOffsets;
+        private int[] blockStarts;
+        private int pathFormat = PATH_FORMAT_DEFLATE;
+        private BlockCache blockCache;
+        private ExecutorService readAheadExecutor;
+        private int maxBlocksInFlight;
+        private int[] plannedBlocks = new int[0];
+        private int plannedPosition;
+        private final Map<Integer, Future<Block>> blocksInFlight = new HashMap<>();
+        private CoverageDictionary coverages;
+        private CellIndex cellIndex;
+        private CoverageDictionary interiors;
+        private IntBuffer zoneMinStartTimes;
+        private IntBuffer zoneMaxEndTimes;
+        private CoverageDictionary zoneCoverages;
+        private PolygonCodec polygonCodec = PolygonCodec.FLOAT_XYZ;
+        // blocks are also read by the read ahead threads and by cursors
+        private final AtomicLong numBlocksRead = new AtomicLong();
+        private final AtomicLong numBytesRead = new AtomicLong();
+        private final AtomicLong pathDecodeNanos = new AtomicLong();
+        private final Cursor cursor = new Cursor() {
+            @Override
+            Block loadBlock(int blockId) throws IOException {
+                Block block = getBlock(blockId);
+                if (!blocksInFlight.isEmpty() || plannedPosition < plannedBlocks.length) {
+                    for (int i = plannedPosition; i < plannedBlocks.length; i++) {
+                        if (plannedBlocks[i] == blockId) {
+                            plannedPosition = i + 1;
+                            scheduleReadAhead();
+                            break;
+                        }
+                    }
+                }
+                return block;
+            }
+        };
 
         Reader(int blockSize, boolean useIndex) {
             this.blockSize = blockSize;
             this.useIndex = useIndex;
         }
 
+        /**
+         * Reads the header of the file. For the current format only the table of contents is read,
+         * the sections are loaded when they are accessed for the first time.
+         */
         void readIndex() throws IOException {
-            ByteBuffer bb = ByteBuffer.allocate(FILE_MARKER.length() + 4 + (useIndex ? 4 : 0));
-            readFully(bb.array());
-            if (!FILE_MARKER.equals(new String(bb.array(), 0, FILE_MARKER.length()))) {
+            byte[] marker = new byte[FILE_MARKER.length()];
+            readBuffer(marker.length).get(marker);
+            String fileMarker = new String(marker);
+            if (FILE_MARKER.equals(fileMarker)) {
+                readTableOfContents();
+            } else if (FILE_MARKER_V1.equals(fileMarker)) {
+                readIndexV1();
+            } else {
                 throw new IllegalArgumentException("file header does not match");
             }
-            bb.position(FILE_MARKER.length());
+        }
+
+        private void readTableOfContents() throws IOException {
+            ByteBuffer bb = readBuffer(8);
+            numEntries = bb.getInt();
+            int numSections = bb.getInt();
+            sectionOffsets = new int[MAX_SECTION_ID + 1];
+            sectionLengths = new int[MAX_SECTION_ID + 1];
+            Arrays.fill(sectionOffsets, -1);
+            IntBuffer toc = readBuffer(numSections * 3 * 4).asIntBuffer();
+            for (int i = 0; i < numSections; i++) {
+                int sectionId = toc.get();
+                int offset = toc.get();
+                int length = toc.get();
+                if (sectionId <= MAX_SECTION_ID) {
+                    // unknown sections from newer writers are ignored
+                    sectionOffsets[sectionId] = offset;
+                    sectionLengths[sectionId] = length;
+                }
+            }
+        }
+
+        private void readIndexV1() throws IOException {
+            ByteBuffer bb = readBuffer(4 + (useIndex ? 4 : 0));
             numEntries = bb.getInt();
 
             int numBitmaps = 0;
             if (useIndex) {
                 numBitmaps = bb.getInt();
-                bb = ByteBuffer.allocate(3 * 4 * numEntries + 4 * numBitmaps);
+                bb = readBuffer(3 * 4 * numEntries + 4 * numBitmaps);
             } else {
-                bb = ByteBuffer.allocate(2 * 4 * numEntries);
+                bb = readBuffer(2 * 4 * numEntries);
             }
-            readFully(bb.array());
 
             IntBuffer intBuffer = bb.asIntBuffer();
-            startTimes = new int[numEntries];
-            intBuffer.get(startTimes);
-            endTimes = new int[numEntries];
-            intBuffer.get(endTimes);
-            
+            startTimes = sliceInts(intBuffer, numEntries);
+            endTimes = sliceInts(intBuffer, numEntries);
+
             if (useIndex) {
-                bitmapIds = new int[numEntries];
-                intBuffer.get(bitmapIds);
-                bitmapSizes = new int[numBitmaps];
-                intBuffer.get(bitmapSizes);
-
-                coverages = new int[numBitmaps][];
-                for (int i = 0; i < coverages.length; i++) {
-                    coverages[i] = readIntArray(bitmapSizes[i]);
+                bitmapIds = sliceInts(intBuffer, numEntries);
+                IntBuffer bitmapSizes = sliceInts(intBuffer, numBitmaps);
+                int numCoverageIds = 0;
+                for (int i = 0; i < numBitmaps; i++) {
+                    numCoverageIds += bitmapSizes.get(i);
                 }
+                coverages = CoverageDictionary.read(bitmapSizes, readBuffer(4 * numCoverageIds).asIntBuffer());
             }
             
             int numBlocks = getNumBlocks(numEntries, blockSize);
             blockSizes = readIntArray(numBlocks);
-            blockOffsets = new int[blockSizes.length];
-            int beginOfBlocks = getPosition();
-            for (int i = 0; i < blockSizes.length; i++) {
-                if (i == 0) {
-                    blockOffsets[i] = beginOfBlocks;
-                } else {
-                    blockOffsets[i] = blockOffsets[i - 1] + blockSizes[i - 1];
-                }
+            blockStarts = computeBlockStarts(numBlocks, blockSize);
+            blockOffsets = computeBlockOffsets(getPosition(), blockSizes);
+        }
+
+        /**
+         * Makes sure all sections are loaded. This is needed for readers that can only seek forward,
+         * because sections can not be loaded in arbitrary order later on.
+         */
+        void readAllSections() throws IOException {
+            if (sectionOffsets == null) {
+                return; // the former format is always read completely
+            }
+            startTimes();
+            if (useIndex) {
+                bitmapIds();
+                coverages();
+                getCellIndex();
+                getInteriors();
+            }
+            readZones();
+            readBlockTable();
+        }
+
+        private ByteBuffer readSection(int sectionId) throws IOException {
+            if (sectionOffsets[sectionId] == -1) {
+                throw new IOException("section " + sectionId + " does not exist in file");
             }
+            return readBufferAt(sectionOffsets[sectionId], sectionLengths[sectionId]);
         }
 
-        int[] getStartTimes() {
+        private IntBuffer startTimes() throws IOException {
+            if (startTimes == null) {
+                readTimes();
+            }
             return startTimes;
         }
 
-        int[] getEndTimes() {
+        private IntBuffer endTimes() throws IOException {
+            if (endTimes == null) {
+                readTimes();
+            }
             return endTimes;
         }
 
-        int numBitmaps() {
-            return coverages == null ? 0 : coverages.length;
+        private void readTimes() throws IOException {
+            if (sectionOffsets[SECTION_TIMES] != -1) {
+                ByteBuffer bb = readSection(SECTION_TIMES);
+                int[] starts = new int[numEntries];
+                int[] ends = new int[numEntries];
+                int lastStartTime = 0;
+                for (int i = 0; i < numEntries; i++) {
+                    lastStartTime += VarInt.readSigned(bb);
+                    starts[i] = lastStartTime;
+                }
+                for (int i = 0; i < numEntries; i++) {
+                    ends[i] = starts[i] + VarInt.readSigned(bb);
+                }
+                startTimes = IntBuffer.wrap(starts);
+                endTimes = IntBuffer.wrap(ends);
+            } else {
+                startTimes = readSection(SECTION_START_TIMES).asIntBuffer();
+                endTimes = readSection(SECTION_END_TIMES).asIntBuffer();
+            }
         }
 
-        int getBitmapIndex(int index) {
-            return bitmapIds[index];
+        private IntBuffer bitmapIds() throws IOException {
+            if (bitmapIds == null) {
+                bitmapIds = readSection(SECTION_COVERAGE_IDS).asIntBuffer();
+            }
+            return bitmapIds;
         }
 
-        int[] getBitmap(int index) {
-            return coverages[index];
+        private CoverageDictionary coverages() throws IOException {
+            if (coverages == null) {
+                IntBuffer intBuffer = readSection(SECTION_COVERAGES).asIntBuffer();
+                int numBitmaps = intBuffer.get();
+                IntBuffer bitmapSizes = sliceInts(intBuffer, numBitmaps);
+                coverages = CoverageDictionary.read(bitmapSizes, intBuffer);
+            }
+            return coverages;
         }
 
-        void readEntry(int entryId) throws IOException {
-            if (entryId == currentEntryId) {
+        private void readZones() throws IOException {
+            if (zoneCoverages == null) {
+                if (sectionOffsets == null || sectionOffsets[SECTION_ZONES] == -1) {
+                    zoneCoverages = CoverageDictionary.EMPTY;
+                    return;
+                }
+                IntBuffer intBuffer = readSection(SECTION_ZONES).asIntBuffer();
+                int numZones = intBuffer.get();
+                zoneMinStartTimes = sliceInts(intBuffer, numZones);
+                zoneMaxEndTimes = sliceInts(intBuffer, numZones);
+                IntBuffer zoneCoverageSizes = sliceInts(intBuffer, numZones);
+                zoneCoverages = CoverageDictionary.read(zoneCoverageSizes, intBuffer);
+            }
+        }
+
+        /**
+         * Double-checked, the cursors call this for every entry they read.
+         */
+        private void readBlockTable() throws IOException {
+            if (blockOffsets == null) {
+                loadBlockTable();
+            }
+        }
+
+        private synchronized void loadBlockTable() throws IOException {
+            if (blockOffsets == null) {
+                int[] starts = null;
+                if (sectionOffsets[SECTION_BLOCK_STARTS] != -1) {
+                    IntBuffer intBuffer = readSection(SECTION_BLOCK_STARTS).asIntBuffer();
+                    starts = new int[intBuffer.remaining()];
+                    intBuffer.get(starts);
+                }
+                if (sectionOffsets[SECTION_BLOCK_FORMAT] != -1) {
+                    ByteBuffer bb = readSection(SECTION_BLOCK_FORMAT);
+                    polygonCodec = PolygonCodec.forId(bb.getInt());
+                    if (bb.remaining() >= 4) {
+                        pathFormat = bb.getInt();
+                    }
+                }
+                seek(sectionOffsets[SECTION_BLOCKS]);
+                ByteBuffer bb = readBuffer(8);
+                blockSize = bb.getInt();
+                int numBlocks = bb.getInt();
+                blockSizes = readIntArray(numBlocks);
+                blockStarts = starts != null ? starts : computeBlockStarts(numBlocks, blockSize);
+                blockOffsets = computeBlockOffsets(getPosition(), blockSizes);
+            }
+        }
+
+        int numEntries() {
+            return numEntries;
+        }
+
+        int getStartTime(int index) throws IOException {
+            return startTimes().get(index);
+        }
+
+        int getEndTime(int index) throws IOException {
+            return endTimes().get(index);
+        }
+
+        /**
+         * @return A read-only view of the start times, ordered by entry id.
+         */
+        IntBuffer getStartTimes() throws IOException {
+            return startTimes().asReadOnlyBuffer();
+        }
+
+        /**
+         * @return A read-only view of the end times, ordered by entry id.
+         */
+        IntBuffer getEndTimes() throws IOException {
+            return endTimes().asReadOnlyBuffer();
+        }
+
+        int numBitmaps() throws IOException {
+            return useIndex ? coverages().size() : 0;
+        }
+
+        int getBitmapIndex(int index) throws IOException {
+            return bitmapIds().get(index);
+        }
+
+        /**
+         * @return A copy of the cells of the coverage, use {@link #getCoverages()} to access them without copying.
+         */
+        int[] getBitmap(int index) throws IOException {
+            return coverages().get(index);
+        }
+
+        CoverageDictionary getCoverages() throws IOException {
+            return coverages();
+        }
+
+        /**
+         * @return The index from cells to entries, {@code null} if the file has none.
+         */
+        CellIndex getCellIndex() throws IOException {
+            if (cellIndex == null && sectionOffsets != null && sectionOffsets[SECTION_CELL_INDEX] != -1) {
+                cellIndex = new CellIndex(readSection(SECTION_CELL_INDEX));
+            }
+            return cellIndex;
+        }
+
+        /**
+         * @return The interior coverings of the entries, {@code null} if the file has none.
+         * The cells of an interior covering lie completely inside the polygon of the entry.
+         */
+        CoverageDictionary getInteriors() throws IOException {
+            if (interiors == null && sectionOffsets != null && sectionOffsets[SECTION_INTERIORS] != -1) {
+                IntBuffer intBuffer = readSection(SECTION_INTERIORS).asIntBuffer();
+                int numInteriors = intBuffer.get();
+                IntBuffer interiorSizes = sliceInts(intBuffer, numInteriors);
+                interiors = CoverageDictionary.read(interiorSizes, intBuffer);
+            }
+            return interiors;
+        }
+
+        /**
+         * Sets a cache for the decoded blocks. Without a cache only the block of the current entry is kept.
+         */
+        void setBlockCache(BlockCache blockCache) {
+            this.blockCache = blockCache;
+        }
+
+        /**
+         * @return The number of zones, 0 if the file has no zone maps. A zone summarizes the entries of one block.
+         */
+        int numZones() throws IOException {
+            readZones();
+            return zoneCoverages.size();
+        }
+
+        int getZone(int entryId) throws IOException {
+            readBlockTable();
+            return findBlock(entryId, -1);
+        }
+
+        int getZoneStart(int zone) throws IOException {
+            readBlockTable();
+            return blockStarts[zone];
+        }
+
+        int getZoneMinStartTime(int zone) throws IOException {
+            readZones();
+            return zoneMinStartTimes.get(zone);
+        }
+
+        int getZoneMaxEndTime(int zone) throws IOException {
+            readZones();
+            return zoneMaxEndTimes.get(zone);
+        }
+
+        /**
+         * @return The union of the coverages of all entries in the zone, empty without index.
+         */
+        int[] getZoneCoverage(int zone) throws IOException {
+            readZones();
+            return zoneCoverages.get(zone);
+        }
+
+        /**
+         * @return For each zone the union of the coverages of its entries, empty without index.
+         */
+        CoverageDictionary getZoneCoverages() throws IOException {
+            readZones();
+            return zoneCoverages;
+        }
+
+        /**
+         * Enables reading ahead: the blocks of entries announced with {@link #planEntries(int[])}
+         * are read and decoded in the background, at most {@code maxBlocksInFlight} at a time.
+         * Only readers that support random access read ahead.
+         */
+        void setReadAhead(ExecutorService executor, int maxBlocksInFlight) {
+            this.readAheadExecutor = executor;
+            this.maxBlocksInFlight = maxBlocksInFlight;
+        }
+
+        /**
+         * Announces the entries that will be read next with {@link #readEntry(int)}, in this order.
+         */
+        void planEntries(int[] entryIds) throws IOException {
+            cancelReadAhead();
+            if (readAheadExecutor == null || maxBlocksInFlight <= 0 || !supportsRandomAccess()) {
                 return;
             }
-            int blockId = entryId / blockSize;
-            if (blockId != currentBlockId) {
-                // seek to block
-                readBlock(blockId);
-                currentBlockId = blockId;
+            readBlockTable();
+            int[] blocks = new int[entryIds.length];
+            int numBlocks = 0;
+            for (int entryId : entryIds) {
+                int blockId = findBlock(entryId, cursor.currentBlockId);
+                if (numBlocks == 0 || blocks[numBlocks - 1] != blockId) {
+                    blocks[numBlocks++] = blockId;
+                }
+            }
+            plannedBlocks = Arrays.copyOf(blocks, numBlocks);
+            plannedPosition = 0;
+            scheduleReadAhead();
+        }
+
+        /**
+         * Cancels all reading ahead that has not been consumed yet.
+         */
+        void cancelReadAhead() {
+            for (Future<Block> future : blocksInFlight.values()) {
+                future.cancel(false);
+            }
+            blocksInFlight.clear();
+            plannedBlocks = new int[0];
+            plannedPosition = 0;
+        }
+
+        private void scheduleReadAhead() {
+            int end = Math.min(plannedBlocks.length, plannedPosition + maxBlocksInFlight);
+            for (int i = plannedPosition; i < end; i++) {
+                int blockId = plannedBlocks[i];
+                if (!blocksInFlight.containsKey(blockId) && (blockCache == null || !blockCache.contains(blockId))) {
+                    blocksInFlight.put(blockId, readAheadExecutor.submit(() -> readBlock(blockId)));
+                }
             }
-            currentEntryId = entryId;
-            currentEntryInBlock = entryId % blockSize;
         }
 
+        void readEntry(int entryId) throws IOException {
+            cursor.readEntry(entryId);
+        }
+
+        /**
+         * Decodes the path of the current entry. Within the current format only this path is decoded,
+         * not the other paths of the block.
+         */
         String getCurrentPath() {
-            return blockPath[currentEntryInBlock];
+            return cursor.getCurrentPath();
         }
 
         byte[] getCurrentPolygonBytes() {
-            blockBB.position(blockPolgonOffsets[currentEntryInBlock]);
-            byte[] currentPolygonBytes = new byte[blockPolgonSizes[currentEntryInBlock]];
-            blockBB.get(currentPolygonBytes);
-            return currentPolygonBytes;
+            return cursor.getCurrentPolygonBytes();
         }
 
         S2Polygon getCurrentPolygon() {
-            blockBB.position(blockPolgonOffsets[currentEntryInBlock]);
-            return S2Utils.asPolygon(blockBB);
+            return cursor.getCurrentPolygon();
+        }
+
+        S2LatLngRect getCurrentRectBound() {
+            return cursor.getCurrentRectBound();
+        }
+
+        boolean currentPolygonContainsAny(S2Point[] points, S2LatLng[] latLngs, int[] pointIndices, int from, int to) {
+            return cursor.currentPolygonContainsAny(points, latLngs, pointIndices, from, to);
+        }
+
+        /**
+         * Creates a cursor with its own current entry, for reading entries in parallel to this reader
+         * and to other cursors. The cursor shares the block cache, but does not read ahead.
+         * Only readers that support random access can have more than one cursor.
+         */
+        Cursor newCursor() {
+            if (!supportsRandomAccess()) {
+                throw new UnsupportedOperationException("reader does not support random access");
+            }
+            return new Cursor();
+        }
+
+        /**
+         * @return The block holding the given entry, found by a binary search over the block starts.
+         */
+        private int findBlock(int entryId, int currentBlockId) {
+            if (currentBlockId != -1 && entryId >= blockStarts[currentBlockId]
+                    && entryId < getBlockEnd(blockStarts, currentBlockId, numEntries)) {
+                return currentBlockId;
+            }
+            int pos = Arrays.binarySearch(blockStarts, entryId);
+            return pos >= 0 ? pos : -pos - 2;
+        }
+
+        private Block getBlock(int blockId) throws IOException {
+            Block block = blockCache != null ? blockCache.get(blockId) : null;
+            if (block == null) {
+                Future<Block> future = blocksInFlight.remove(blockId);
+                if (future != null) {
+                    block = awaitBlock(future);
+                } else {
+                    // seek to block
+                    block = readBlock(blockId);
+                }
+                if (blockCache != null) {
+                    blockCache.put(blockId, block);
+                }
+            }
+            return block;
+        }
+
+        private static Block awaitBlock(Future<Block> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while reading ahead");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
         }
 
-        private void readBlock(int blockId) throws IOException {
-            seek(blockOffsets[blockId]);
-            blockBB = ByteBuffer.allocate(blockSizes[blockId]);
-            readFully(blockBB.array());
+        /**
+         * @return The codec of the polygon bytes, only valid after the first entry has been read.
+         */
+        PolygonCodec getPolygonCodec() {
+            return polygonCodec;
+        }
 
-            int compressedPathSize = blockBB.getInt();
-            blockPath = decompressStrings(blockBB.array(), 4, compressedPathSize);
-            blockBB.position(blockBB.position() + compressedPathSize);
+        /**
+         * @return The number of blocks read from the file, blocks found in the cache are not counted.
+         */
+        long getNumBlocksRead() {
+            return numBlocksRead.get();
+        }
 
-            int startIndex = blockId * blockSize;
-            int endIndex = Math.min(startIndex + blockSize, numEntries);
-            int numPolygonsInBlock = endIndex - startIndex;
-            blockPolgonSizes = new int[numPolygonsInBlock];
-            blockBB.asIntBuffer().get(blockPolgonSizes);
+        long getNumBytesRead() {
+            return numBytesRead.get();
+        }
+
+        /**
+         * @return The time spent decompressing the paths of the blocks read.
+         */
+        long getPathDecodeNanos() {
+            return pathDecodeNanos.get();
+        }
+
+        private Block readBlock(int blockId) throws IOException {
+            ByteBuffer blockBB = readBufferAt(blockOffsets[blockId], blockSizes[blockId]);
+            numBlocksRead.incrementAndGet();
+            numBytesRead.addAndGet(blockSizes[blockId]);
+            // a view on a mapping does not occupy the heap
+            int numBytes = blockBB.isDirect() ? 0 : blockBB.capacity();
+
+            int pathsSize = blockBB.getInt();
+            String[] paths = null;
+            FrontCodedStrings codedPaths = null;
+            if (pathFormat == PATH_FORMAT_FRONT_CODED) {
+                codedPaths = new FrontCodedStrings(blockBB.duplicate());
+                blockBB.position(blockBB.position() + pathsSize);
+            } else if (pathFormat == PATH_FORMAT_DEFLATE) {
+                long start = System.nanoTime();
+                paths = decompressStrings(blockBB, pathsSize);
+                pathDecodeNanos.addAndGet(System.nanoTime() - start);
+                for (String path : paths) {
+                    numBytes += 40 + 2 * path.length();
+                }
+            } else {
+                throw new IOException("unknown path format: " + pathFormat);
+            }
+
+            int numPolygonsInBlock = getBlockEnd(blockStarts, blockId, numEntries) - blockStarts[blockId];
+            int[] polygonSizes = new int[numPolygonsInBlock];
+            blockBB.asIntBuffer().get(polygonSizes);
             blockBB.position(blockBB.position() + numPolygonsInBlock * 4);
             int blockBBPolygonStart = blockBB.position();
-            blockPolgonOffsets = new int[blockPolgonSizes.length];
-            for (int i = 0; i < blockPolgonSizes.length; i++) {
+            int[] polygonOffsets = new int[polygonSizes.length];
+            for (int i = 0; i < polygonSizes.length; i++) {
                 if (i == 0) {
-                    blockPolgonOffsets[i] = blockBBPolygonStart;
+                    polygonOffsets[i] = blockBBPolygonStart;
                 } else {
-                    blockPolgonOffsets[i] = blockPolgonOffsets[i - 1] + blockPolgonSizes[i - 1];
+                    polygonOffsets[i] = polygonOffsets[i - 1] + polygonSizes[i - 1];
                 }
             }
+            numBytes += 8 * numPolygonsInBlock;
+            return new Block(blockBB, paths, codedPaths, polygonSizes, polygonOffsets, numBytes);
         }
 
-
         private int[] readIntArray(int numInts) throws IOException {
-            ByteBuffer byteBuf = ByteBuffer.allocate(numInts * 4);
-            readFully(byteBuf.array());
-            IntBuffer intBuf = byteBuf.asIntBuffer();
+            IntBuffer intBuf = readBuffer(numInts * 4).asIntBuffer();
             int[] result = new int[numInts];
             intBuf.get(result);
             return result;
         }
+
+        /**
+         * Reads the next {@code length} bytes from the current position.
+         * The default implementation copies them into a new heap buffer,
+         * implementations with random access to the data can return a view instead.
+         */
+        ByteBuffer readBuffer(int length) throws IOException {
+            ByteBuffer byteBuf = ByteBuffer.allocate(length);
+            readFully(byteBuf.array());
+            return byteBuf;
+        }
         
+        /**
+         * Reads {@code length} bytes starting at {@code pos}. Can be called from several threads
+         * if {@link #supportsRandomAccess()}.
+         */
+        synchronized ByteBuffer readBufferAt(int pos, int length) throws IOException {
+            seek(pos);
+            return readBuffer(length);
+        }
+
+        /**
+         * @return {@code true}, if the reader can seek backwards, which is required for reading ahead.
+         */
+        boolean supportsRandomAccess() {
+            return true;
+        }
+
         abstract void readFully(byte[] b) throws IOException;
         
         abstract int getPosition() throws IOException;
         
         abstract void seek(int pos) throws IOException;
-        
+
+        /**
+         * The current entry of a reader.
+         */
+        class Cursor {
+
+            private int currentEntryId = -1;
+            private int currentBlockId = -1;
+            private Block currentBlock;
+            private int currentEntryInBlock;
+            private PointInLoop pointInLoop;
+
+            void readEntry(int entryId) throws IOException {
+                if (entryId == currentEntryId) {
+                    return;
+                }
+                readBlockTable();
+                int blockId = findBlock(entryId, currentBlockId);
+                if (blockId != currentBlockId) {
+                    currentBlock = loadBlock(blockId);
+                    currentBlockId = blockId;
+                }
+                currentEntryId = entryId;
+                currentEntryInBlock = entryId - blockStarts[blockId];
+            }
+
+            Block loadBlock(int blockId) throws IOException {
+                Block block = blockCache != null ? blockCache.get(blockId) : null;
+                if (block == null) {
+                    block = readBlock(blockId);
+                    if (blockCache != null) {
+                        blockCache.put(blockId, block);
+                    }
+                }
+                return block;
+            }
+
+            String getCurrentPath() {
+                return currentBlock.getPath(currentEntryInBlock);
+            }
+
+            byte[] getCurrentPolygonBytes() {
+                return currentBlock.getPolygonBytes(currentEntryInBlock);
+            }
+
+            S2Polygon getCurrentPolygon() {
+                return currentBlock.getPolygon(currentEntryInBlock, polygonCodec);
+            }
+
+            S2LatLngRect getCurrentRectBound() {
+                return currentBlock.getRectBound(currentEntryInBlock, polygonCodec);
+            }
+
+            boolean currentPolygonContainsAny(S2Point[] points, S2LatLng[] latLngs, int[] pointIndices, int from, int to) {
+                if (pointInLoop == null) {
+                    pointInLoop = new PointInLoop();
+                }
+                return currentBlock.polygonContainsAny(currentEntryInBlock, polygonCodec, pointInLoop,
+                                                       points, latLngs, pointIndices, from, to);
+            }
+        }
     }
 
     static class ImageInputStreamReader extends Reader {
@@ -356,6 +1240,17 @@ class DbFile {
             this.currentPos = 0;
         }
 
+        @Override
+        void readIndex() throws IOException {
+            super.readIndex();
+            readAllSections();
+        }
+
+        @Override
+        boolean supportsRandomAccess() {
+            return false;
+        }
+
         @Override
         void readFully(byte[] b) throws IOException {
             int off = 0;
@@ -393,6 +1288,149 @@ class DbFile {
         }
     }
        
+    /**
+     * Reads the file through a read-only memory mapping of the whole file.
+     * Index sections and blocks are returned as views on the mapping, so no data is copied
+     * and repeated openings of the same file are served from the page cache.
+     */
+    static class MappedReader extends Reader {
+        private final FileChannel channel;
+        private final MappedByteBuffer mappedBB;
+
+        MappedReader(FileChannel channel) throws IOException {
+            this(channel, DEFAULT_BLOCK_SIZE, true);
+        }
+
+        MappedReader(FileChannel channel, boolean useIndex) throws IOException {
+            this(channel, DEFAULT_BLOCK_SIZE, useIndex);
+        }
+
+        MappedReader(FileChannel channel, int blockSize, boolean useIndex) throws IOException {
+            super(blockSize, useIndex);
+            this.channel = channel;
+            this.mappedBB = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        @Override
+        void readFully(byte[] b) throws IOException {
+            if (mappedBB.remaining() < b.length) {
+                throw new EOFException();
+            }
+            mappedBB.get(b);
+        }
+
+        @Override
+        ByteBuffer readBuffer(int length) throws IOException {
+            if (mappedBB.remaining() < length) {
+                throw new EOFException();
+            }
+            ByteBuffer slice = mappedBB.slice();
+            slice.limit(length);
+            mappedBB.position(mappedBB.position() + length);
+            return slice;
+        }
+
+        @Override
+        ByteBuffer readBufferAt(int pos, int length) throws IOException {
+            if (pos + length > mappedBB.limit()) {
+                throw new EOFException();
+            }
+            ByteBuffer slice = mappedBB.duplicate();
+            slice.position(pos);
+            slice = slice.slice();
+            slice.limit(length);
+            return slice;
+        }
+
+        @Override
+        int getPosition() throws IOException {
+            return mappedBB.position();
+        }
+
+        @Override
+        protected void seek(int pos) throws IOException {
+            mappedBB.position(pos);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the mapping itself stays valid until it is garbage collected
+            channel.close();
+        }
+    }
+
+    /**
+     * A decoded block: the paths and the offsets of the polygons within the block data.
+     */
+    static class Block {
+
+        private final ByteBuffer blockBB;
+        private final String[] paths;
+        private final FrontCodedStrings codedPaths;
+        private final int[] polygonSizes;
+        private final int[] polygonOffsets;
+        private final int numBytes;
+
+        private Block(ByteBuffer blockBB, String[] paths, FrontCodedStrings codedPaths,
+                      int[] polygonSizes, int[] polygonOffsets, int numBytes) {
+            this.blockBB = blockBB;
+            this.paths = paths;
+            this.codedPaths = codedPaths;
+            this.polygonSizes = polygonSizes;
+            this.polygonOffsets = polygonOffsets;
+            this.numBytes = numBytes;
+        }
+
+        String getPath(int entryInBlock) {
+            if (codedPaths != null) {
+                return codedPaths.get(entryInBlock);
+            }
+            return paths[entryInBlock];
+        }
+
+        // a cached block can be used from several threads, so each access works on its own view of the data
+
+        byte[] getPolygonBytes(int entryInBlock) {
+            ByteBuffer bb = blockBB.duplicate();
+            bb.position(polygonOffsets[entryInBlock]);
+            byte[] polygonBytes = new byte[polygonSizes[entryInBlock]];
+            bb.get(polygonBytes);
+            return polygonBytes;
+        }
+
+        S2Polygon getPolygon(int entryInBlock, PolygonCodec polygonCodec) {
+            ByteBuffer bb = blockBB.duplicate();
+            bb.position(polygonOffsets[entryInBlock]);
+            return polygonCodec.decode(bb);
+        }
+
+        /**
+         * Reads only the bounding rectangle of the polygon, in place from the block data.
+         */
+        S2LatLngRect getRectBound(int entryInBlock, PolygonCodec polygonCodec) {
+            ByteBuffer bb = blockBB.duplicate();
+            bb.position(polygonOffsets[entryInBlock]);
+            return polygonCodec.decodeRectBound(bb);
+        }
+
+        /**
+         * Tests the points in place on the block data, without decoding the polygon.
+         */
+        boolean polygonContainsAny(int entryInBlock, PolygonCodec polygonCodec, PointInLoop pointInLoop,
+                                   S2Point[] points, S2LatLng[] latLngs, int[] pointIndices, int from, int to) {
+            ByteBuffer bb = blockBB.duplicate();
+            bb.position(polygonOffsets[entryInBlock]);
+            return pointInLoop.containsAny(bb, polygonCodec, points, latLngs, pointIndices, from, to);
+        }
+
+        /**
+         * @return The estimated number of heap bytes used by this block.
+         */
+        int getNumBytes() {
+            return numBytes;
+        }
+    }
+
     static class Entry {
 
         final int startTime;
@@ -400,42 +1438,89 @@ class DbFile {
         final String path;
         final byte[] polygonBytes;
         final int coverageIndex;
+        final int[] interior;
 
         Entry(int startTime, int endTime, String path, byte[] polygonBytes, int coverageIndex) {
+            this(startTime, endTime, path, polygonBytes, coverageIndex, new int[0]);
+        }
+
+        /**
+         * @param interior the cells of an interior covering of the polygon, can be empty
+         */
+        Entry(int startTime, int endTime, String path, byte[] polygonBytes, int coverageIndex, int[] interior) {
             this.startTime = startTime;
             this.endTime = endTime;
             this.path = path;
             this.polygonBytes = polygonBytes;
             this.coverageIndex = coverageIndex;
+            this.interior = interior;
         }
     }
 
+    /**
+     * Returns a view on the next {@code length} ints of the given buffer and advances it.
+     */
+    static IntBuffer sliceInts(IntBuffer intBuffer, int length) {
+        IntBuffer slice = intBuffer.slice();
+        slice.limit(length);
+        intBuffer.position(intBuffer.position() + length);
+        return slice;
+    }
+
+    static int getHeaderSize(int numSections) {
+        return FILE_MARKER.length() + 4 + 4 + numSections * 3 * 4;
+    }
+
+    static int[] computeBlockOffsets(int beginOfBlocks, int[] blockSizes) {
+        int[] blockOffsets = new int[blockSizes.length];
+        for (int i = 0; i < blockSizes.length; i++) {
+            if (i == 0) {
+                blockOffsets[i] = beginOfBlocks;
+            } else {
+                blockOffsets[i] = blockOffsets[i - 1] + blockSizes[i - 1];
+            }
+        }
+        return blockOffsets;
+    }
+
+    static int[] computeBlockStarts(int numBlocks, int blockSize) {
+        int[] blockStarts = new int[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            blockStarts[i] = i * blockSize;
+        }
+        return blockStarts;
+    }
+
+    /**
+     * @return The index after the last entry of the block.
+     */
+    static int getBlockEnd(int[] blockStarts, int blockId, int numEntries) {
+        return blockId + 1 < blockStarts.length ? blockStarts[blockId + 1] : numEntries;
+    }
+
     static int getNumBlocks(int numEntries, int blockSize) {
         return (int) Math.ceil((float) numEntries / blockSize);
     }
 
-    static byte[] compressPaths(List<DbFile.Entry> entries, int startIndex, int endIndex) throws IOException {
+    static byte[] encodePaths(List<DbFile.Entry> entries, int startIndex, int endIndex) throws IOException {
         String[] paths = new String[endIndex - startIndex];
         for (int entryIndex = startIndex, pathIndex = 0; entryIndex < endIndex; entryIndex++, pathIndex++) {
             paths[pathIndex] = entries.get(entryIndex).path;
         }
-        return compressStrings(paths);
+        return FrontCodedStrings.encode(paths);
     }
 
-    static byte[] compressStrings(String[] strings) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < strings.length; i++) {
-            sb.append(strings[i]);
-            if (i < strings.length - 1) {
-                sb.append('\t');
-            }
-        }
-        byte[] bytesText = sb.toString().getBytes("UTF-8");
-        ByteArrayOutputStream baos1 = new ByteArrayOutputStream();
-        try (OutputStream out = new DeflaterOutputStream(baos1)) {
-            out.write(bytesText);
+    static String[] decompressStrings(ByteBuffer bb, int compressedSize) throws IOException {
+        String[] strings;
+        if (bb.hasArray()) {
+            strings = decompressStrings(bb.array(), bb.arrayOffset() + bb.position(), compressedSize);
+        } else {
+            byte[] bytesCompressed = new byte[compressedSize];
+            bb.duplicate().get(bytesCompressed);
+            strings = decompressStrings(bytesCompressed, 0, compressedSize);
         }
-        return baos1.toByteArray();
+        bb.position(bb.position() + compressedSize);
+        return strings;
     }
 
     static String[] decompressStrings(byte[] bytesCompressed, int offset, int compressedSize) throws IOException {
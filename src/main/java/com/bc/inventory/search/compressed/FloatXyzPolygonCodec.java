@@ -0,0 +1,63 @@
+package com.bc.inventory.search.compressed;
+
+import com.bc.inventory.utils.S2Utils;
+import com.google.common.geometry.R1Interval;
+import com.google.common.geometry.S1Interval;
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Polygon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original polygon encoding: every vertex as three 32-bit floats,
+ * followed by the lat/lng bounding rectangle, see {@link S2Utils#asBytes(S2Polygon)}.
+ */
+class FloatXyzPolygonCodec implements PolygonCodec {
+
+    @Override
+    public int getId() {
+        return FLOAT_XYZ_ID;
+    }
+
+    @Override
+    public byte[] encode(S2Polygon polygon) throws IOException {
+        return S2Utils.asBytes(polygon);
+    }
+
+    @Override
+    public S2Loop decodeLoop(ByteBuffer bb) {
+        return S2Utils.asLoop(bb);
+    }
+
+    @Override
+    public S2LatLngRect decodeRectBound(ByteBuffer bb) {
+        // the rectangle follows the vertices, 3 floats each
+        int rectPosition = bb.position() + 4 + 12 * bb.getInt(bb.position());
+        double latLo = bb.getFloat(rectPosition);
+        double latHi = bb.getFloat(rectPosition + 4);
+        double lngLo = bb.getFloat(rectPosition + 8);
+        double lngHi = bb.getFloat(rectPosition + 12);
+        return new S2LatLngRect(new R1Interval(latLo, latHi), new S1Interval(lngLo, lngHi));
+    }
+
+    @Override
+    public boolean isOriginInside(ByteBuffer bb) {
+        // after the vertices, the rectangle and the first logical vertex
+        return bb.get(bb.position() + 4 + 12 * bb.getInt(bb.position()) + 16 + 4) == 1;
+    }
+
+    @Override
+    public int numVertices(ByteBuffer bb) {
+        return bb.getInt(bb.position());
+    }
+
+    @Override
+    public void decodeVertices(ByteBuffer bb, double[] xyz) {
+        int numVertices = bb.getInt();
+        for (int i = 0; i < numVertices * 3; i++) {
+            xyz[i] = bb.getFloat();
+        }
+    }
+}
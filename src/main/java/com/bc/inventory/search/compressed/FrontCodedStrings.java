@@ -0,0 +1,104 @@
+package com.bc.inventory.search.compressed;
+
+import com.bc.inventory.utils.VarInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A list of strings with random access to single elements, stored front coded:
+ * <pre>
+ *   int restartInterval
+ *   int numRestarts
+ *   int[numRestarts] restart offsets, relative to the begin of the entries
+ *   entries: varint sharedPrefixLength, varint suffixLength, byte[suffixLength] suffix (UTF-8)
+ * </pre>
+ * Every entry shares a prefix with its predecessor, except every {@code restartInterval}-th entry,
+ * which is stored completely. To decode one string only the entries from the preceding restart point
+ * have to be read.
+ */
+class FrontCodedStrings {
+
+    static final int DEFAULT_RESTART_INTERVAL = 16;
+
+    private final ByteBuffer bb;
+    private final int restartInterval;
+    private final int[] restartOffsets;
+    private final int entriesStart;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param bb the encoded strings, starting at the current position. The buffer is used for decoding,
+     *           its position is modified.
+     */
+    FrontCodedStrings(ByteBuffer bb) {
+        this.bb = bb;
+        restartInterval = bb.getInt();
+        restartOffsets = new int[bb.getInt()];
+        bb.asIntBuffer().get(restartOffsets);
+        entriesStart = bb.position() + restartOffsets.length * 4;
+    }
+
+    /**
+     * Synchronized, because the strings of a cached block can be decoded from several threads.
+     */
+    synchronized String get(int index) {
+        int restart = index / restartInterval;
+        bb.position(entriesStart + restartOffsets[restart]);
+        int length = 0;
+        for (int i = restart * restartInterval; i <= index; i++) {
+            int sharedLength = VarInt.readUnsigned(bb);
+            int suffixLength = VarInt.readUnsigned(bb);
+            length = sharedLength + suffixLength;
+            if (length > scratch.length) {
+                byte[] bigger = new byte[Math.max(length, 2 * scratch.length)];
+                System.arraycopy(scratch, 0, bigger, 0, sharedLength);
+                scratch = bigger;
+            }
+            bb.get(scratch, sharedLength, suffixLength);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    static byte[] encode(String[] strings) throws IOException {
+        return encode(strings, DEFAULT_RESTART_INTERVAL);
+    }
+
+    static byte[] encode(String[] strings, int restartInterval) throws IOException {
+        int numRestarts = (strings.length + restartInterval - 1) / restartInterval;
+        int[] restartOffsets = new int[numRestarts];
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(entries)) {
+            byte[] previous = new byte[0];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] current = strings[i].getBytes(StandardCharsets.UTF_8);
+                int sharedLength = 0;
+                if (i % restartInterval == 0) {
+                    restartOffsets[i / restartInterval] = out.size();
+                } else {
+                    int maxShared = Math.min(previous.length, current.length);
+                    while (sharedLength < maxShared && previous[sharedLength] == current[sharedLength]) {
+                        sharedLength++;
+                    }
+                }
+                VarInt.writeUnsigned(out, sharedLength);
+                VarInt.writeUnsigned(out, current.length - sharedLength);
+                out.write(current, sharedLength, current.length - sharedLength);
+                previous = current;
+            }
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(8 + 4 * numRestarts + entries.size());
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeInt(restartInterval);
+            out.writeInt(numRestarts);
+            for (int restartOffset : restartOffsets) {
+                out.writeInt(restartOffset);
+            }
+            entries.writeTo(out);
+        }
+        return baos.toByteArray();
+    }
+}
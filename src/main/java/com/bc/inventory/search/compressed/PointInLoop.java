@@ -0,0 +1,181 @@
+package com.bc.inventory.search.compressed;
+
+import com.google.common.geometry.S2;
+import com.google.common.geometry.S2EdgeUtil;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests points against the encoded polygon of an entry, without creating an {@link S2Loop}.
+ * <p>
+ * The result is the same as {@link S2Loop#contains(S2Point)}: the bounding rectangle is checked first,
+ * then the crossings of the edge from {@link S2#origin()} to the point with the edges of the loop are counted,
+ * with the same predicates as the {@link S2EdgeUtil.EdgeCrosser}. The determinants are computed on the
+ * vertex array, only the rare cases they can not decide (nearly collinear or shared vertices)
+ * are passed on to the S2 functions. All points are tested in one pass over the edges.
+ * <p>
+ * An instance keeps its buffers between the calls and must only be used by one thread.
+ */
+class PointInLoop {
+
+    // S2Loop uses an edge index for larger loops, these are decoded to have the same results
+    static final int MAX_VERTICES = 2000;
+
+    // as in S2.robustCCW, below this the sign of the determinant is uncertain
+    private static final double MIN_ABS_DET = 1.6e-15;
+    private static final S2Point ORIGIN = S2.origin();
+    private static final double OX = ORIGIN.getX();
+    private static final double OY = ORIGIN.getY();
+    private static final double OZ = ORIGIN.getZ();
+
+    private double[] xyz = new double[3 * 64];
+    private S2Point[] points = new S2Point[16];
+    private double[] pointXyz = new double[3 * 16];
+    // the cross product of the origin and the point, for each point
+    private double[] originCrossPoint = new double[3 * 16];
+    // the orientation of the triangle origin, previous vertex, point, for each point
+    private int[] acb = new int[16];
+    private boolean[] inside = new boolean[16];
+    private int numPoints;
+
+    /**
+     * @param bb           the buffer, positioned at the encoded polygon, the position is not changed
+     * @param pointIndices the indices of the points to test, from {@code from} to {@code to}
+     * @return {@code true}, if the loop contains any of the points
+     */
+    boolean containsAny(ByteBuffer bb, PolygonCodec polygonCodec,
+                        S2Point[] points, S2LatLng[] latLngs, int[] pointIndices, int from, int to) {
+        S2LatLngRect rectBound = polygonCodec.decodeRectBound(bb);
+        numPoints = 0;
+        for (int i = from; i < to; i++) {
+            int pointIndex = pointIndices[i];
+            if (rectBound.contains(latLngs[pointIndex])) {
+                addPoint(points[pointIndex]);
+            }
+        }
+        if (numPoints == 0) {
+            return false;
+        }
+        int numVertices = polygonCodec.numVertices(bb);
+        if (numVertices >= MAX_VERTICES) {
+            S2Loop loop = polygonCodec.decodeLoop(bb.duplicate());
+            for (int i = 0; i < numPoints; i++) {
+                if (loop.contains(this.points[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        boolean originInside = polygonCodec.isOriginInside(bb);
+        if (xyz.length < 3 * numVertices) {
+            xyz = new double[3 * numVertices];
+        }
+        polygonCodec.decodeVertices(bb.duplicate(), xyz);
+        return containsAny(numVertices, originInside);
+    }
+
+    private void addPoint(S2Point point) {
+        if (numPoints == acb.length) {
+            int capacity = 2 * numPoints;
+            points = Arrays.copyOf(points, capacity);
+            pointXyz = Arrays.copyOf(pointXyz, 3 * capacity);
+            originCrossPoint = Arrays.copyOf(originCrossPoint, 3 * capacity);
+            acb = Arrays.copyOf(acb, capacity);
+            inside = Arrays.copyOf(inside, capacity);
+        }
+        double x = point.getX();
+        double y = point.getY();
+        double z = point.getZ();
+        int p = 3 * numPoints;
+        points[numPoints] = point;
+        pointXyz[p] = x;
+        pointXyz[p + 1] = y;
+        pointXyz[p + 2] = z;
+        // S2Point.crossProd(ORIGIN, point)
+        originCrossPoint[p] = OY * z - OZ * y;
+        originCrossPoint[p + 1] = OZ * x - OX * z;
+        originCrossPoint[p + 2] = OX * y - OY * x;
+        numPoints++;
+    }
+
+    private boolean containsAny(int numVertices, boolean originInside) {
+        // the chain starts at the last vertex, see S2Loop.contains(S2Point)
+        int c = 3 * (numVertices - 1);
+        for (int j = 0; j < numPoints; j++) {
+            acb[j] = -originCCW(j, c);
+            inside[j] = originInside;
+        }
+        for (int d = 0; d < 3 * numVertices; d += 3) {
+            for (int j = 0; j < numPoints; j++) {
+                int bda = originCCW(j, d);
+                if (bda == -acb[j] && bda != 0) {
+                    // most common case, no crossing
+                } else if ((bda & acb[j]) == 0) {
+                    // two vertices are identical
+                    inside[j] ^= S2EdgeUtil.vertexCrossing(ORIGIN, points[j], vertex(c), vertex(d));
+                } else {
+                    inside[j] ^= crossing(j, c, d);
+                }
+                acb[j] = -bda;
+            }
+            c = d;
+        }
+        for (int j = 0; j < numPoints; j++) {
+            if (inside[j]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * S2.robustCCW(ORIGIN, point j, vertex v) with the precomputed cross product.
+     */
+    private int originCCW(int j, int v) {
+        double det = originCrossPoint[3 * j] * xyz[v] + originCrossPoint[3 * j + 1] * xyz[v + 1]
+                + originCrossPoint[3 * j + 2] * xyz[v + 2];
+        if (det > MIN_ABS_DET) {
+            return 1;
+        }
+        if (det < -MIN_ABS_DET) {
+            return -1;
+        }
+        return S2.robustCCW(ORIGIN, points[j], vertex(v));
+    }
+
+    /**
+     * The slow path of S2EdgeUtil.EdgeCrosser.robustCrossing(), the triangles ACB and BDA are oriented the same way.
+     */
+    private boolean crossing(int j, int c, int d) {
+        // S2Point.crossProd(C, D)
+        double cdx = xyz[c + 1] * xyz[d + 2] - xyz[c + 2] * xyz[d + 1];
+        double cdy = xyz[c + 2] * xyz[d] - xyz[c] * xyz[d + 2];
+        double cdz = xyz[c] * xyz[d + 1] - xyz[c + 1] * xyz[d];
+        int p = 3 * j;
+        int cbd = -ccw(cdx * pointXyz[p] + cdy * pointXyz[p + 1] + cdz * pointXyz[p + 2], c, d, points[j]);
+        if (cbd != acb[j]) {
+            return false;
+        }
+        int dac = ccw(cdx * OX + cdy * OY + cdz * OZ, c, d, ORIGIN);
+        return dac == acb[j];
+    }
+
+    private int ccw(double det, int a, int b, S2Point c) {
+        if (det > MIN_ABS_DET) {
+            return 1;
+        }
+        if (det < -MIN_ABS_DET) {
+            return -1;
+        }
+        return S2.robustCCW(vertex(a), vertex(b), c);
+    }
+
+    private S2Point vertex(int v) {
+        return new S2Point(xyz[v], xyz[v + 1], xyz[v + 2]);
+    }
+}
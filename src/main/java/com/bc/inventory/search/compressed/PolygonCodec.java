@@ -0,0 +1,72 @@
+package com.bc.inventory.search.compressed;
+
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Polygon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the footprint polygon of a product into the bytes stored in the blocks of a {@link DbFile}.
+ * Only the first loop of a polygon is stored.
+ * The id of the codec is stored in the file, so that the reader can choose the matching codec.
+ */
+interface PolygonCodec {
+
+    int FLOAT_XYZ_ID = 1;
+    int QUANTIZED_E6_ID = 2;
+
+    PolygonCodec FLOAT_XYZ = new FloatXyzPolygonCodec();
+    PolygonCodec QUANTIZED_E6 = new QuantizedPolygonCodec(QUANTIZED_E6_ID);
+
+    PolygonCodec DEFAULT = QUANTIZED_E6;
+
+    int getId();
+
+    byte[] encode(S2Polygon polygon) throws IOException;
+
+    /**
+     * Decodes the polygon starting at the current position of the buffer.
+     */
+    S2Loop decodeLoop(ByteBuffer bb);
+
+    default S2Polygon decode(ByteBuffer bb) {
+        return new S2Polygon(decodeLoop(bb));
+    }
+
+    /**
+     * Reads only the bounding rectangle of the polygon starting at the current position of the buffer,
+     * the position is not changed. It is the same rectangle the decoded loop uses as its bound.
+     */
+    S2LatLngRect decodeRectBound(ByteBuffer bb);
+
+    /**
+     * @return the flag whether the polygon at the current position of the buffer contains the S2 origin,
+     * the position is not changed.
+     */
+    boolean isOriginInside(ByteBuffer bb);
+
+    /**
+     * @return the number of vertices of the polygon at the current position of the buffer, the position is not changed.
+     */
+    int numVertices(ByteBuffer bb);
+
+    /**
+     * Decodes only the vertices of the polygon starting at the current position of the buffer
+     * as x,y,z triples of unit vectors into the given array, without creating any S2 objects.
+     * The array must have room for {@code 3 * numVertices(bb)} values.
+     */
+    void decodeVertices(ByteBuffer bb, double[] xyz);
+
+    static PolygonCodec forId(int id) {
+        switch (id) {
+            case FLOAT_XYZ_ID:
+                return FLOAT_XYZ;
+            case QUANTIZED_E6_ID:
+                return QUANTIZED_E6;
+            default:
+                throw new IllegalArgumentException("unknown polygon codec: " + id);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.bc.inventory.search.compressed;
+
+import com.bc.inventory.utils.VarInt;
+import com.google.common.geometry.R1Interval;
+import com.google.common.geometry.S1Interval;
+import com.google.common.geometry.S2;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2LatLngRect;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snaps the vertices to an integer lat/lon grid of 1e-6 degree (~0.1 m, finer than the
+ * float precision of the {@link FloatXyzPolygonCodec}) and stores the difference to the
+ * previous vertex as zig-zag varints. The layout is:
+ * <pre>
+ *   varint numVertices
+ *   numVertices x (varint dLat, varint dLng)
+ *   4 x float bounding rectangle (latLo, latHi, lngLo, lngHi), rounded outwards
+ *   varint firstLogicalVertex
+ *   byte originInside
+ * </pre>
+ * The bounding rectangle and the loop properties are computed from the snapped vertices,
+ * so decoding does not need to recompute them. A polygon that snaps to less than 3 vertices can not be encoded.
+ */
+class QuantizedPolygonCodec implements PolygonCodec {
+
+    private final int id;
+
+    QuantizedPolygonCodec(int id) {
+        this.id = id;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public byte[] encode(S2Polygon polygon) throws IOException {
+        S2Loop loop = polygon.loop(0);
+        int numVertices = loop.numVertices();
+        List<int[]> latLngs = new ArrayList<>(numVertices);
+        List<S2Point> snapped = new ArrayList<>(numVertices);
+        for (int i = 0; i < numVertices; i++) {
+            S2LatLng latLng = new S2LatLng(loop.vertex(i));
+            int latE6 = (int) Math.round(latLng.latDegrees() * 1e6);
+            int lngE6 = (int) Math.round(latLng.lngDegrees() * 1e6);
+            if (!latLngs.isEmpty()) {
+                int[] previous = latLngs.get(latLngs.size() - 1);
+                if (previous[0] == latE6 && previous[1] == lngE6) {
+                    continue; // vertices have been snapped to the same grid point
+                }
+            }
+            latLngs.add(new int[]{latE6, lngE6});
+            snapped.add(S2LatLng.fromE6(latE6, lngE6).toPoint());
+        }
+        if (latLngs.size() > 1 && snapped.get(0).equals(snapped.get(snapped.size() - 1))) {
+            latLngs.remove(latLngs.size() - 1);
+            snapped.remove(snapped.size() - 1);
+        }
+        if (snapped.size() < 3) {
+            throw new IOException(String.format("polygon has only %d distinct vertices on the 1e-6 degree grid, " +
+                                                "at least 3 are needed: %s", snapped.size(), polygon));
+        }
+        S2Loop snappedLoop = new S2Loop(snapped);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(4 + latLngs.size() * 6 + 4 * 4 + 5);
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            VarInt.writeUnsigned(dos, latLngs.size());
+            int lastLat = 0;
+            int lastLng = 0;
+            for (int[] latLng : latLngs) {
+                VarInt.writeSigned(dos, latLng[0] - lastLat);
+                VarInt.writeSigned(dos, latLng[1] - lastLng);
+                lastLat = latLng[0];
+                lastLng = latLng[1];
+            }
+
+            S2LatLngRect bound = snappedLoop.getRectBound();
+            dos.writeFloat(floorFloat(bound.lat().lo()));
+            dos.writeFloat(ceilFloat(bound.lat().hi()));
+            dos.writeFloat(floorFloat(bound.lng().lo()));
+            dos.writeFloat(ceilFloat(bound.lng().hi()));
+
+            VarInt.writeUnsigned(dos, snappedLoop.getFirstLogicalVertex());
+            dos.writeBoolean(snappedLoop.isOriginInside());
+        }
+        return baos.toByteArray();
+    }
+
+    @Override
+    public S2Loop decodeLoop(ByteBuffer bb) {
+        int numVertices = VarInt.readUnsigned(bb);
+        S2Point[] vertices = new S2Point[numVertices];
+        int lat = 0;
+        int lng = 0;
+        for (int i = 0; i < numVertices; i++) {
+            lat += VarInt.readSigned(bb);
+            lng += VarInt.readSigned(bb);
+            vertices[i] = S2LatLng.fromE6(lat, lng).toPoint();
+        }
+        S2LatLngRect bound = readRect(bb);
+
+        int firstLogicalVertex = VarInt.readUnsigned(bb);
+        boolean originInside = (bb.get() == 1);
+        return new S2Loop(vertices, bound, firstLogicalVertex, originInside);
+    }
+
+    @Override
+    public S2LatLngRect decodeRectBound(ByteBuffer bb) {
+        // the rectangle follows the vertices, skipping the varints is much cheaper than decoding them
+        ByteBuffer rectBB = bb.duplicate();
+        int numVertices = VarInt.readUnsigned(rectBB);
+        VarInt.skip(rectBB, 2 * numVertices);
+        return readRect(rectBB);
+    }
+
+    private static S2LatLngRect readRect(ByteBuffer bb) {
+        double latLo = Math.max(-S2.M_PI_2, bb.getFloat());
+        double latHi = Math.min(S2.M_PI_2, bb.getFloat());
+        double lngLo = Math.max(-S2.M_PI, bb.getFloat());
+        double lngHi = Math.min(S2.M_PI, bb.getFloat());
+        return new S2LatLngRect(new R1Interval(latLo, latHi), new S1Interval(lngLo, lngHi));
+    }
+
+    @Override
+    public boolean isOriginInside(ByteBuffer bb) {
+        ByteBuffer flagsBB = bb.duplicate();
+        int numVertices = VarInt.readUnsigned(flagsBB);
+        VarInt.skip(flagsBB, 2 * numVertices);
+        flagsBB.position(flagsBB.position() + 16);
+        VarInt.skip(flagsBB, 1);
+        return flagsBB.get() == 1;
+    }
+
+    @Override
+    public int numVertices(ByteBuffer bb) {
+        return VarInt.readUnsigned(bb.duplicate());
+    }
+
+    @Override
+    public void decodeVertices(ByteBuffer bb, double[] xyz) {
+        int numVertices = VarInt.readUnsigned(bb);
+        int lat = 0;
+        int lng = 0;
+        for (int i = 0; i < numVertices; i++) {
+            lat += VarInt.readSigned(bb);
+            lng += VarInt.readSigned(bb);
+            // the same arithmetic as S2LatLng.fromE6(lat, lng).toPoint(), without the objects
+            double phi = (lat * 1e-6) * (Math.PI / 180);
+            double theta = (lng * 1e-6) * (Math.PI / 180);
+            double cosphi = Math.cos(phi);
+            xyz[3 * i] = Math.cos(theta) * cosphi;
+            xyz[3 * i + 1] = Math.sin(theta) * cosphi;
+            xyz[3 * i + 2] = Math.sin(phi);
+        }
+    }
+
+    private static float floorFloat(double value) {
+        float f = (float) value;
+        return f > value ? Math.nextDown(f) : f;
+    }
+
+    private static float ceilFloat(double value) {
+        float f = (float) value;
+        return f < value ? Math.nextUp(f) : f;
+    }
+}
@@ -5,7 +5,9 @@ import com.bc.inventory.search.GeoDb;
 import com.bc.inventory.search.GeoDbEntry;
 import com.bc.inventory.search.GeoDbUpdater;
 import com.bc.inventory.search.GeoIndex;
+import com.bc.inventory.search.QueryProfile;
 import com.bc.inventory.search.QuerySolver;
+import com.bc.inventory.search.ResultSink;
 import com.bc.inventory.utils.Search;
 import com.bc.inventory.utils.TimeUtils;
 import com.google.common.collect.Iterators;
@@ -79,6 +81,16 @@ public class CsvGeoDb implements GeoDb {
         return querySolver.query(constrain);
     }
 
+    @Override
+    public void query(Constrain constrain, ResultSink sink) throws IOException {
+        querySolver.query(constrain, sink);
+    }
+
+    @Override
+    public void query(Constrain constrain, ResultSink sink, QueryProfile profile) throws IOException {
+        querySolver.query(constrain, sink, profile);
+    }
+
     private class Index implements GeoIndex {
 
         @Override
@@ -20,9 +20,6 @@ import java.util.List;
  */
 public class CsvRecordReader {
 
-    private static final DateFormat DATE_FORMAT = TimeUtils.createDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-    private static final S2WKTReader WKT_READER = new S2WKTReader();
-
     public static List<CsvRecord> readAllRecords(InputStream inputStream) {
         try (CsvRecordIterator iterator = getIterator(inputStream)) {
             return Lists.newArrayList(iterator);
@@ -39,11 +36,13 @@ public class CsvRecordReader {
     public static class CsvRecordIterator implements Iterator<CsvRecord>, AutoCloseable {
 
         private final BufferedReader bufferedReader;
+        private final LineParser lineParser;
         private boolean reachedEnd;
         private CsvRecord record;
 
         private CsvRecordIterator(InputStream inputStream) throws IOException {
             bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
+            lineParser = new LineParser();
             reachedEnd = false;
             record = getNextRecord();
         }
@@ -69,7 +68,7 @@ public class CsvRecordReader {
             String line = readLineSafe();
             while (!reachedEnd) {
                 try {
-                    return parseLine(line);
+                    return lineParser.parseLine(line);
                 } catch (ParseException ignore) {
                     ignore.printStackTrace();
                 }
@@ -93,38 +92,51 @@ public class CsvRecordReader {
         }
     }
 
-    private static CsvRecord parseLine(String line) throws ParseException {
-        if (line == null || line.isEmpty()) {
-            return null;
-        }
-        String[] splits = line.split("\t");
-        if (splits.length < 4) {
-            throw new IllegalArgumentException("Can not parse: " + line);
-        }
-        // make sure: either both dates are given or none
-        long startTime = parseDateTime(splits[1]);
-        long endTime = parseDateTime(splits[2]);
-        if (startTime == -1 && endTime != -1) {
-            startTime = endTime;
-        } else if (endTime == -1 && startTime != -1) {
-            endTime = startTime;
+    /**
+     * Parses the lines of a CSV file. Each parser has its own date format and WKT reader,
+     * a parser must only be used by one thread.
+     */
+    public static class LineParser {
+
+        private final DateFormat dateFormat = TimeUtils.createDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        private final S2WKTReader wktReader = new S2WKTReader();
+
+        /**
+         * @return The record, {@code null} for an empty line, which ends the file.
+         */
+        public CsvRecord parseLine(String line) throws ParseException {
+            if (line == null || line.isEmpty()) {
+                return null;
+            }
+            String[] splits = line.split("\t");
+            if (splits.length < 4) {
+                throw new IllegalArgumentException("Can not parse: " + line);
+            }
+            // make sure: either both dates are given or none
+            long startTime = parseDateTime(splits[1]);
+            long endTime = parseDateTime(splits[2]);
+            if (startTime == -1 && endTime != -1) {
+                startTime = endTime;
+            } else if (endTime == -1 && startTime != -1) {
+                endTime = startTime;
+            }
+            return new CsvRecord(
+                    splits[0],
+                    startTime,
+                    endTime,
+                    parsePolygon(splits[3])
+            );
         }
-        return new CsvRecord(
-                splits[0],
-                startTime,
-                endTime,
-                parsePolygon(splits[3])
-        );
-    }
 
-    private static long parseDateTime(String split) throws ParseException {
-        if (split.isEmpty() || split.equalsIgnoreCase("null")) {
-            return -1;
+        private long parseDateTime(String split) throws ParseException {
+            if (split.isEmpty() || split.equalsIgnoreCase("null")) {
+                return -1;
+            }
+            return dateFormat.parse(TimeUtils.getNoFractionString(split)).getTime();
         }
-        return DATE_FORMAT.parse(TimeUtils.getNoFractionString(split)).getTime();
-    }
 
-    private static S2Polygon parsePolygon(String wkt) {
-        return (S2Polygon) WKT_READER.read(wkt);
+        private S2Polygon parsePolygon(String wkt) {
+            return (S2Polygon) wktReader.read(wkt);
+        }
     }
 }
@@ -24,6 +24,7 @@ import com.google.common.geometry.S2RegionCoverer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * S2 methods dealing with a resolution that fits into an integer (32 bit)
@@ -49,18 +50,28 @@ public class S2Integer {
     }
 
     public static strictfp boolean containsCellId(final int[] intCellIds, final int s2CellIdInt) {
-        if (rangeMin(intCellIds[0]) > s2CellIdInt) {
+        return containsCellId(intCellIds, 0, intCellIds.length, s2CellIdInt);
+    }
+
+    /**
+     * Same as {@link #containsCellId(int[], int)} for the cells {@code intCellIds[from]} to {@code intCellIds[to - 1]}.
+     */
+    public static strictfp boolean containsCellId(final int[] intCellIds, final int from, final int to, final int s2CellIdInt) {
+        if (from == to) {
             return false;
         }
-        if (rangeMax(intCellIds[intCellIds.length - 1]) < s2CellIdInt) {
+        if (rangeMin(intCellIds[from]) > s2CellIdInt) {
             return false;
         }
-        int pos = Arrays.binarySearch(intCellIds, s2CellIdInt);
+        if (rangeMax(intCellIds[to - 1]) < s2CellIdInt) {
+            return false;
+        }
+        int pos = Arrays.binarySearch(intCellIds, from, to, s2CellIdInt);
         if (pos < 0) {
             pos = -pos - 1;
         }
 
-        return pos < intCellIds.length && rangeMin(intCellIds[pos]) <= s2CellIdInt || pos != 0 && rangeMax(intCellIds[pos - 1]) >= s2CellIdInt;
+        return pos < to && rangeMin(intCellIds[pos]) <= s2CellIdInt || pos != from && rangeMax(intCellIds[pos - 1]) >= s2CellIdInt;
     }
 
     public static strictfp boolean intersectsCellId(final int[] intCellIds, final int s2CellIdInt) {
@@ -72,6 +83,25 @@ public class S2Integer {
         return pos < intCellIds.length && rangeMin(intCellIds[pos]) <= rangeMax(s2CellIdInt) || pos != 0 && rangeMax(intCellIds[pos - 1]) >= rangeMin(s2CellIdInt);
     }
 
+    public static S2CellId asS2CellId(int s2CellIdInt) {
+        return new S2CellId(((long) s2CellIdInt) << 34);
+    }
+
+    /**
+     * @return The normalized union of the given coverages, four siblings are replaced by their parent.
+     */
+    public static int[] union(Collection<int[]> coverages) {
+        ArrayList<S2CellId> s2CellIds = new ArrayList<>();
+        for (int[] coverage : coverages) {
+            for (int s2CellIdInt : coverage) {
+                s2CellIds.add(asS2CellId(s2CellIdInt));
+            }
+        }
+        S2CellUnion cellUnion = new S2CellUnion();
+        cellUnion.initFromCellIds(s2CellIds);
+        return cellUnion2Ints(cellUnion);
+    }
+
     public static int rangeMin(int s2cell) {
         return s2cell - (lowestOnBit(s2cell) - 1);
     }
@@ -104,10 +134,18 @@ public class S2Integer {
     }
 
     public static boolean intersectsCellUnionFast(int[] c1, int[] c2) {
-        int i = 0;
-        int j = 0;
+        return intersectsCellUnionFast(c1, 0, c1.length, c2, 0, c2.length);
+    }
+
+    /**
+     * Same as {@link #intersectsCellUnionFast(int[], int[])} for the slices {@code [from1, to1)} of {@code c1}
+     * and {@code [from2, to2)} of {@code c2}.
+     */
+    public static boolean intersectsCellUnionFast(int[] c1, int from1, int to1, int[] c2, int from2, int to2) {
+        int i = from1;
+        int j = from2;
 
-        while (i < c1.length && j < c2.length) {
+        while (i < to1 && j < to2) {
             int imin = rangeMin(c1[i]);
             int jmin = rangeMin(c2[j]);
             if (imin > jmin) {
@@ -116,7 +154,7 @@ public class S2Integer {
                     return true;
                 } else {
                     // Advance "j" to the first cell possibly contained by *i.
-                    j = indexedBinarySearch(c2, imin, j + 1);
+                    j = indexedBinarySearch(c2, imin, j + 1, to2);
                     // The previous cell *(j-1) may now contain *i.
                     if (c1[i] <= rangeMax(c2[j - 1])) {
                         --j;
@@ -127,7 +165,7 @@ public class S2Integer {
                 if (c2[j] <= rangeMax(c1[i])) {
                     return true;
                 } else {
-                    i = indexedBinarySearch(c1, jmin, i + 1);
+                    i = indexedBinarySearch(c1, jmin, i + 1, to1);
                     if (c2[j] <= rangeMax(c1[i - 1])) {
                         --i;
                     }
@@ -142,14 +180,14 @@ public class S2Integer {
 
     /**
      * Just as normal binary search, except that it allows specifying the starting
-     * value for the lower bound.
+     * value for the lower bound and the (exclusive) upper bound.
      *
      * @return The position of the searched element in the list (if found), or the
      * position where the element could be inserted without violating the
      * order.
      */
-    private static int indexedBinarySearch(int[] l, int key, int low) {
-        int high = l.length - 1;
+    private static int indexedBinarySearch(int[] l, int key, int low, int to) {
+        int high = to - 1;
 
         while (low <= high) {
             int mid = (low + high) >> 1;
@@ -182,6 +220,18 @@ public class S2Integer {
         return coverer.getCovering(s2polygon);
     }
 
+    /**
+     * @return The cells of an interior covering, they lie completely inside the polygon.
+     * The level is limited to 13, the finest level an integer cell id holds exactly.
+     */
+    public static int[] createInteriorS2IntIds(S2Polygon s2polygon, int maxLevel, int maxCells) {
+        S2RegionCoverer coverer = new S2RegionCoverer();
+        coverer.setMinLevel(0);
+        coverer.setMaxLevel(Math.min(maxLevel, 13));
+        coverer.setMaxCells(maxCells);
+        return cellUnion2Ints(coverer.getInteriorCovering(s2polygon));
+    }
+
     public static class Coverage {
 
         public final int[] intIds;
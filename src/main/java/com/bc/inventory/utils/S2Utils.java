@@ -50,6 +50,10 @@ public class S2Utils {
     }
 
     public static S2Polygon asPolygon(ByteBuffer bb) {
+        return new S2Polygon(asLoop(bb));
+    }
+
+    public static S2Loop asLoop(ByteBuffer bb) {
         int numLoopPoints = bb.getInt();
 
         S2Point[] vertices = new S2Point[numLoopPoints];
@@ -69,8 +73,6 @@ public class S2Utils {
 
         int firstLogicalVertex = bb.getInt();
         boolean originInside = (bb.get() == 1);
-        S2Loop loop = new S2Loop(vertices, bound, firstLogicalVertex, originInside);
-
-        return new S2Polygon(loop);
+        return new S2Loop(vertices, bound, firstLogicalVertex, originInside);
     }
 }
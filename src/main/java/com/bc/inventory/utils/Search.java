@@ -1,5 +1,7 @@
 package com.bc.inventory.utils;
 
+import java.nio.IntBuffer;
+
 /**
  * @author MarcoZ
  */
@@ -42,4 +44,33 @@ public class Search {
         }
         return low == 0 ? low : low - 1;  // key not found
     }
+
+    /**
+     * Same as {@link #indexedBinarySearch(int[], int)}, but searches the
+     * remaining elements of an {@link IntBuffer}, e.g. a view on a memory mapped file.
+     *
+     * @param buffer the buffer to be searched
+     * @param key the value to be searched for
+     * @return index of the search key relative to the buffers position, see {@link #indexedBinarySearch(int[], int)}
+     */
+    public static int indexedBinarySearch(IntBuffer buffer, int key) {
+        final int offset = buffer.position();
+        int low = 0;
+        int high = buffer.remaining() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            final int t1 = buffer.get(offset + mid);
+            if (t1 < key) {
+                low = mid + 1;
+            } else if (t1 == key) {
+                while (mid > 0 && buffer.get(offset + mid - 1) == key) {
+                    mid--;
+                }
+                return mid; // key found
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low == 0 ? low : low - 1;  // key not found
+    }
 }
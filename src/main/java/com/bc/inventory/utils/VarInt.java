@@ -0,0 +1,74 @@
+package com.bc.inventory.utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length encoding of integers (LEB128), 7 bits per byte, least significant group first.
+ * Small values need fewer bytes, signed values should be zig-zag encoded first.
+ */
+public class VarInt {
+
+    public static void writeUnsigned(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static void writeSigned(DataOutput out, int value) throws IOException {
+        writeUnsigned(out, zigZagEncode(value));
+    }
+
+    public static int readUnsigned(ByteBuffer bb) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bb.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    public static int readSigned(ByteBuffer bb) {
+        return zigZagDecode(readUnsigned(bb));
+    }
+
+    /**
+     * Skips the given number of values without decoding them.
+     */
+    public static void skip(ByteBuffer bb, int numValues) {
+        int position = bb.position();
+        while (numValues > 0) {
+            if (bb.get(position++) >= 0) {
+                numValues--;
+            }
+        }
+        bb.position(position);
+    }
+
+    public static int sizeOfUnsigned(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Maps signed to unsigned values, so that numbers with a small absolute value
+     * have a small encoding: 0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3, ...
+     */
+    public static int zigZagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int zigZagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
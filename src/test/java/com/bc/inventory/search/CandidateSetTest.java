@@ -0,0 +1,95 @@
+package com.bc.inventory.search;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CandidateSetTest {
+
+    @Test
+    public void testAdd() throws Exception {
+        CandidateSet set = new CandidateSet(1000);
+        set.add(7);
+        set.add(3);
+        set.add(7);
+        set.add(999);
+        assertFalse(set.isBitmap());
+        assertEquals(3, set.size());
+        assertTrue(set.contains(3));
+        assertFalse(set.contains(4));
+        assertArrayEquals(new int[]{3, 7, 999}, set.toArray());
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertArrayEquals(new int[0], set.toArray());
+    }
+
+    @Test
+    public void testSwitchToBitmap() throws Exception {
+        CandidateSet set = new CandidateSet(10000);
+        for (int i = 0; i < 400; i++) {
+            set.add(9999 - 3 * i);
+        }
+        assertTrue(set.isBitmap());
+        assertEquals(400, set.size());
+        int[] ids = set.toArray();
+        assertEquals(9999 - 3 * 399, ids[0]);
+        assertEquals(9999, ids[399]);
+
+        set.clear();
+        assertFalse(set.isBitmap());
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testUnionAndIntersection() throws Exception {
+        Random random = new Random(3);
+        for (int numProducts : new int[]{100, 5000}) {
+            for (int n1 : new int[]{5, 50, 1000}) {
+                for (int n2 : new int[]{5, 50, 1000}) {
+                    CandidateSet set1 = new CandidateSet(numProducts);
+                    CandidateSet set2 = new CandidateSet(numProducts);
+                    TreeSet<Integer> expected1 = new TreeSet<>();
+                    TreeSet<Integer> expected2 = new TreeSet<>();
+                    for (int i = 0; i < n1; i++) {
+                        int id = random.nextInt(numProducts);
+                        set1.add(id);
+                        expected1.add(id);
+                    }
+                    for (int i = 0; i < n2; i++) {
+                        int id = random.nextInt(numProducts);
+                        set2.add(id);
+                        expected2.add(id);
+                    }
+
+                    CandidateSet intersection = new CandidateSet(numProducts);
+                    intersection.addAll(set1);
+                    intersection.retainAll(set2);
+                    TreeSet<Integer> expectedIntersection = new TreeSet<>(expected1);
+                    expectedIntersection.retainAll(expected2);
+                    assertArrayEquals(toArray(expectedIntersection), intersection.toArray());
+
+                    set1.addAll(set2);
+                    expected1.addAll(expected2);
+                    assertArrayEquals(toArray(expected1), set1.toArray());
+                    assertEquals(expected1.size(), set1.size());
+                }
+            }
+        }
+    }
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        int[] array = new int[set.size()];
+        int i = 0;
+        for (Integer id : set) {
+            array[i++] = id;
+        }
+        return array;
+    }
+}
@@ -0,0 +1,159 @@
+package com.bc.inventory.search;
+
+import com.bc.inventory.utils.Search;
+import com.bc.inventory.utils.SimpleRecord;
+import com.bc.inventory.utils.TimeUtils;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import org.junit.Test;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class MatchupSweepTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    @Test
+    public void testSameCandidatesAsScan() throws Exception {
+        Random random = new Random(7);
+        int numUntimed = 3;
+        int numProducts = 200;
+        int[] startTimes = new int[numProducts];
+        int[] endTimes = new int[numProducts];
+        double[] minLon = new double[numProducts];
+        for (int i = 0; i < numProducts; i++) {
+            startTimes[i] = i < numUntimed ? -1 : 1000 + random.nextInt(5000);
+            minLon[i] = random.nextInt(18) * 10;
+        }
+        Arrays.sort(startTimes);
+        for (int i = 0; i < numProducts; i++) {
+            endTimes[i] = i < numUntimed ? -1 : startTimes[i] + random.nextInt(100);
+        }
+        BandIndex index = new BandIndex(startTimes, endTimes, minLon);
+
+        SimpleRecord[] records = new SimpleRecord[500];
+        for (int i = 0; i < records.length; i++) {
+            long time = (800 + random.nextInt(5500)) * MINUTE + random.nextInt(60000);
+            records[i] = new SimpleRecord(time, new Point2D.Double(random.nextDouble() * 180, 0));
+        }
+        long delta = 30 * MINUTE;
+        Constrain.DateRange[] dateRanges = {new Constrain.DateRange(2000 * MINUTE, 4000 * MINUTE)};
+
+        S2Point[] points = new S2Point[records.length];
+        for (int i = 0; i < records.length; i++) {
+            points[i] = records[i].getAsPoint();
+        }
+        CandidatePoints candidates = new CandidatePoints();
+        new MatchupSweep(index).findCandidates(records, points, delta, QuerySolver.normalizeDateRanges(dateRanges),
+                                               candidates, new CandidateSet(index.size()));
+        candidates.sort();
+
+        assertEquals(scan(index, records, delta, dateRanges), toSets(candidates, points));
+    }
+
+    // the candidates from scanning the index once per record
+    private static Map<Integer, Set<S2Point>> scan(BandIndex index, SimpleRecord[] records, long delta,
+                                                   Constrain.DateRange[] dateRanges) throws Exception {
+        int start = TimeUtils.startTimeInMin(dateRanges[0].getStart());
+        int end = TimeUtils.endTimeInMin(dateRanges[0].getEnd());
+        Map<Integer, Set<S2Point>> candidates = new HashMap<>();
+        for (SimpleRecord record : records) {
+            int insituStart = TimeUtils.startTimeInMin(record.getTime() - delta);
+            int insituEnd = TimeUtils.endTimeInMin(record.getTime() + delta);
+            if (end < insituStart || start > insituEnd) {
+                continue;
+            }
+            S2Point point = record.getAsPoint();
+            for (int i = 0; i < index.size(); i++) {
+                boolean untimed = index.getStartTime(i) == -1;
+                boolean inTime = i >= index.getIndexForTime(insituStart)
+                        && index.getStartTime(i) < insituEnd && index.getEndTime(i) >= insituStart;
+                if ((untimed || inTime) && index.approximationContainsPoint(i, point)) {
+                    candidates.computeIfAbsent(i, k -> new HashSet<>()).add(point);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static Map<Integer, Set<S2Point>> toSets(CandidatePoints candidates, S2Point[] points) {
+        Map<Integer, Set<S2Point>> sets = new HashMap<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            S2Point point = points[candidates.getPointIndex(i)];
+            sets.computeIfAbsent(candidates.getProductIndex(i), k -> new HashSet<>()).add(point);
+        }
+        assertEquals(sets.size(), candidates.getProductIndices().length);
+        return sets;
+    }
+
+    /**
+     * Products covering a band of 30 degrees longitude.
+     */
+    private static class BandIndex implements GeoIndex {
+
+        private final int[] startTimes;
+        private final int[] endTimes;
+        private final double[] minLon;
+
+        BandIndex(int[] startTimes, int[] endTimes, double[] minLon) {
+            this.startTimes = startTimes;
+            this.endTimes = endTimes;
+            this.minLon = minLon;
+        }
+
+        @Override
+        public int size() {
+            return startTimes.length;
+        }
+
+        @Override
+        public int getStartTime(int productIndex) {
+            return startTimes[productIndex];
+        }
+
+        @Override
+        public int getEndTime(int productIndex) {
+            return endTimes[productIndex];
+        }
+
+        @Override
+        public int getIndexForTime(int currentStartTime) {
+            return Search.indexedBinarySearch(startTimes, currentStartTime);
+        }
+
+        @Override
+        public boolean approximationContainsPoint(int productIndex, S2Point point) {
+            double lon = new S2LatLng(point).lngDegrees();
+            return lon >= minLon[productIndex] && lon < minLon[productIndex] + 30;
+        }
+
+        @Override
+        public boolean approximationIntersectsPolygon(int productIndex, S2Polygon polygon) {
+            return true;
+        }
+
+        @Override
+        public void readEntry(int productIndex) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public S2Polygon getCurrentPolygon() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getCurrentPath() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
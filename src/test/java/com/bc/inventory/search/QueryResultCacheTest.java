@@ -0,0 +1,74 @@
+package com.bc.inventory.search;
+
+import com.bc.inventory.utils.SimpleRecord;
+import org.junit.Test;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class QueryResultCacheTest {
+
+    @Test
+    public void testCanonicalKey() throws Exception {
+        String key = QueryResultCache.createKey(new Constrain.Builder("a")
+                                                        .withPolygon("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))")
+                                                        .addDateRang("2005-01-01", "2005-01-05")
+                                                        .addDateRang("2005-01-03", "2005-01-10")
+                                                        .build());
+        // another name, another first vertex, the same ranges in another order
+        assertEquals(key, QueryResultCache.createKey(new Constrain.Builder("b")
+                                                             .withPolygon("POLYGON((10 10, 0 10, 0 0, 10 0, 10 10))")
+                                                             .addDateRang("2005-01-03", "2005-01-10")
+                                                             .addDateRang("2005-01-01", "2005-01-05")
+                                                             .build()));
+        assertNotEquals(key, QueryResultCache.createKey(new Constrain.Builder("a")
+                                                                .withPolygon("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))")
+                                                                .addDateRang("2005-01-01", "2005-01-10")
+                                                                .withMaxNumResults(10)
+                                                                .build()));
+
+        String insituKey = QueryResultCache.createKey(new Constrain.Builder("a")
+                                                              .withInsituRecords(Arrays.asList(new SimpleRecord(1000, new Point2D.Double(1, 2))))
+                                                              .withInsituTimeDelta(60000)
+                                                              .build());
+        assertNotEquals(insituKey, QueryResultCache.createKey(new Constrain.Builder("a")
+                                                                      .withInsituRecords(Arrays.asList(new SimpleRecord(1000, new Point2D.Double(1, 3))))
+                                                                      .withInsituTimeDelta(60000)
+                                                                      .build()));
+        assertNotEquals(insituKey, QueryResultCache.createKey(new Constrain.Builder("a")
+                                                                      .withInsituRecords(Arrays.asList(new SimpleRecord(1000, new Point2D.Double(1, 2))))
+                                                                      .withInsituTimeDelta(120000)
+                                                                      .build()));
+    }
+
+    @Test
+    public void testEvictionAndGeneration() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1000);
+        cache.put("g1", "q1", Arrays.asList("p1", "p2"));
+        cache.put("g1", "q2", Collections.singletonList("p3"));
+        assertEquals(Arrays.asList("p1", "p2"), cache.get("g1", "q1"));
+        assertEquals(1, cache.getHitCount());
+
+        // q2 is the least recently used
+        cache.put("g1", "q3", Collections.nCopies(7, "a rather long path of a product"));
+        assertNull(cache.get("g1", "q2"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(Arrays.asList("p1", "p2"), cache.get("g1", "q1"));
+        assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+
+        // too large for the budget
+        cache.put("g1", "q4", Collections.nCopies(100, "p"));
+        assertNull(cache.get("g1", "q4"));
+
+        // another generation drops all results
+        assertNull(cache.get("g2", "q1"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getNumBytes());
+    }
+}
@@ -112,6 +112,44 @@ public class QuerySolverTest {
         assertEquals("p3", result.get(3));
     }
     
+    @Test
+    public void test_with_multiple_date_ranges() throws Exception {
+        CsvGeoDb csvGeoDb = loadDbFromResource("/testdata_1.csv");
+        List<String> result = csvGeoDb.query(new Constrain.Builder()
+                                                     .addDateRang("1970-01-04", "1970-01-04")
+                                                     .addDateRang("1970-01-01", "1970-01-01")
+                                                     .addDateRang("1970-01-01", "1970-01-02")
+                                                     .build());
+        assertEquals(3, result.size());
+        assertEquals("p1", result.get(0));
+        assertEquals("p2", result.get(1));
+        assertEquals("p4", result.get(2));
+    }
+
+    @Test
+    public void test_normalizeDateRanges() throws Exception {
+        long minute = 60 * 1000L;
+        Constrain.DateRange[] dateRanges = {
+                new Constrain.DateRange(30 * minute, -1),
+                new Constrain.DateRange(5 * minute, 20 * minute),
+                new Constrain.DateRange(0, 10 * minute),
+                new Constrain.DateRange(25 * minute, 30 * minute),
+        };
+        assertArrayEquals(new int[]{0, 20, 25, -1}, QuerySolver.normalizeDateRanges(dateRanges));
+
+        dateRanges = new Constrain.DateRange[]{
+                new Constrain.DateRange(2 * minute, 3 * minute),
+                new Constrain.DateRange(-1, minute),
+        };
+        assertArrayEquals(new int[]{-1, 1, 2, 3}, QuerySolver.normalizeDateRanges(dateRanges));
+
+        dateRanges = new Constrain.DateRange[]{
+                new Constrain.DateRange(2 * minute, 3 * minute),
+                new Constrain.DateRange(-1, -1),
+        };
+        assertArrayEquals(new int[]{-1, -1}, QuerySolver.normalizeDateRanges(dateRanges));
+    }
+
     private CsvGeoDb loadDbFromResource(String name) throws IOException {
         InputStream is = this.getClass().getResourceAsStream(name);
         CsvGeoDb csvGeoDb = new CsvGeoDb();
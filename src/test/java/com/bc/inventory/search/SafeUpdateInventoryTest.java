@@ -2,11 +2,21 @@ package com.bc.inventory.search;
 
 import org.junit.Test;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -44,7 +54,7 @@ public class SafeUpdateInventoryTest {
         assertTrue(Files.exists(geoIndexA));
         assertFalse(Files.exists(geoIndexB));
         assertFalse(Files.exists(geoIndexNew));
-        assertEquals(39995, Files.size(geoIndexA));
+        assertEquals(32030, Files.size(geoIndexA));
     }
     
     @Test
@@ -67,7 +77,7 @@ public class SafeUpdateInventoryTest {
         assertTrue(Files.exists(geoIndexA));
         assertFalse(Files.exists(geoIndexB));
         assertFalse(Files.exists(geoIndexNew));
-        assertEquals(39995, Files.size(geoIndexA));
+        assertEquals(32030, Files.size(geoIndexA));
         assertEquals(1, Files.list(tmpDir.resolve("attic")).count());
         Thread.sleep(1000); // to make sure time stamps are different
         
@@ -78,8 +88,8 @@ public class SafeUpdateInventoryTest {
         assertTrue(Files.exists(geoIndexA));
         assertTrue(Files.exists(geoIndexB));
         assertFalse(Files.exists(geoIndexNew));
-        assertEquals(39995, Files.size(geoIndexA));
-        assertEquals(82315, Files.size(geoIndexB));
+        assertEquals(32030, Files.size(geoIndexA));
+        assertEquals(61622, Files.size(geoIndexB));
         assertEquals(2, Files.list(tmpDir.resolve("attic")).count());
         Thread.sleep(1000); // to make sure time stamps are different
         
@@ -90,8 +100,8 @@ public class SafeUpdateInventoryTest {
         assertTrue(Files.exists(geoIndexA));
         assertTrue(Files.exists(geoIndexB));
         assertFalse(Files.exists(geoIndexNew));
-        assertEquals(125213, Files.size(geoIndexA));
-        assertEquals(82315, Files.size(geoIndexB));
+        assertEquals(92896, Files.size(geoIndexA));
+        assertEquals(61622, Files.size(geoIndexB));
         assertEquals(3, Files.list(tmpDir.resolve("attic")).count());
     }
 
@@ -114,7 +124,7 @@ public class SafeUpdateInventoryTest {
         assertTrue(Files.exists(geoIndexA));
         assertFalse(Files.exists(geoIndexB));
         assertFalse(Files.exists(geoIndexNew));
-        assertEquals(39995, Files.size(geoIndexA));
+        assertEquals(32030, Files.size(geoIndexA));
         assertEquals(1, Files.list(tmpDir.resolve("attic")).count());
         Thread.sleep(1000); // to make sure time stamps are different
 
@@ -125,7 +135,7 @@ public class SafeUpdateInventoryTest {
         assertTrue(Files.exists(geoIndexA));
         assertFalse(Files.exists(geoIndexB));
         assertFalse(Files.exists(geoIndexNew));
-        assertEquals(39995, Files.size(geoIndexA));
+        assertEquals(32030, Files.size(geoIndexA));
         assertEquals(2, Files.list(tmpDir.resolve("attic")).count());
         Thread.sleep(1000); // to make sure time stamps are different
     }
@@ -163,6 +173,198 @@ public class SafeUpdateInventoryTest {
         assertEquals(45, result.size());
     }
     
+    @Test
+    public void test_query_cache() throws Exception {
+        FileStreamFactory fileStreamFactory = new FileStreamFactory();
+        Path tmpDir = Files.createTempDirectory("SafeUpdateFacadeTest");
+        SafeUpdateInventory facade = new SafeUpdateInventory(fileStreamFactory, tmpDir.toString());
+        facade.setVerbose(false);
+        SafeUpdateInventory uncached = new SafeUpdateInventory(fileStreamFactory, tmpDir.toString());
+        uncached.setVerbose(false);
+        QueryResultCache cache = new QueryResultCache();
+        facade.setResultCache(cache);
+        Constrain constrain = new Constrain.Builder("").build();
+
+        Path csv1 = copyResource(tmpDir, "/meris20050101_products_list.csv", "CSV_20050101");
+        facade.updateIndex(csv1.toString());
+
+        List<String> result = facade.query(constrain);
+        assertEquals(14, result.size());
+        assertEquals(result, facade.query(new Constrain.Builder("other name").build()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // a stopped query is not cached
+        facade.query(new Constrain.Builder("").withMaxNumResults(5).build(), path -> false);
+        assertEquals(1, cache.size());
+
+        // a new update file is a new generation
+        copyResource(tmpDir, "/meris20050102_products_list.csv", "scan.20050102");
+        result = facade.query(constrain);
+        assertEquals(uncached.query(constrain), result);
+        assertTrue(result.size() > 14);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.size());
+        assertEquals(result, facade.query(constrain));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void test_segments() throws Exception {
+        FileStreamFactory fileStreamFactory = new FileStreamFactory();
+        Path tmpDir = Files.createTempDirectory("SafeUpdateFacadeTest");
+        SafeUpdateInventory facade = new SafeUpdateInventory(fileStreamFactory, tmpDir.toString());
+        facade.setVerbose(false);
+        facade.setCompactionPolicy(new SizeTieredCompactionPolicy(3, 100));
+        Path csv1 = copyResource(tmpDir, "/meris20050101_products_list.csv", "meris20050101");
+        Path csv2 = copyResource(tmpDir, "/meris20050102_products_list.csv", "meris20050102");
+        Path csv3 = copyResource(tmpDir, "/meris20050103_products_list.csv", "meris20050103");
+        Constrain constrain = new Constrain.Builder("").addDateRang("2005-01-01", "2005-01-02").build();
+
+        assertEquals(14, facade.updateIndex(csv1.toString()));
+        assertTrue(Files.exists(tmpDir.resolve("geo_segments.a")));
+        assertFalse(Files.exists(tmpDir.resolve("geo_segments.b")));
+        assertFalse(Files.exists(tmpDir.resolve("geo_index.a")));
+        // the segment holds the same as the first complete index
+        assertEquals(32030, Files.size(tmpDir.resolve("geo_segment.000001")));
+
+        assertEquals(16, facade.updateIndex(csv2.toString()));
+        assertTrue(Files.exists(tmpDir.resolve("geo_segments.b")));
+        assertEquals(30, facade.query(new Constrain.Builder("").build()).size());
+
+        // the third segment starts a merge of all three
+        assertEquals(15, facade.updateIndex(csv3.toString()));
+        assertEquals(0, facade.compact());
+        assertEquals(45, facade.query(new Constrain.Builder("").build()).size());
+
+        Path completeDir = Files.createTempDirectory("SafeUpdateFacadeTest");
+        SafeUpdateInventory complete = new SafeUpdateInventory(fileStreamFactory, completeDir.toString());
+        complete.setVerbose(false);
+        for (String resource : new String[]{"meris20050101", "meris20050102", "meris20050103"}) {
+            Path csv = copyResource(completeDir, "/" + resource + "_products_list.csv", resource);
+            complete.updateIndex(csv.toString());
+        }
+        // the merged segment is the same file as the complete index
+        assertArrayEquals(Files.readAllBytes(completeDir.resolve("geo_index.a")),
+                          Files.readAllBytes(tmpDir.resolve("geo_segment.000004")));
+        assertEquals(complete.query(constrain), facade.query(constrain));
+
+        // the products are already in the inventory, no segment is written
+        assertEquals(4, countSegments(tmpDir));
+        Path csv4 = copyResource(tmpDir, "/meris20050101_products_list.csv", "meris20050101_again");
+        assertEquals(14, facade.updateIndex(csv4.toString()));
+        assertEquals(4, countSegments(tmpDir));
+        assertEquals(45, facade.query(new Constrain.Builder("").build()).size());
+
+        // the merged segments are deleted when the manifest still listing them is overwritten
+        Path csv5 = copyResource(tmpDir, "/testdata_1.csv", "testdata_1");
+        assertEquals(5, facade.updateIndex(csv5.toString()));
+        assertEquals(2, countSegments(tmpDir));
+        assertEquals(50, facade.query(new Constrain.Builder("").build()).size());
+    }
+
+    @Test
+    public void test_segments_product_updated_again() throws Exception {
+        FileStreamFactory fileStreamFactory = new FileStreamFactory();
+        List<String> update = new ArrayList<>();
+        // p1 is in testdata_1 with the polygon ((0 0, 10 0, 10 10, 0 10, 0 0))
+        update.add("p1\t1970-01-01T10:00:00\t1970-01-01T12:00:00\tPOLYGON ((20 20, 30 20, 30 30, 20 30, 20 20))");
+        update.add("p5\t1970-01-05T10:00:00\t1970-01-05T12:00:00\tPOLYGON ((20 20, 30 20, 30 30, 20 30, 20 20))");
+        List<Constrain> constrains = new ArrayList<>();
+        constrains.add(new Constrain.Builder("").withPolygon("POLYGON ((4 4, 6 4, 6 6, 4 6, 4 4))").build());
+        constrains.add(new Constrain.Builder("").withPolygon("POLYGON ((24 24, 26 24, 26 26, 24 26, 24 24))").build());
+        constrains.add(new Constrain.Builder("").addDateRang("1970-01-01", "1970-01-02").build());
+
+        Path completeDir = Files.createTempDirectory("SafeUpdateFacadeTest");
+        SafeUpdateInventory complete = new SafeUpdateInventory(fileStreamFactory, completeDir.toString());
+        complete.setVerbose(false);
+        complete.updateIndex(copyResource(completeDir, "/testdata_1.csv", "testdata_1").toString());
+        complete.updateIndex(Files.write(completeDir.resolve("update"), update).toString());
+        assertEquals(Collections.singletonList("p5"), complete.query(constrains.get(1)));
+
+        Path tmpDir = Files.createTempDirectory("SafeUpdateFacadeTest");
+        SafeUpdateInventory facade = new SafeUpdateInventory(fileStreamFactory, tmpDir.toString());
+        facade.setVerbose(false);
+        facade.setCompactionPolicy(new SizeTieredCompactionPolicy(3, 100));
+        facade.updateIndex(copyResource(tmpDir, "/testdata_1.csv", "testdata_1").toString());
+        assertEquals(2, facade.updateIndex(Files.write(tmpDir.resolve("update"), update).toString()));
+        assertEquals(2, countSegments(tmpDir));
+        for (Constrain constrain : constrains) {
+            assertEquals(complete.query(constrain), facade.query(constrain));
+        }
+
+        facade.setCompactionPolicy(new SizeTieredCompactionPolicy(2, 100));
+        assertEquals(1, facade.compact());
+        for (Constrain constrain : constrains) {
+            assertEquals(complete.query(constrain), facade.query(constrain));
+        }
+    }
+
+    @Test
+    public void test_segments_from_index_background_compaction() throws Exception {
+        FileStreamFactory fileStreamFactory = new FileStreamFactory();
+        Path tmpDir = Files.createTempDirectory("SafeUpdateFacadeTest");
+        SafeUpdateInventory facade = new SafeUpdateInventory(fileStreamFactory, tmpDir.toString());
+        facade.setVerbose(false);
+        Path csv1 = copyResource(tmpDir, "/meris20050101_products_list.csv", "meris20050101");
+        Path csv2 = copyResource(tmpDir, "/meris20050102_products_list.csv", "meris20050102");
+        facade.updateIndex(csv1.toString());
+        assertTrue(Files.exists(tmpDir.resolve("geo_index.a")));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        facade.setCompactionPolicy(new SizeTieredCompactionPolicy(2, 100));
+        facade.setCompactionExecutor(executor);
+        // the index becomes the first segment
+        assertEquals(16, facade.updateIndex(csv2.toString()));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(Collections.singletonList("geo_segment.000002"),
+                     SegmentManifest.read(fileStreamFactory, tmpDir.resolve("geo_segments.b").toString()).getNames());
+        assertEquals(61622, Files.size(tmpDir.resolve("geo_segment.000002")));
+        assertEquals(30, facade.query(new Constrain.Builder("").build()).size());
+    }
+
+    @Test
+    public void test_parallel_ingest() throws Exception {
+        FileStreamFactory fileStreamFactory = new FileStreamFactory();
+        // many chunks, unsorted, with duplicates and equal start times
+        List<String> lines = new ArrayList<>();
+        for (String resource : new String[]{"meris20050101", "meris20050102", "meris20050103"}) {
+            try (InputStream is = this.getClass().getResourceAsStream("/" + resource + "_products_list.csv")) {
+                lines.addAll(new BufferedReader(new InputStreamReader(is)).lines().collect(Collectors.toList()));
+            }
+        }
+        List<String> manyLines = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            for (String line : lines) {
+                manyLines.add(i % 3 == 0 ? line : i + "_" + line);
+            }
+        }
+        Collections.shuffle(manyLines, new Random(5));
+
+        byte[][] indexBytes = new byte[2][];
+        for (int ingestThreads : new int[]{1, 4}) {
+            Path tmpDir = Files.createTempDirectory("SafeUpdateFacadeTest");
+            SafeUpdateInventory facade = new SafeUpdateInventory(fileStreamFactory, tmpDir.toString());
+            facade.setVerbose(false);
+            facade.setIngestThreads(ingestThreads);
+            Path csv1 = copyResource(tmpDir, "/meris20050102_products_list.csv", "meris20050102");
+            Path csv2 = Files.write(tmpDir.resolve("many"), manyLines);
+            Path csv3 = copyResource(tmpDir, "/meris20050101_products_list.csv", "meris20050101");
+            assertEquals(16 + manyLines.size() + 14, facade.updateIndex(csv1.toString(), csv2.toString(), csv3.toString()));
+            indexBytes[ingestThreads == 1 ? 0 : 1] = Files.readAllBytes(tmpDir.resolve("geo_index.a"));
+        }
+        assertArrayEquals(indexBytes[0], indexBytes[1]);
+    }
+
+    private static long countSegments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("geo_segment.")).count();
+        }
+    }
+
     private Path copyResource(Path destDir, String resourceName, String targetName) throws IOException {
         Path csv1 = destDir.resolve(targetName);
         try (InputStream is = this.getClass().getResourceAsStream(resourceName)) {
@@ -0,0 +1,30 @@
+package com.bc.inventory.search;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SizeTieredCompactionPolicyTest {
+
+    @Test
+    public void testTiers() {
+        SizeTieredCompactionPolicy policy = new SizeTieredCompactionPolicy(4, 100);
+        assertEquals(0, policy.getTier(1));
+        assertEquals(0, policy.getTier(100));
+        assertEquals(1, policy.getTier(101));
+        assertEquals(1, policy.getTier(400));
+        assertEquals(2, policy.getTier(401));
+    }
+
+    @Test
+    public void testSelect() {
+        SizeTieredCompactionPolicy policy = new SizeTieredCompactionPolicy(3, 100);
+        assertNull(policy.select(new int[0]));
+        assertNull(policy.select(new int[]{5000, 10, 20}));
+        // the newest run of small segments
+        assertArrayEquals(new int[]{1, 4}, policy.select(new int[]{5000, 10, 20, 30}));
+        // the lower tier first, the whole run
+        assertArrayEquals(new int[]{3, 7}, policy.select(new int[]{250, 200, 300, 50, 10, 20, 30}));
+        assertArrayEquals(new int[]{0, 4}, policy.select(new int[]{250, 200, 300, 290, 10}));
+    }
+}
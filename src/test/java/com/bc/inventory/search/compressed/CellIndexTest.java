@@ -0,0 +1,94 @@
+package com.bc.inventory.search.compressed;
+
+import com.bc.inventory.utils.S2Integer;
+import com.google.common.geometry.S2CellId;
+import com.google.common.geometry.S2LatLng;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CellIndexTest {
+
+    @Test
+    public void testFindAgainstCoverages() throws Exception {
+        Random random = new Random(42);
+        List<S2Integer.Coverage> coverages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            coverages.add(new S2Integer.Coverage(randomCellUnion(random, 1 + random.nextInt(10))));
+        }
+        List<DbFile.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            int coverageIndex = i % 7 == 0 ? -1 : random.nextInt(coverages.size());
+            entries.add(new DbFile.Entry(i, i + 1, "p" + i, new byte[0], coverageIndex));
+        }
+        CellIndex cellIndex = new CellIndex(ByteBuffer.wrap(CellIndex.encode(entries, coverages)));
+
+        for (int q = 0; q < 100; q++) {
+            int[] query = randomCellUnion(random, 1 + random.nextInt(3));
+            int point = S2Integer.asInt(randomCell(random, 13));
+            List<Integer> intersecting = new ArrayList<>();
+            List<Integer> containing = new ArrayList<>();
+            for (int entryId = 0; entryId < entries.size(); entryId++) {
+                int coverageIndex = entries.get(entryId).coverageIndex;
+                if (coverageIndex >= 0) {
+                    int[] intIds = coverages.get(coverageIndex).intIds;
+                    if (S2Integer.intersectsCellUnionFast(query, intIds)) {
+                        intersecting.add(entryId);
+                    }
+                    if (S2Integer.containsCellId(intIds, point)) {
+                        containing.add(entryId);
+                    }
+                }
+            }
+            assertArrayEquals(toArray(intersecting), cellIndex.findIntersecting(query));
+            assertArrayEquals(toArray(containing), cellIndex.findContaining(point));
+            assertTrue(cellIndex.getPostingBytesIntersecting(query) >= intersecting.size());
+            assertTrue(cellIndex.getPostingBytesContaining(point) >= containing.size());
+
+            int endEntryId = random.nextInt(entries.size());
+            intersecting.removeIf(entryId -> entryId >= endEntryId);
+            containing.removeIf(entryId -> entryId >= endEntryId);
+            assertArrayEquals(toArray(intersecting), cellIndex.findIntersecting(query, endEntryId));
+            assertArrayEquals(toArray(containing), cellIndex.findContaining(point, endEntryId));
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        byte[] encoded = CellIndex.encode(Collections.<DbFile.Entry>emptyList(), Collections.<S2Integer.Coverage>emptyList());
+        assertEquals(4, encoded.length);
+        CellIndex cellIndex = new CellIndex(ByteBuffer.wrap(encoded));
+        assertEquals(0, cellIndex.numCells());
+        assertEquals(0, cellIndex.findContaining(S2Integer.asInt(S2CellId.fromFacePosLevel(2, 0, 3))).length);
+    }
+
+    private static int[] randomCellUnion(Random random, int numCells) {
+        int[] cells = new int[numCells];
+        for (int i = 0; i < numCells; i++) {
+            cells[i] = S2Integer.asInt(randomCell(random, 2 + random.nextInt(8)));
+        }
+        return S2Integer.union(Collections.singletonList(cells));
+    }
+
+    private static S2CellId randomCell(Random random, int level) {
+        // a small region, so that the cells overlap often
+        S2LatLng latLng = S2LatLng.fromDegrees(40 + 20 * random.nextDouble(), 10 + 20 * random.nextDouble());
+        return S2CellId.fromLatLng(latLng).parent(level);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
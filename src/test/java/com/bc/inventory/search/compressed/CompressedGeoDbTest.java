@@ -4,6 +4,8 @@ import com.bc.geometry.s2.S2WKTReader;
 import com.bc.inventory.search.Constrain;
 import com.bc.inventory.search.GeoDbEntry;
 import com.bc.inventory.search.GeoDbUpdater;
+import com.bc.inventory.search.QueryProfile;
+import com.bc.inventory.utils.SimpleRecord;
 import com.bc.inventory.utils.TimeUtils;
 import com.google.common.collect.Lists;
 import com.google.common.geometry.S2Polygon;
@@ -11,13 +13,24 @@ import org.junit.Before;
 import org.junit.Test;
 
 import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.geom.Point2D;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import static org.junit.Assert.*;
 
@@ -49,7 +62,7 @@ public class CompressedGeoDbTest {
         
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         dbUpdater.write(baos);
-        assertEquals(343, baos.size());
+        assertEquals(843, baos.size());
         byte[] byteArray = baos.toByteArray();
 
         CompressedGeoDb compressedGeoDb2 = new CompressedGeoDb();
@@ -62,6 +75,361 @@ public class CompressedGeoDbTest {
         
     }
 
+    @Test
+    public void testParallelQuery() throws Exception {
+        byte[] byteArray = createModisDbBytes(3000);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int maxNumResults : new int[]{-1, 1, 150, 1999}) {
+                Constrain constrain = new Constrain.Builder("q")
+                        .withPolygon("POLYGON((0 70, 10 70, 10 75, 0 75, 0 70))")
+                        .withMaxNumResults(maxNumResults)
+                        .build();
+
+                CompressedGeoDb sequential = new CompressedGeoDb();
+                sequential.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+                List<String> expected = sequential.query(constrain);
+
+                CompressedGeoDb parallel = new CompressedGeoDb();
+                parallel.setQueryExecutor(executor, 4);
+                parallel.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+                assertEquals(expected, parallel.query(constrain));
+                assertEquals(maxNumResults == -1 ? 2000 : maxNumResults, expected.size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelQueryLargePolygon() throws Exception {
+        byte[] byteArray = createModisDbBytes(3000);
+
+        // around a vertex of the b polygon, with enough vertices for S2Loop to build its edge index during the exact tests
+        StringBuilder wkt = new StringBuilder("POLYGON((");
+        int numVertices = 500;
+        for (int i = 0; i <= numVertices; i++) {
+            double angle = 2 * Math.PI * (i % numVertices) / numVertices;
+            wkt.append(i > 0 ? "," : "").append(151.4 + 6 * Math.cos(angle)).append(' ').append(60.7 + 3 * Math.sin(angle));
+        }
+        wkt.append("))");
+        Constrain constrain = new Constrain.Builder("q").withPolygon(wkt.toString()).build();
+
+        CompressedGeoDb sequential = new CompressedGeoDb();
+        sequential.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+        List<String> expected = sequential.query(constrain);
+        assertEquals(1000, expected.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CompressedGeoDb parallel = new CompressedGeoDb();
+            parallel.setQueryExecutor(executor, 4);
+            parallel.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+            for (int i = 0; i < 10; i++) {
+                QueryProfile profile = new QueryProfile();
+                List<String> results = new ArrayList<>();
+                parallel.query(constrain, results::add, profile);
+                assertEquals(expected, results);
+                assertTrue(profile.getNumExactTests() > 0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReadAheadExecutor() throws Exception {
+        byte[] byteArray = createModisDbBytes(3000);
+        Constrain constrain = new Constrain.Builder("q").withPolygon("POLYGON((0 70, 10 70, 10 75, 0 75, 0 70))").build();
+
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+        try {
+            CompressedGeoDb db = new CompressedGeoDb();
+            db.setReadAheadExecutor(executor);
+            db.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+            // nothing is read ahead before the first query
+            assertEquals(0, executor.getTaskCount());
+            assertEquals(2000, db.query(constrain).size());
+            assertTrue(executor.getTaskCount() > 0);
+            db.close();
+            // the executor is not owned by the database
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testChannelClosedWhenOpenFails() throws Exception {
+        Path file = Files.createTempFile("CompressedGeoDbTest", ".bin");
+        try {
+            Files.write(file, "not a geo index file".getBytes());
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                new CompressedGeoDb().open(channel);
+                fail();
+            } catch (IllegalArgumentException expected) {
+                assertFalse(channel.isOpen());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testStreamingQuery() throws Exception {
+        byte[] byteArray = createModisDbBytes(3000);
+        Constrain constrain = new Constrain.Builder("q").withPolygon("POLYGON((0 70, 10 70, 10 75, 0 75, 0 70))").build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (boolean parallel : new boolean[]{false, true}) {
+                CompressedGeoDb db = new CompressedGeoDb();
+                if (parallel) {
+                    db.setQueryExecutor(executor, 4);
+                }
+                db.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+                List<String> expected = db.query(constrain);
+
+                List<String> streamed = new ArrayList<>();
+                db.query(constrain, streamed::add);
+                assertEquals(expected, streamed);
+
+                // the sink stops the query
+                List<String> first = new ArrayList<>();
+                db.query(constrain, path -> first.add(path) && first.size() < 5);
+                assertEquals(expected.subList(0, 5), first);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueryProfile() throws Exception {
+        byte[] byteArray = createModisDbBytes(3000);
+        Constrain constrain = new Constrain.Builder("q")
+                .withPolygon("POLYGON((0 70, 10 70, 10 75, 0 75, 0 70))")
+                .addDateRang(new Date(2000 * 60 * 1000L), new Date(2100 * 60 * 1000L))
+                .build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (boolean parallel : new boolean[]{false, true}) {
+                CompressedGeoDb db = new CompressedGeoDb();
+                if (parallel) {
+                    db.setQueryExecutor(executor, 4);
+                }
+                db.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+                QueryProfile profile = new QueryProfile();
+                List<String> results = new ArrayList<>();
+                db.query(constrain, results::add, profile);
+
+                assertEquals(db.query(constrain), results);
+                assertEquals(results.size(), profile.getNumMatches());
+                assertTrue(profile.getNumConsidered() <= 3000);
+                assertTrue(profile.getNumTimeMatches() < 3000);
+                assertTrue(profile.getNumTimeMatches() <= profile.getNumConsidered());
+                assertTrue(profile.getNumCandidates() <= profile.getNumTimeMatches());
+                assertEquals(profile.getNumCandidates(), profile.getNumExactTests() + profile.getNumAccepted());
+                assertTrue(profile.getNumMatches() <= profile.getNumCandidates());
+                assertTrue(profile.getNumBlocksRead() > 0);
+                assertTrue(profile.getNumBytesRead() > 0);
+                db.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPlannerSameResults() throws Exception {
+        S2WKTReader wktReader = new S2WKTReader();
+        CompressedGeoDb compressedGeoDb = new CompressedGeoDb();
+        GeoDbUpdater dbUpdater = compressedGeoDb.getDbUpdater();
+        for (int i = 0; i < 3000; i++) {
+            S2Polygon polygon = i % 3 == 0 ? bModisPolygon : box(wktReader, (i * 7) % 350 - 175, (i * 13) % 140 - 70, 3);
+            dbUpdater.addEntry(new GeoDbEntry(1000 + 10 * i, 1100 + 10 * i, "p" + i, polygon));
+        }
+        byte[][] dbBytes = new byte[2][];
+        for (boolean writeCellIndex : new boolean[]{false, true}) {
+            compressedGeoDb.setWriteCellIndex(writeCellIndex);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            dbUpdater.write(baos);
+            dbBytes[writeCellIndex ? 1 : 0] = baos.toByteArray();
+        }
+        CompressedGeoDb scanning = new CompressedGeoDb();
+        scanning.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(dbBytes[0])));
+        CompressedGeoDb planned = new CompressedGeoDb();
+        planned.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(dbBytes[1])));
+
+        long minute = 60 * 1000L;
+        String[] polygons = {"POLYGON((10 10, 12 10, 12 12, 10 12, 10 10))", "POLYGON((0 -60, 90 -60, 90 60, 0 60, 0 -60))",
+                "POLYGON((100 60, 120 60, 120 70, 100 70, 100 60))"};
+        int[][][] dateRanges = {{}, {{2000, 2000}}, {{1000, 1000}, {20000, 20000}}, {{5000, 6000}, {9000, 9000}, {30000, 40000}}};
+        for (String wkt : polygons) {
+            for (int[][] ranges : dateRanges) {
+                Constrain.Builder builder = new Constrain.Builder("q").withPolygon(wkt);
+                for (int[] range : ranges) {
+                    builder.addDateRang(new Date(range[0] * minute), new Date(range[1] * minute));
+                }
+                Constrain constrain = builder.build();
+                QueryProfile scanningProfile = new QueryProfile();
+                List<String> expected = new ArrayList<>();
+                scanning.query(constrain, expected::add, scanningProfile);
+                assertEquals(1, scanningProfile.getNumPlans(QueryProfile.Strategy.TIME_FIRST));
+
+                QueryProfile profile = new QueryProfile();
+                List<String> results = new ArrayList<>();
+                planned.query(constrain, results::add, profile);
+                assertEquals(wkt + " " + ranges.length, expected, results);
+                long numPlans = 0;
+                for (QueryProfile.Strategy strategy : QueryProfile.Strategy.values()) {
+                    numPlans += profile.getNumPlans(strategy);
+                }
+                assertEquals(1, numPlans);
+                if (ranges.length == 0 && wkt.equals(polygons[0])) {
+                    // a small polygon over the whole mission
+                    assertEquals(1, profile.getNumPlans(QueryProfile.Strategy.SPACE_FIRST));
+                }
+            }
+        }
+    }
+
+    private static S2Polygon box(S2WKTReader wktReader, int lon, int lat, int size) {
+        return (S2Polygon) wktReader.read(String.format("POLYGON((%d %d, %d %d, %d %d, %d %d, %d %d))",
+                                                        lon, lat, lon + size, lat, lon + size, lat + size,
+                                                        lon, lat + size, lon, lat));
+    }
+
+    @Test
+    public void testMergeSameAsCompleteWrite() throws Exception {
+        // more than one block, equal start times in the file and in the update, paths added twice
+        List<GeoDbEntry> fileEntries = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            fileEntries.add(new GeoDbEntry(1000 + i / 3, 1100 + i, "p" + i, i % 3 == 0 ? bModisPolygon : aModisPolygon));
+        }
+        List<GeoDbEntry> newEntries = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            int productNumber = i % 5 == 0 ? 7 * i : 1500 + i % 550;
+            newEntries.add(new GeoDbEntry(1000 + (i * 37) % 700, 1200 + i, "p" + productNumber, i % 2 == 0 ? bModisPolygon : aModisPolygon));
+        }
+
+        CompressedGeoDb fileDb = new CompressedGeoDb();
+        GeoDbUpdater dbUpdater = fileDb.getDbUpdater();
+        for (GeoDbEntry entry : fileEntries) {
+            dbUpdater.addEntry(entry);
+        }
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream();
+        dbUpdater.write(fileBytes);
+
+        CompressedGeoDb completeDb = new CompressedGeoDb();
+        dbUpdater = completeDb.getDbUpdater();
+        for (GeoDbEntry entry : fileEntries) {
+            dbUpdater.addEntry(entry);
+        }
+        for (GeoDbEntry entry : newEntries) {
+            dbUpdater.addEntry(entry);
+        }
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        dbUpdater.write(expected);
+
+        for (boolean randomAccess : new boolean[]{true, false}) {
+            CompressedGeoDb mergedDb = new CompressedGeoDb();
+            ByteArrayInputStream is = new ByteArrayInputStream(fileBytes.toByteArray());
+            if (randomAccess) {
+                mergedDb.open(new MemoryCacheImageInputStream(is));
+            } else {
+                mergedDb.open(is);
+            }
+            dbUpdater = mergedDb.getDbUpdater();
+            for (GeoDbEntry entry : newEntries) {
+                dbUpdater.addEntry(entry);
+            }
+            assertEquals(completeDb.size(), Lists.newArrayList(mergedDb.entries()).size());
+            ByteArrayOutputStream merged = new ByteArrayOutputStream();
+            dbUpdater.write(merged);
+            mergedDb.close();
+            assertArrayEquals("randomAccess=" + randomAccess, expected.toByteArray(), merged.toByteArray());
+        }
+    }
+
+    @Test
+    public void testMultipleDateRanges() throws Exception {
+        byte[] byteArray = createModisDbBytes(3000);
+        CompressedGeoDb db = new CompressedGeoDb();
+        db.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+
+        long minute = 60 * 1000L;
+        int[][] ranges = {{3500, 3600}, {1550, 2100}, {1500, 1600}, {2990, 3100}, {100, 200}};
+        Constrain.Builder builder = new Constrain.Builder("q").withPolygon("POLYGON((0 70, 10 70, 10 75, 0 75, 0 70))");
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int[] range : ranges) {
+            Date start = new Date(range[0] * minute);
+            Date end = new Date(range[1] * minute);
+            builder.addDateRang(start, end);
+            Constrain single = new Constrain.Builder("q").withPolygon("POLYGON((0 70, 10 70, 10 75, 0 75, 0 70))")
+                    .addDateRang(start, end).build();
+            for (String path : db.query(single)) {
+                expected.add(Integer.parseInt(path.substring(1)));
+            }
+        }
+        List<String> result = db.query(builder.build());
+        assertEquals(expected.size(), result.size());
+        int i = 0;
+        for (Integer productNumber : expected) {
+            assertEquals("p" + productNumber, result.get(i++));
+        }
+    }
+
+    @Test
+    public void testInteriorSameResults() throws Exception {
+        byte[] byteArray = createModisDbBytes(300);
+        CompressedGeoDb withInteriors = new CompressedGeoDb();
+        withInteriors.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(byteArray)));
+
+        CompressedGeoDb noInteriorDb = new CompressedGeoDb();
+        noInteriorDb.setInteriorLevel(0);
+        byte[] noInteriorBytes = createModisDbBytes(noInteriorDb, 300);
+        assertTrue(noInteriorBytes.length < byteArray.length);
+        CompressedGeoDb withoutInteriors = new CompressedGeoDb();
+        withoutInteriors.open(new MemoryCacheImageInputStream(new ByteArrayInputStream(noInteriorBytes)));
+
+        Constrain[] constrains = {
+                // inside the interior of the products
+                new Constrain.Builder("q").withPolygon("POLYGON((40 72, 42 72, 42 73, 40 73, 40 72))").build(),
+                // crossing the border of the products
+                new Constrain.Builder("q").withPolygon("POLYGON((0 60, 10 60, 10 75, 0 75, 0 60))").build(),
+                new Constrain.Builder("q").withInsituRecords(Arrays.asList(
+                        new SimpleRecord(new Point2D.Double(41, 72.5)),
+                        new SimpleRecord(new Point2D.Double(120, 70)))).build(),
+        };
+        for (Constrain constrain : constrains) {
+            List<String> expected = withoutInteriors.query(constrain);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, withInteriors.query(constrain));
+        }
+    }
+
+    /**
+     * @return A written DB of alternating MODIS polygons, each product starting one minute after the previous one.
+     */
+    private byte[] createModisDbBytes(int numEntries) throws IOException {
+        return createModisDbBytes(new CompressedGeoDb(), numEntries);
+    }
+
+    private byte[] createModisDbBytes(CompressedGeoDb compressedGeoDb, int numEntries) throws IOException {
+        GeoDbUpdater dbUpdater = compressedGeoDb.getDbUpdater();
+        for (int i = 0; i < numEntries; i++) {
+            S2Polygon polygon = i % 3 == 0 ? bModisPolygon : aModisPolygon;
+            dbUpdater.addEntry(new GeoDbEntry(1000 + i, 1100 + i, "p" + i, polygon));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dbUpdater.write(baos);
+        return baos.toByteArray();
+    }
+
     private void assertQuery(CompressedGeoDb compressedGeoDb2) throws IOException {
         ArrayList<GeoDbEntry> entryList2 = Lists.newArrayList(compressedGeoDb2.entries());
         assertEquals(2, entryList2.size());
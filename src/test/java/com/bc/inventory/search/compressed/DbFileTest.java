@@ -1,6 +1,7 @@
 package com.bc.inventory.search.compressed;
 
 import com.bc.inventory.utils.S2Integer;
+import com.google.common.geometry.S2CellId;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -10,12 +11,22 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class DbFileTest {
@@ -62,12 +73,15 @@ public class DbFileTest {
         try (DbFile.Reader reader = new DbFile.InputStreamReader(is)) {
             assertReader_oneEntry(reader);
         }
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes))) {
+            assertReader_oneEntry(reader);
+        }
     }
 
     private void assertReader_oneEntry(DbFile.Reader reader) throws IOException {
         reader.readIndex();
-        assertArrayEquals(new int[]{0}, reader.getStartTimes());
-        assertArrayEquals(new int[]{5}, reader.getEndTimes());
+        assertArrayEquals(new int[]{0}, toArray(reader.getStartTimes()));
+        assertArrayEquals(new int[]{5}, toArray(reader.getEndTimes()));
         assertEquals(0, reader.getBitmapIndex(0));
         assertEquals(1, reader.numBitmaps());
         assertArrayEquals(s2Coverage.intIds, reader.getBitmap(0));
@@ -104,6 +118,26 @@ public class DbFileTest {
         try (DbFile.Reader reader = createISR(bytes)) {
             assertReader_twoEntries_readOne(reader, 0);
         }
+
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes))) {
+            assertReader_twoEntries_all(reader);
+        }
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes))) {
+            assertReader_twoEntries_readOne(reader, 1);
+        }
+    }
+
+    private FileChannel createChannel(byte[] bytes) throws IOException {
+        Path tmpFile = Files.createTempFile("DbFileTest", ".db");
+        tmpFile.toFile().deleteOnExit();
+        Files.write(tmpFile, bytes);
+        return FileChannel.open(tmpFile, StandardOpenOption.READ);
+    }
+
+    private static int[] toArray(IntBuffer intBuffer) {
+        int[] ints = new int[intBuffer.remaining()];
+        intBuffer.get(ints);
+        return ints;
     }
 
     private DbFile.InputStreamReader createISR(byte[] bytes) {
@@ -114,6 +148,10 @@ public class DbFileTest {
         return new DbFile.ImageInputStreamReader(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes)));
     }
 
+    private DbFile.ImageInputStreamReader createIISR(byte[] bytes, int blockSize) {
+        return new DbFile.ImageInputStreamReader(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes)), blockSize, true);
+    }
+
     private void assertReader_twoEntries_readOne(DbFile.Reader reader, int entryId) throws IOException {
         reader.readIndex();
         assertSingleEntry(reader, entryId);
@@ -121,8 +159,8 @@ public class DbFileTest {
 
     private void assertReader_twoEntries_all(DbFile.Reader reader) throws IOException {
         reader.readIndex();
-        assertArrayEquals(new int[]{0,1}, reader.getStartTimes());
-        assertArrayEquals(new int[]{5,6}, reader.getEndTimes());
+        assertArrayEquals(new int[]{0,1}, toArray(reader.getStartTimes()));
+        assertArrayEquals(new int[]{5,6}, toArray(reader.getEndTimes()));
         assertEquals(0, reader.getBitmapIndex(0));
         assertEquals(0, reader.getBitmapIndex(1));
         assertEquals(1, reader.numBitmaps());
@@ -153,6 +191,13 @@ public class DbFileTest {
             assertReader_multiBlocks_blocksReverse(reader);
         }
         
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes), 3, true)) {
+            assertReader_multiBlocks_all(reader);
+        }
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes), 3, true)) {
+            assertReader_multiBlocks_blocksReverse(reader);
+        }
+
         try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(bytes), 3, true)) {
             assertReader_multiBlocks_all(reader);
         }
@@ -167,10 +212,325 @@ public class DbFileTest {
         }
     }
 
+    @Test
+    public void testWriteRead_zones() throws Exception {
+        int cellA = S2Integer.asInt(S2CellId.fromFacePosLevel(0, 0, 2));
+        int cellB = S2Integer.asInt(S2CellId.fromFacePosLevel(3, 0, 2));
+        List<S2Integer.Coverage> coverages = Arrays.asList(new S2Integer.Coverage(cellA), new S2Integer.Coverage(cellB));
+        List<DbFile.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < e.length; i++) {
+            int coverageIndex = i < 3 ? 0 : (i < 6 ? 1 : i % 2);
+            entries.add(new DbFile.Entry(e[i].startTime, i == 4 ? 20 : e[i].endTime, e[i].path, e[i].polygonBytes, coverageIndex));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, true)) {
+            writer.write(entries, coverages);
+        }
+        byte[] bytes = baos.toByteArray();
+
+        try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(bytes), 3, true)) {
+            reader.readIndex();
+            assertEquals(3, reader.numZones());
+            assertEquals(0, reader.getZone(2));
+            assertEquals(1, reader.getZone(3));
+            assertEquals(2, reader.getZone(7));
+            assertEquals(6, reader.getZoneStart(2));
+            assertEquals(0, reader.getZoneMinStartTime(0));
+            assertEquals(7, reader.getZoneMaxEndTime(0));
+            assertEquals(3, reader.getZoneMinStartTime(1));
+            assertEquals(20, reader.getZoneMaxEndTime(1));
+            assertEquals(6, reader.getZoneMinStartTime(2));
+            assertEquals(12, reader.getZoneMaxEndTime(2));
+            assertArrayEquals(new int[]{cellA}, reader.getZoneCoverage(0));
+            assertArrayEquals(new int[]{cellB}, reader.getZoneCoverage(1));
+            assertArrayEquals(new int[]{cellA, cellB}, reader.getZoneCoverage(2));
+            assertSingleEntry(reader, 7);
+        }
+
+        baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, false)) {
+            writer.write(entries, coverages);
+        }
+        bytes = baos.toByteArray();
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes), false)) {
+            reader.readIndex();
+            assertEquals(3, reader.numZones());
+            assertEquals(20, reader.getZoneMaxEndTime(1));
+            assertArrayEquals(new int[0], reader.getZoneCoverage(1));
+        }
+    }
+
+    @Test
+    public void testWriteRead_cellIndex() throws Exception {
+        int cellA = S2Integer.asInt(S2CellId.fromFacePosLevel(0, 0, 2));
+        int cellB = S2Integer.asInt(S2CellId.fromFacePosLevel(3, 0, 2));
+        List<S2Integer.Coverage> coverages = Arrays.asList(new S2Integer.Coverage(cellA), new S2Integer.Coverage(cellB));
+        List<DbFile.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < e.length; i++) {
+            entries.add(new DbFile.Entry(e[i].startTime, e[i].endTime, e[i].path, e[i].polygonBytes, i % 3 == 0 ? 1 : 0));
+        }
+        int cellBChild = S2Integer.asInt(S2CellId.fromFacePosLevel(3, 0, 2).childBegin(5));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, true)) {
+            writer.write(entries, coverages);
+        }
+        byte[] withCellIndex = baos.toByteArray();
+        try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(withCellIndex), 3, true)) {
+            reader.readIndex();
+            CellIndex cellIndex = reader.getCellIndex();
+            assertEquals(2, cellIndex.numCells());
+            assertArrayEquals(new int[]{0, 3, 6}, cellIndex.findContaining(cellBChild));
+            assertArrayEquals(new int[]{1, 2, 4, 5, 7}, cellIndex.findIntersecting(new int[]{cellA}));
+            assertSingleEntry(reader, 7);
+        }
+
+        baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, true)) {
+            writer.setWriteCellIndex(false);
+            writer.write(entries, coverages);
+        }
+        byte[] withoutCellIndex = baos.toByteArray();
+        assertTrue(withoutCellIndex.length < withCellIndex.length);
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(withoutCellIndex), 3, true)) {
+            reader.readIndex();
+            assertEquals(null, reader.getCellIndex());
+            assertSingleEntry(reader, 7);
+        }
+    }
+
+    @Test
+    public void testWriteRead_interiors() throws Exception {
+        int cellA = S2Integer.asInt(S2CellId.fromFacePosLevel(0, 0, 2));
+        int cellB = S2Integer.asInt(S2CellId.fromFacePosLevel(3, 0, 2));
+        List<S2Integer.Coverage> coverages = Arrays.asList(new S2Integer.Coverage(cellA), new S2Integer.Coverage(cellB));
+        List<DbFile.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < e.length; i++) {
+            int[] interior = i % 2 == 0 ? new int[]{cellA} : new int[0];
+            entries.add(new DbFile.Entry(e[i].startTime, e[i].endTime, e[i].path, e[i].polygonBytes, 0, interior));
+        }
+        int cellAChild = S2Integer.asInt(S2CellId.fromFacePosLevel(0, 0, 2).childBegin(5));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, true)) {
+            writer.write(entries, coverages);
+        }
+        try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(baos.toByteArray()), 3, true)) {
+            reader.readIndex();
+            CoverageDictionary interiors = reader.getInteriors();
+            for (int i = 0; i < e.length; i++) {
+                assertEquals(i % 2 == 0, interiors.containsCellId(i, cellAChild));
+                assertFalse(interiors.containsCellId(i, cellB));
+            }
+            assertSingleEntry(reader, 7);
+        }
+
+        // without interiors the section is not written
+        entries.clear();
+        for (int i = 0; i < e.length; i++) {
+            entries.add(new DbFile.Entry(e[i].startTime, e[i].endTime, e[i].path, e[i].polygonBytes, 0));
+        }
+        baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, true)) {
+            writer.write(entries, coverages);
+        }
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(baos.toByteArray()), 3, true)) {
+            reader.readIndex();
+            assertEquals(null, reader.getInteriors());
+        }
+    }
+
+    @Test
+    public void testRead_blockCache() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, true)) {
+            writer.write(Arrays.asList(e), Collections.singletonList(s2Coverage));
+        }
+        byte[] bytes = baos.toByteArray();
+
+        BlockCache blockCache = new BlockCache(BlockCache.DEFAULT_MAX_BYTES);
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes), 3, true)) {
+            reader.setBlockCache(blockCache);
+            reader.readIndex();
+            assertSingleEntry(reader, 0);
+            assertSingleEntry(reader, 1);
+            assertSingleEntry(reader, 7);
+            assertSingleEntry(reader, 2);
+            assertSingleEntry(reader, 6);
+            assertEquals(2, blockCache.getMissCount());
+            assertEquals(2, blockCache.getHitCount());
+            assertEquals(2, blockCache.size());
+        }
+
+        // cached blocks allow going backwards with a forward only stream
+        blockCache = new BlockCache(BlockCache.DEFAULT_MAX_BYTES);
+        try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(bytes), 3, true)) {
+            reader.setBlockCache(blockCache);
+            reader.readIndex();
+            assertSingleEntry(reader, 0);
+            assertSingleEntry(reader, 7);
+            assertSingleEntry(reader, 0);
+            assertEquals(2, blockCache.getMissCount());
+            assertEquals(1, blockCache.getHitCount());
+        }
+    }
+
+    @Test
+    public void testRead_readAhead() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, true)) {
+            writer.write(Arrays.asList(e), Collections.singletonList(s2Coverage));
+        }
+        byte[] bytes = baos.toByteArray();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes), 3, true)) {
+                assertReader_readAhead(reader, executor);
+            }
+            try (DbFile.Reader reader = createIISR(bytes, 3)) {
+                assertReader_readAhead(reader, executor);
+            }
+            // forward only readers ignore the plan
+            try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(bytes), 3, true)) {
+                assertReader_readAhead(reader, executor);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void assertReader_readAhead(DbFile.Reader reader, ExecutorService executor) throws IOException {
+        reader.setReadAhead(executor, 2);
+        reader.readIndex();
+        reader.planEntries(new int[]{0, 1, 4, 7});
+        assertSingleEntry(reader, 0);
+        assertSingleEntry(reader, 1);
+        assertSingleEntry(reader, 4);
+        assertSingleEntry(reader, 7);
+
+        // entries that have not been planned are read directly
+        reader.planEntries(new int[]{3, 6});
+        assertSingleEntry(reader, 7);
+        assertSingleEntry(reader, 6);
+        reader.cancelReadAhead();
+    }
+
+    @Test
+    public void testBlockCache_eviction() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, true)) {
+            writer.write(Arrays.asList(e), Collections.singletonList(s2Coverage));
+        }
+        byte[] bytes = baos.toByteArray();
+
+        BlockCache blockCache = new BlockCache(Long.MAX_VALUE);
+        try (DbFile.Reader reader = createIISR(bytes, 3)) {
+            reader.setBlockCache(blockCache);
+            reader.readIndex();
+            reader.readEntry(0);
+        }
+        long bytesPerBlock = blockCache.getNumBytes();
+        assertTrue(bytesPerBlock > 0);
+
+        // room for two blocks
+        blockCache = new BlockCache(2 * bytesPerBlock + 1);
+        try (DbFile.Reader reader = createIISR(bytes, 3)) {
+            reader.setBlockCache(blockCache);
+            reader.readIndex();
+            assertSingleEntry(reader, 0);
+            assertSingleEntry(reader, 3);
+            assertSingleEntry(reader, 0);
+            assertSingleEntry(reader, 6); // evicts block 1
+            assertEquals(2, blockCache.size());
+            assertSingleEntry(reader, 0);
+            assertSingleEntry(reader, 3);
+            assertEquals(4, blockCache.getMissCount());
+            assertEquals(2, blockCache.getHitCount());
+            assertTrue(blockCache.getNumBytes() <= 2 * bytesPerBlock + 1);
+        }
+    }
+
+    @Test
+    public void testRead_formatV1() throws Exception {
+        // written with the DbFile.Writer of version 0.6.1, block size 3
+        byte[] bytes;
+        try (InputStream is = getClass().getResourceAsStream("/geodb001_testdata.bin")) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = is.read(buffer)) > 0) {
+                baos.write(buffer, 0, len);
+            }
+            bytes = baos.toByteArray();
+        }
+        assertEquals(DbFile.FILE_MARKER_V1, new String(bytes, 0, DbFile.FILE_MARKER_V1.length()));
+
+        try (DbFile.Reader reader = new DbFile.ImageInputStreamReader(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes)), 3, true)) {
+            assertReader_multiBlocks_all(reader);
+        }
+        try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(bytes), 3, true)) {
+            assertReader_multiBlocks_all(reader);
+        }
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes), 3, true)) {
+            assertReader_multiBlocks_blocksReverse(reader);
+        }
+    }
+
+    @Test
+    public void testWriteRead_encodedTimes() throws Exception {
+        byte[] polygonBytes = {1, 2, 3, 4};
+        List<DbFile.Entry> entries = Arrays.asList(
+                new DbFile.Entry(-1, -1, "noTime", polygonBytes, 0),
+                new DbFile.Entry(18000000, 18000005, "p1", polygonBytes, 0),
+                new DbFile.Entry(18000000, 18000100, "p2", polygonBytes, 0),
+                new DbFile.Entry(19500000, 19400000, "p3", polygonBytes, 0)
+        );
+        assertEquals(1 + 4 + 1 + 4 + 1 + 1 + 2 + 3, DbFile.Writer.encodeTimes(entries).length);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, true)) {
+            writer.write(entries, Collections.singletonList(s2Coverage));
+        }
+        try (DbFile.Reader reader = createIISR(baos.toByteArray())) {
+            reader.readIndex();
+            assertArrayEquals(new int[]{-1, 18000000, 18000000, 19500000}, toArray(reader.getStartTimes()));
+            assertArrayEquals(new int[]{-1, 18000005, 18000100, 19400000}, toArray(reader.getEndTimes()));
+        }
+    }
+
+    @Test
+    public void testWriteRead_withoutIndex() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 3, false)) {
+            writer.write(Arrays.asList(e), Collections.emptyList());
+        }
+        byte[] bytes = baos.toByteArray();
+
+        try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(bytes), false)) {
+            reader.readIndex();
+            assertEquals(8, reader.numEntries());
+            assertEquals(0, reader.numBitmaps());
+            assertArrayEquals(new int[]{5,6,7,8,9,10,11,12}, toArray(reader.getEndTimes()));
+            assertSingleEntry(reader, 4);
+        }
+        try (DbFile.Reader reader = new DbFile.ImageInputStreamReader(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes)), true)) {
+            reader.readIndex();
+            // time information can be read, without touching the coverage sections
+            assertArrayEquals(new int[]{0,1,2,3,4,5,6,7}, toArray(reader.getStartTimes()));
+            try {
+                reader.getBitmap(0);
+                fail();
+            } catch (IOException ioe) {
+                assertEquals("section 4 does not exist in file", ioe.getMessage());
+            }
+        }
+    }
+
     private void assertReader_multiBlocks_all(DbFile.Reader reader) throws IOException {
         reader.readIndex();
-        assertArrayEquals(new int[]{0,1,2,3,4,5,6,7}, reader.getStartTimes());
-        assertArrayEquals(new int[]{5,6,7,8,9,10,11,12}, reader.getEndTimes());
+        assertArrayEquals(new int[]{0,1,2,3,4,5,6,7}, toArray(reader.getStartTimes()));
+        assertArrayEquals(new int[]{5,6,7,8,9,10,11,12}, toArray(reader.getEndTimes()));
         for (int i = 0; i < 8; i++) {
             assertEquals(0, reader.getBitmapIndex(i));
         }
@@ -206,6 +566,84 @@ public class DbFileTest {
         assertArrayEquals(e[entryId].polygonBytes, reader.getCurrentPolygonBytes());
     }
 
+    @Test
+    public void testWriteRead_blockStarts() throws Exception {
+        // every entry takes 4 + 4 + 2 bytes
+        List<DbFile.Entry> entries = Arrays.asList(e);
+        assertArrayEquals(new int[]{0, 3, 6}, writeAndReadBlockStarts(entries, 3, 1000));
+        assertArrayEquals(new int[]{0, 2, 4, 6}, writeAndReadBlockStarts(entries, 3, 20));
+        assertArrayEquals(new int[]{0, 2, 4, 6}, writeAndReadBlockStarts(entries, 3, 29));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6, 7}, writeAndReadBlockStarts(entries, 3, 5));
+        assertArrayEquals(new int[0], writeAndReadBlockStarts(Collections.emptyList(), 3, 20));
+
+        // the paths count with their UTF-8 length, every entry takes 4 + 4 + 7 bytes
+        List<DbFile.Entry> utf8Entries = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            utf8Entries.add(new DbFile.Entry(i, i + 5, "\u00e4\u00f6\u00fc" + i, new byte[4], 0));
+        }
+        assertArrayEquals(new int[]{0, 2}, writeAndReadBlockStarts(utf8Entries, 3, 30));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, writeAndReadBlockStarts(utf8Entries, 3, 29));
+    }
+
+    /**
+     * @return The first entry of each block, as read back from the written file.
+     */
+    private int[] writeAndReadBlockStarts(List<DbFile.Entry> entries, int blockSize, int blockBytes) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DbFile.Writer writer = new DbFile.Writer(baos, blockSize, blockBytes, true, PolygonCodec.DEFAULT)) {
+            writer.write(entries, Collections.singletonList(s2Coverage));
+        }
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(baos.toByteArray()), blockSize, true)) {
+            reader.readIndex();
+            int[] blockStarts = new int[reader.numZones()];
+            for (int zone = 0; zone < blockStarts.length; zone++) {
+                blockStarts[zone] = reader.getZoneStart(zone);
+            }
+            return blockStarts;
+        }
+    }
+
+    @Test
+    public void testWriteRead_blocksByBytes() throws Exception {
+        List<DbFile.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < e.length; i++) {
+            byte[] polygonBytes = new byte[i % 3 == 0 ? 40 : 4];
+            Arrays.fill(polygonBytes, (byte) i);
+            entries.add(new DbFile.Entry(i, i + 5, e[i].path, polygonBytes, 0));
+        }
+        assertArrayEquals(new int[]{0, 3, 6}, writeAndReadBlockStarts(entries, 3, 70));
+        assertArrayEquals(new int[]{0, 1, 3, 4, 6, 7}, writeAndReadBlockStarts(entries, 1000, 30));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(DbFile.Writer writer = new DbFile.Writer(baos, 1000, 30, true, PolygonCodec.DEFAULT)) {
+            writer.write(entries, Collections.singletonList(s2Coverage));
+        }
+        byte[] bytes = baos.toByteArray();
+
+        // the block size given to the readers is not used for the current format
+        try (DbFile.Reader reader = new DbFile.MappedReader(createChannel(bytes), 3, true)) {
+            reader.readIndex();
+            assertEquals(6, reader.numZones());
+            assertEquals(1, reader.getZone(2));
+            assertEquals(3, reader.getZone(5));
+            assertEquals(4, reader.getZoneStart(3));
+            assertEquals(7, reader.getZoneStart(5));
+            for (int i : new int[]{7, 0, 2, 1, 6, 3, 5, 4}) {
+                reader.readEntry(i);
+                assertEquals(entries.get(i).path, reader.getCurrentPath());
+                assertArrayEquals(entries.get(i).polygonBytes, reader.getCurrentPolygonBytes());
+            }
+        }
+        try (DbFile.Reader reader = new DbFile.InputStreamReader(new ByteArrayInputStream(bytes), 3, true)) {
+            reader.readIndex();
+            for (int i = 0; i < entries.size(); i++) {
+                reader.readEntry(i);
+                assertEquals(entries.get(i).path, reader.getCurrentPath());
+                assertArrayEquals(entries.get(i).polygonBytes, reader.getCurrentPolygonBytes());
+            }
+        }
+    }
+
     @Test
     public void testNumBlocks() throws Exception {
         assertEquals(0, DbFile.getNumBlocks(0, DbFile.DEFAULT_BLOCK_SIZE));
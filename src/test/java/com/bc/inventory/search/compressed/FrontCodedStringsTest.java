@@ -0,0 +1,49 @@
+package com.bc.inventory.search.compressed;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrontCodedStringsTest {
+
+    private static final String[] PATHS = {
+            "/calvalus/eodata/MER_RR__1P/r03/2002/06/11/MER_RR__1PRACR20020611_100437_000026352006_00423_01568_0000.N1",
+            "/calvalus/eodata/MER_RR__1P/r03/2002/06/11/MER_RR__1PRACR20020611_114514_000026352006_00424_01569_0000.N1",
+            "/calvalus/eodata/MER_RR__1P/r03/2002/06/12/MER_RR__1PRACR20020612_092000_000026352006_00437_01582_0000.N1",
+            "/calvalus/eodata/MER_RR__1P/r03/2002/06/12/MER_RR__1PRACR20020612_110037_000026352006_00438_01583_0000.N1",
+            "short",
+            "",
+            "/calvalus/eodata/MER_RR__1P/r03/2002/06/12/MER_RR__1PRACR20020612_124113_000026352006_00439_01584_0000.N1",
+            "/calvalus/eodata/äöü/äöüß",
+            "/calvalus/eodata/äöü/äöþ",
+    };
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        for (int restartInterval : new int[]{1, 2, 3, 16}) {
+            FrontCodedStrings strings = new FrontCodedStrings(ByteBuffer.wrap(FrontCodedStrings.encode(PATHS, restartInterval)));
+            for (int i = PATHS.length - 1; i >= 0; i--) {
+                assertEquals(PATHS[i], strings.get(i));
+            }
+            for (int i = 0; i < PATHS.length; i++) {
+                assertEquals(PATHS[i], strings.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSharedPrefixes() throws Exception {
+        byte[] encoded = FrontCodedStrings.encode(new String[]{"abcdef", "abcxyz", "abc"}, 2);
+        // header: interval, numRestarts, 2 restart offsets
+        // "abcdef": 0, 6, 6 bytes; "abcxyz": 3, 3, 3 bytes; "abc": 0, 3, 3 bytes (restart)
+        assertEquals(4 + 4 + 2 * 4 + 8 + 5 + 5, encoded.length);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        byte[] encoded = FrontCodedStrings.encode(new String[0]);
+        assertEquals(8, encoded.length);
+    }
+}
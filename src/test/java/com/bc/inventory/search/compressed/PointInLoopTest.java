@@ -0,0 +1,69 @@
+package com.bc.inventory.search.compressed;
+
+import com.bc.geometry.s2.S2WKTReader;
+import com.google.common.geometry.S2LatLng;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PointInLoopTest {
+
+    private static final String[] WKTS = {
+            "POLYGON((-96.5327666830256 87.1546434730307,103.743686712102 71.3437478705495,59.2615258995161 65.0182420500955,0.362928123129433 73.3758030120494,-96.5327666830256 87.1546434730307))",
+            "POLYGON((170 10, -170 10, -170 20, 170 20, 170 10))",
+            "POLYGON((0 0, 10 0, 10 10, 5 3, 0 10, 0 0))",
+    };
+
+    @Test
+    public void testSameAsS2Loop() throws Exception {
+        Random random = new Random(11);
+        PointInLoop pointInLoop = new PointInLoop();
+        for (PolygonCodec codec : new PolygonCodec[]{PolygonCodec.FLOAT_XYZ, PolygonCodec.QUANTIZED_E6}) {
+            for (String wkt : WKTS) {
+                S2Polygon polygon = (S2Polygon) new S2WKTReader().read(wkt);
+                ByteBuffer bb = ByteBuffer.wrap(codec.encode(polygon));
+                S2Loop loop = codec.decodeLoop(bb.duplicate());
+
+                List<S2Point> pointList = new ArrayList<>();
+                for (int i = 0; i < loop.numVertices(); i++) {
+                    // on the vertices and on the edges, where the predicates need the S2 fallbacks
+                    pointList.add(loop.vertex(i));
+                    pointList.add(S2Point.normalize(S2Point.add(loop.vertex(i), loop.vertex(i + 1))));
+                }
+                S2LatLng center = loop.getRectBound().getCenter();
+                for (int i = 0; i < 500; i++) {
+                    pointList.add(S2LatLng.fromDegrees(center.latDegrees() + 30 * random.nextGaussian(),
+                                                       center.lngDegrees() + 60 * random.nextGaussian()).normalized().toPoint());
+                }
+                S2Point[] points = pointList.toArray(new S2Point[0]);
+                S2LatLng[] latLngs = new S2LatLng[points.length];
+                for (int i = 0; i < points.length; i++) {
+                    latLngs[i] = new S2LatLng(points[i]);
+                }
+
+                int[] pointIndices = new int[points.length];
+                for (int i = 0; i < points.length; i++) {
+                    pointIndices[i] = i;
+                    assertEquals(wkt + " point " + i, loop.contains(points[i]),
+                                 pointInLoop.containsAny(bb, codec, points, latLngs, pointIndices, i, i + 1));
+                }
+                assertEquals(0, bb.position());
+
+                // all points in one pass
+                boolean anyContained = false;
+                for (S2Point point : points) {
+                    anyContained |= loop.contains(point);
+                }
+                assertEquals(anyContained, pointInLoop.containsAny(bb, codec, points, latLngs, pointIndices, 0, points.length));
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.bc.inventory.search.compressed;
+
+import com.bc.geometry.s2.S2WKTReader;
+import com.google.common.geometry.S2Loop;
+import com.google.common.geometry.S2Point;
+import com.google.common.geometry.S2Polygon;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PolygonCodecTest {
+
+    private static final String MODIS_WKT = "POLYGON((-96.5327666830256 87.1546434730307,103.743686712102 71.3437478705495,59.2615258995161 65.0182420500955,0.362928123129433 73.3758030120494,-96.5327666830256 87.1546434730307))";
+    private static final String DATELINE_WKT = "POLYGON((170 10, -170 10, -170 20, 170 20, 170 10))";
+
+    private S2Polygon modisPolygon;
+    private S2Polygon datelinePolygon;
+
+    @Before
+    public void setUp() throws Exception {
+        S2WKTReader wktReader = new S2WKTReader();
+        modisPolygon = (S2Polygon) wktReader.read(MODIS_WKT);
+        datelinePolygon = (S2Polygon) wktReader.read(DATELINE_WKT);
+    }
+
+    @Test
+    public void testForId() throws Exception {
+        assertSame(PolygonCodec.FLOAT_XYZ, PolygonCodec.forId(PolygonCodec.FLOAT_XYZ.getId()));
+        assertSame(PolygonCodec.QUANTIZED_E6, PolygonCodec.forId(PolygonCodec.QUANTIZED_E6.getId()));
+    }
+
+    @Test
+    public void testFloatXyz() throws Exception {
+        assertRoundTrip(PolygonCodec.FLOAT_XYZ, modisPolygon);
+        assertRoundTrip(PolygonCodec.FLOAT_XYZ, datelinePolygon);
+    }
+
+    @Test
+    public void testQuantized() throws Exception {
+        assertRoundTrip(PolygonCodec.QUANTIZED_E6, modisPolygon);
+        assertRoundTrip(PolygonCodec.QUANTIZED_E6, datelinePolygon);
+
+        byte[] bytes = PolygonCodec.QUANTIZED_E6.encode(modisPolygon);
+        assertTrue(bytes.length < PolygonCodec.FLOAT_XYZ.encode(modisPolygon).length);
+    }
+
+    @Test
+    public void testQuantizedTooSmall() throws Exception {
+        S2WKTReader wktReader = new S2WKTReader();
+        String[] wkts = {
+                // all vertices snap to one grid point
+                "POLYGON((10 50, 10.0000002 50, 10.0000002 50.0000002, 10 50.0000002, 10 50))",
+                // two grid points remain
+                "POLYGON((10 50, 10.000001 50, 10.000001 50.0000002, 10 50.0000002, 10 50))",
+        };
+        for (String wkt : wkts) {
+            S2Polygon polygon = (S2Polygon) wktReader.read(wkt);
+            try {
+                PolygonCodec.QUANTIZED_E6.encode(polygon);
+                fail();
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage().startsWith("polygon has only"));
+            }
+        }
+    }
+
+    private static void assertRoundTrip(PolygonCodec codec, S2Polygon polygon) throws Exception {
+        byte[] bytes = codec.encode(polygon);
+        ByteBuffer bb = ByteBuffer.allocate(bytes.length + 3);
+        bb.position(3);
+        bb.put(bytes);
+        bb.position(3);
+
+        S2Loop original = polygon.loop(0);
+        assertEquals(original.numVertices(), codec.numVertices(bb));
+        assertEquals(3, bb.position());
+
+        S2Loop loop = codec.decodeLoop(bb);
+        assertEquals(bytes.length + 3, bb.position());
+        assertEquals(original.numVertices(), loop.numVertices());
+        for (int i = 0; i < loop.numVertices(); i++) {
+            assertTrue(original.vertex(i).angle(loop.vertex(i)) < 1e-7);
+        }
+        S2Loop recomputed = new S2Loop(Arrays.asList(vertices(loop)));
+        assertEquals(recomputed.isOriginInside(), loop.isOriginInside());
+        assertEquals(recomputed.getFirstLogicalVertex(), loop.getFirstLogicalVertex());
+
+        S2Point inside = S2Point.normalize(original.getCentroid());
+        assertTrue(loop.contains(inside));
+        assertFalse(loop.contains(S2Point.neg(inside)));
+        assertTrue(loop.getRectBound().contains(original.getRectBound().getCenter()));
+
+        bb.position(3);
+        assertEquals(loop.getRectBound(), codec.decodeRectBound(bb));
+        assertEquals(3, bb.position());
+        assertEquals(loop.isOriginInside(), codec.isOriginInside(bb));
+        assertEquals(3, bb.position());
+
+        double[] xyz = new double[3 * loop.numVertices()];
+        codec.decodeVertices(bb, xyz);
+        for (int i = 0; i < loop.numVertices(); i++) {
+            S2Point vertex = loop.vertex(i);
+            assertEquals(vertex.getX(), xyz[3 * i], 0.0);
+            assertEquals(vertex.getY(), xyz[3 * i + 1], 0.0);
+            assertEquals(vertex.getZ(), xyz[3 * i + 2], 0.0);
+        }
+    }
+
+    private static S2Point[] vertices(S2Loop loop) {
+        S2Point[] vertices = new S2Point[loop.numVertices()];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = loop.vertex(i);
+        }
+        return vertices;
+    }
+}
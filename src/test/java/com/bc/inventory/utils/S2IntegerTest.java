@@ -3,6 +3,9 @@ package com.bc.inventory.utils;
 import com.google.common.geometry.S2CellId;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import static org.junit.Assert.*;
 
 public class S2IntegerTest {
@@ -16,4 +19,47 @@ public class S2IntegerTest {
         assertEquals(0, asInt);
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUnion() throws Exception {
+        S2CellId face1 = S2CellId.fromFacePosLevel(1, 0, 0);
+        int[] children = new int[4];
+        S2CellId child = face1.childBegin(1);
+        for (int i = 0; i < 4; i++) {
+            children[i] = S2Integer.asInt(child);
+            child = child.next();
+        }
+        int level2Cell = S2Integer.asInt(S2CellId.fromFacePosLevel(3, 0, 2));
+        int[] c1 = {children[0], children[2]};
+        int[] c2 = {children[1], children[3], level2Cell};
+
+        assertEquals(face1, S2Integer.asS2CellId(S2Integer.asInt(face1)));
+        int[] union = S2Integer.union(Arrays.asList(c1, c2));
+        assertArrayEquals(new int[]{S2Integer.asInt(face1), level2Cell}, union);
+        assertArrayEquals(new int[0], S2Integer.union(Collections.<int[]>emptyList()));
+    }
+
+    @Test
+    public void testSlices() throws Exception {
+        int cellA = S2Integer.asInt(S2CellId.fromFacePosLevel(0, 0, 2));
+        int cellB = S2Integer.asInt(S2CellId.fromFacePosLevel(3, 0, 2));
+        int cellBChild = S2Integer.asInt(S2CellId.fromFacePosLevel(3, 0, 2).childBegin(4));
+        int cellC = S2Integer.asInt(S2CellId.fromFacePosLevel(5, 0, 1));
+        // coverages {A}, {B, C}, {} in one flat array, surrounded by cells that must be ignored
+        int[] flat = {cellA, cellA, cellB, cellC, cellC};
+
+        assertTrue(S2Integer.containsCellId(flat, 1, 2, cellA));
+        assertFalse(S2Integer.containsCellId(flat, 1, 2, cellBChild));
+        assertTrue(S2Integer.containsCellId(flat, 2, 4, cellBChild));
+        assertFalse(S2Integer.containsCellId(flat, 2, 3, cellC));
+        assertFalse(S2Integer.containsCellId(flat, 4, 4, cellC));
+
+        int[] query = {cellBChild};
+        assertFalse(S2Integer.intersectsCellUnionFast(query, 0, 1, flat, 0, 2));
+        assertTrue(S2Integer.intersectsCellUnionFast(query, 0, 1, flat, 2, 4));
+        assertFalse(S2Integer.intersectsCellUnionFast(query, 0, 1, flat, 3, 5));
+        assertFalse(S2Integer.intersectsCellUnionFast(query, 0, 1, flat, 2, 2));
+        assertTrue(S2Integer.intersectsCellUnionFast(new int[]{cellA, cellC}, 1, 2, flat, 3, 4));
+        assertFalse(S2Integer.intersectsCellUnionFast(new int[]{cellA, cellC}, 0, 1, flat, 2, 4));
+    }
+}
@@ -2,6 +2,8 @@ package com.bc.inventory.utils;
 
 import org.junit.Test;
 
+import java.nio.IntBuffer;
+
 import static org.junit.Assert.assertEquals;
 
 public class SearchTest {
@@ -55,5 +57,17 @@ public class SearchTest {
         assertEquals(4, Search.indexedBinarySearch(values, 5));
         
     }
-    
-}
\ No newline at end of file
+
+    @Test
+    public void intBuffer() throws Exception {
+        IntBuffer values = IntBuffer.wrap(new int[]{1, 3, 4, 4, 10, 20});
+        values.position(1);
+        IntBuffer slice = values.slice();
+        assertEquals(0, Search.indexedBinarySearch(slice, 1));
+        assertEquals(0, Search.indexedBinarySearch(slice, 3));
+        assertEquals(1, Search.indexedBinarySearch(slice, 4));
+        assertEquals(2, Search.indexedBinarySearch(slice, 5));
+        assertEquals(3, Search.indexedBinarySearch(slice, 10));
+        assertEquals(4, Search.indexedBinarySearch(slice, 21));
+    }
+}
@@ -0,0 +1,54 @@
+package com.bc.inventory.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class VarIntTest {
+
+    @Test
+    public void zigZag() throws Exception {
+        assertEquals(0, VarInt.zigZagEncode(0));
+        assertEquals(1, VarInt.zigZagEncode(-1));
+        assertEquals(2, VarInt.zigZagEncode(1));
+        assertEquals(3, VarInt.zigZagEncode(-2));
+        int[] values = {0, 1, -1, 63, -64, 1000000, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int value : values) {
+            assertEquals(value, VarInt.zigZagDecode(VarInt.zigZagEncode(value)));
+        }
+    }
+
+    @Test
+    public void writeRead() throws Exception {
+        int[] values = {0, 1, 127, 128, 16383, 16384, 15000000, -1, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        int expectedSize = 0;
+        for (int value : values) {
+            VarInt.writeUnsigned(dos, value);
+            VarInt.writeSigned(dos, value);
+            expectedSize += VarInt.sizeOfUnsigned(value) + VarInt.sizeOfUnsigned(VarInt.zigZagEncode(value));
+        }
+        dos.close();
+        assertEquals(expectedSize, baos.size());
+
+        ByteBuffer bb = ByteBuffer.wrap(baos.toByteArray());
+        for (int value : values) {
+            assertEquals(value, VarInt.readUnsigned(bb));
+            assertEquals(value, VarInt.readSigned(bb));
+        }
+        assertEquals(0, bb.remaining());
+
+        bb.rewind();
+        VarInt.skip(bb, 2 * values.length - 1);
+        assertEquals(Integer.MIN_VALUE, VarInt.readSigned(bb));
+
+        assertEquals(1, VarInt.sizeOfUnsigned(127));
+        assertEquals(2, VarInt.sizeOfUnsigned(128));
+        assertEquals(5, VarInt.sizeOfUnsigned(-1));
+    }
+}